@@ -0,0 +1,236 @@
+/*
+The Flight Recorder events of parsing, marshalling and evaluation.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * The Flight Recorder events, which are only loaded through FormulaEvents 
+ * where there is a Flight Recorder.
+ * 
+ * By default only calls taking 1 ms or more are recorded. The threshold of 
+ * each event can be set like that of any other, e.g. in a .jfc settings file:
+ * 
+ * <pre>
+ * &lt;event name="cloud.mypattern.Parse"&gt;
+ *   &lt;setting name="enabled"&gt;true&lt;/setting&gt;
+ *   &lt;setting name="threshold"&gt;5 ms&lt;/setting&gt;
+ * &lt;/event&gt;
+ * </pre>
+ * 
+ * or with Recording.enable( "cloud.mypattern.Parse" ).withThreshold(). The
+ * text of the formula is left out, unless the system property
+ * cloud.mypattern.jfr.formulaLength gives the number of characters of it to
+ * record.
+ * 
+ * Registering the first event is slow, a third of a second or more, so none
+ * is touched until a recording is running. Until then this only listens 
+ * for one to start, and start() returns null.
+ * 
+ * This is compiled apart from the rest of src, from src-jfr, and only by a JDK
+ * with jdk.jfr, so that the library itself still builds on any Java 8.
+ * 
+ * @author Jason Dore
+ */
+final class JFRFormulaEvents extends FormulaEvents implements FlightRecorderListener
+{
+    private static final int FORMULA_LENGTH = Integer.getInteger( "cloud.mypattern.jfr.formulaLength", 0 );
+    
+    //Set once a recording has been running.
+    private volatile Events events;
+    
+    
+    /**
+     * Listen for recordings. Adding the listener takes longer than the first
+     * formula does, so unless the Flight Recorder is already in use, e.g. 
+     * with -XX:StartFlightRecording, that is done on another thread. Any 
+     * recording started meanwhile is found once it has been added.
+     */
+    JFRFormulaEvents()
+    {
+        if ( FlightRecorder.isInitialized() )
+        {
+            FlightRecorder.addListener( this );
+            return;
+        }
+        
+        //Not a lambda, as the first one is slow to bootstrap too.
+        Thread t = new Thread( new Runnable() {
+            @Override
+            public void run()
+            {
+                FlightRecorder.addListener( JFRFormulaEvents.this );
+            }
+        }, "FormulaParser Flight Recorder listener" );
+        t.setDaemon( true );
+        t.start();
+    }
+    
+    
+    @Override
+    public void recorderInitialized( FlightRecorder recorder )
+    {
+        for( Recording r : recorder.getRecordings() )
+            recordingStateChanged( r );
+    }
+    
+    
+    @Override
+    public void recordingStateChanged( Recording recording )
+    {
+        if ( events == null && recording.getState() == RecordingState.RUNNING )
+            synchronized( this )
+            {
+                if ( events == null )
+                    events = new Events();
+            }
+    }
+    
+    
+    @Category( "FormulaParser" )
+    @StackTrace( false )
+    @Threshold( "1 ms" )
+    abstract static class FormulaEvent extends Event
+    {
+        @Label( "Length" )
+        @Description( "The number of characters in the formula, or in its normative form if evaluated" )
+        int length;
+        
+        @Label( "Nodes" )
+        @Description( "The number of parts of the formula parsed, written or evaluated" )
+        int nodes;
+        
+        @Label( "Outcome" )
+        @Description( "OK, or why it failed" )
+        String outcome;
+        
+        @Label( "Formula" )
+        String formula;
+    }
+    
+    
+    @Name( "cloud.mypattern.Parse" )
+    @Label( "Formula Parse" )
+    static final class ParseEvent extends FormulaEvent
+    {
+    }
+    
+    
+    @Name( "cloud.mypattern.Marshal" )
+    @Label( "Formula Marshal" )
+    @Description( "Writing a formula as XML" )
+    static final class MarshalEvent extends FormulaEvent
+    {
+    }
+    
+    
+    @Name( "cloud.mypattern.Evaluate" )
+    @Label( "Formula Evaluate" )
+    static final class EvaluateEvent extends FormulaEvent
+    {
+    }
+    
+    
+    @Override
+    Object start( int kind )
+    {
+        Events e = events;
+        return e == null ? null : e.start( kind );
+    }
+    
+    
+    /**
+     * The event types, which are registered when this is first loaded, once
+     * a recording is running.
+     */
+    private static final class Events
+    {
+        //Whether each kind is enabled is read from its EventType, so that nothing is allocated while it is not.
+        private final EventType parseType    = EventType.getEventType( ParseEvent.class );
+        private final EventType marshalType  = EventType.getEventType( MarshalEvent.class );
+        private final EventType evaluateType = EventType.getEventType( EvaluateEvent.class );
+        
+        
+        Object start( int kind )
+        {
+            FormulaEvent event;
+            
+            if ( kind == PARSE )
+            {
+                if ( ! parseType.isEnabled() )
+                    return null;
+                event = new ParseEvent();
+            }
+            else if ( kind == MARSHAL )
+            {
+                if ( ! marshalType.isEnabled() )
+                    return null;
+                event = new MarshalEvent();
+            }
+            else
+            {
+                if ( ! evaluateType.isEnabled() )
+                    return null;
+                event = new EvaluateEvent();
+            }
+            
+            event.begin();
+            return event;
+        }
+    }
+    
+    
+    @Override
+    void finish( Object e, Object formula, int nodes, Throwable error )
+    {
+        FormulaEvent event = (FormulaEvent)e;
+        event.end();
+        
+        if ( ! event.shouldCommit() )
+            return;
+        
+        String text = text( formula );
+        event.length = text.length();
+        event.nodes = nodes;
+        event.outcome = error == null ? "OK" : error.getMessage() != null ? error.getMessage().trim() : error.toString();
+        
+        if ( FORMULA_LENGTH > 0 )
+            event.formula = text.length() > FORMULA_LENGTH ? text.substring( 0, FORMULA_LENGTH ) : text;
+        
+        event.commit();
+    }
+}
@@ -0,0 +1,366 @@
+/*
+Parses and evaluates formulas off the caller's thread.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+
+/**
+ * Parses and evaluates formulas on an Executor, returning CompletableFutures,
+ * so that they can be called from an event loop without blocking it.
+ * 
+ * At most maxInFlight formulas are queued or being worked on at once. A call
+ * made when that many are in flight doesn't wait, its future fails straight 
+ * away with a RejectedExecutionException, so a flood of formulas can't build 
+ * an unbounded queue. tryParseAll() takes formulas from an Iterator only as 
+ * there is room for them, so is the way to work through a stream of them.
+ * 
+ * <pre>
+ * AsyncFormulaParser parser = new AsyncFormulaParser();
+ * parser.formulaToXML( "a + 5 / 2" ).thenAccept( xml -&gt; ... );
+ * </pre>
+ * 
+ * By default work is done on virtual threads where the JVM has them (Java 
+ * 21), and otherwise on the common ForkJoinPool.
+ * 
+ * @author Jason Dore
+ */
+public final class AsyncFormulaParser
+{
+    private static final int DEFAULT_MAX_IN_FLIGHT = 256;
+    
+    private static final Executor DEFAULT_EXECUTOR = defaultExecutor();
+    
+    private final Executor executor;
+    private final int maxInFlight;
+    private final Semaphore permits;
+    
+    //Streams from tryParseAll() waiting for a permit, with none in flight.
+    private final Queue<Pump> waiting = new ConcurrentLinkedQueue<>();
+    
+    
+    /**
+     * Create a parser that uses virtual threads if there are any, allowing 
+     * 256 formulas in flight.
+     */
+    public AsyncFormulaParser()
+    {
+        this( DEFAULT_EXECUTOR, DEFAULT_MAX_IN_FLIGHT );
+    }
+    
+    
+    /**
+     * @param executor to do the parsing and evaluation.
+     * @param maxInFlight the most formulas to be queued or being worked on.
+     */
+    public AsyncFormulaParser( Executor executor, int maxInFlight )
+    {
+        if ( maxInFlight < 1 )
+            throw new IllegalArgumentException( "maxInFlight:" + maxInFlight );
+        
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.permits = new Semaphore( maxInFlight );
+    }
+    
+    
+    /**
+     * @return an Executor starting a virtual thread for each task if this 
+     * JVM has them, or else the common ForkJoinPool.
+     */
+    static Executor defaultExecutor()
+    {
+        //Looked up by name, as this is built for Java 8.
+        try {
+            return (Executor)Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+        } catch ( ReflectiveOperationException | RuntimeException e ) {
+            return ForkJoinPool.commonPool();
+        }
+    }
+    
+    
+    /**
+     * @return the number of formulas queued or being worked on.
+     */
+    public int getInFlight()
+    {
+        return maxInFlight - permits.availablePermits();
+    }
+    
+    
+    /**
+     * @param formula
+     * @return the XML, as FormulaParser.formulaToXML() would, or a 
+     * FormulaSyntaxException if the formula is invalid.
+     * @see FormulaParser#formulaToXML(java.lang.String) 
+     */
+    public CompletableFuture<String> formulaToXML( String formula )
+    {
+        return submit( () -> FormulaParser.formulaToXML( formula ) );
+    }
+    
+    
+    /**
+     * @param formula
+     * @return the Expression or error, as FormulaParser.tryParse() would.
+     * @see FormulaParser#tryParse(java.lang.String) 
+     */
+    public CompletableFuture<ParseResult> tryParse( String formula )
+    {
+        return submit( () -> FormulaParser.tryParse( formula ) );
+    }
+    
+    
+    /**
+     * @param formula
+     * @param evaluator
+     * @return the value of the formula, or the SyntaxException if it is 
+     * invalid or whatever the evaluator throws.
+     */
+    public CompletableFuture<Double> evaluate( String formula, FormulaEvaluator evaluator )
+    {
+        return submit( () -> evaluator.evaluate( new FormulaParser( new Stream( formula ) ).getExpression() ) );
+    }
+    
+    
+    /**
+     * Parse each of the formulas, giving the consumer each formula with its
+     * result as they are done, which may not be in order. 
+     * 
+     * Formulas are only taken from the iterator as there is room in flight
+     * for them, so one that reads e.g. an upload as it goes holds only those
+     * in flight in memory. The consumer is only called by one thread at a 
+     * time, so needs no locking of its own.
+     * 
+     * @param formulas
+     * @param consumer
+     * @return completed once all the formulas have been consumed, or with 
+     * what the iterator or the consumer threw, after which no more formulas
+     * are taken.
+     */
+    public CompletableFuture<Void> tryParseAll( Iterator<String> formulas, BiConsumer<? super String,? super ParseResult> consumer )
+    {
+        Pump pump = new Pump( formulas, consumer );
+        pump.fill();
+        return pump.done;
+    }
+    
+    
+    private <T> CompletableFuture<T> submit( Callable<T> task )
+    {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        
+        if ( ! permits.tryAcquire() )
+        {
+            future.completeExceptionally( new RejectedExecutionException( "Too many formulas in flight:" + maxInFlight ) );
+            return future;
+        }
+        
+        try {
+            executor.execute( () -> {
+                T result;
+                try {
+                    result = task.call();
+                } catch ( Throwable t ) {
+                    release();
+                    future.completeExceptionally( t );
+                    return;
+                }
+                //Released first, so whatever the future runs next may submit.
+                release();
+                future.complete( result );
+            } );
+        } catch ( RejectedExecutionException e ) {
+            release();
+            future.completeExceptionally( e );
+        }
+        return future;
+    }
+    
+    
+    private void release()
+    {
+        permits.release();
+        
+        Pump pump = waiting.poll();
+        if ( pump != null )
+            pump.fill();
+    }
+    
+    
+    /**
+     * Feeds formulas from an iterator into flight as there is room.
+     */
+    private final class Pump
+    {
+        private final Iterator<String> formulas;
+        private final BiConsumer<? super String,? super ParseResult> consumer;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private int running;
+        private boolean exhausted;
+        
+        //Whether a thread is in fill(), and whether it has been asked to go
+        //round again, so that an executor that runs each formula there and 
+        //then, whose parse() calls fill(), doesn't recurse once per formula.
+        private boolean filling;
+        private boolean wanted;
+        
+        
+        Pump( Iterator<String> formulas, BiConsumer<? super String,? super ParseResult> consumer )
+        {
+            this.formulas = formulas;
+            this.consumer = consumer;
+        }
+        
+        
+        /**
+         * Start as many formulas as there is room for.
+         */
+        void fill()
+        {
+            synchronized( this )
+            {
+                if ( filling )
+                {
+                    wanted = true;
+                    return;
+                }
+                filling = true;
+            }
+            
+            while( true )
+            {
+                //A permit taken but not used is handed back once the lock is 
+                //let go, as that may fill another stream.
+                if ( start() )
+                    release();
+                
+                synchronized( this )
+                {
+                    if ( ! wanted )
+                    {
+                        filling = false;
+                        return;
+                    }
+                    wanted = false;
+                }
+            }
+        }
+        
+        
+        /**
+         * @return true if a permit was taken but not used.
+         */
+        private synchronized boolean start()
+        {
+            while( ! done.isDone() && ! exhausted )
+            {
+                //Asked before taking a permit, so that done is never 
+                //completed while one is still held.
+                try {
+                    if ( ! formulas.hasNext() )
+                    {
+                        exhausted = true;
+                        break;
+                    }
+                } catch ( RuntimeException e ) {
+                    done.completeExceptionally( e );
+                    return false;
+                }
+                
+                if ( ! permits.tryAcquire() )
+                {
+                    //With none of its own running nothing would call fill()
+                    //again, so wait for the next permit released. Check again
+                    //in case it was released before this was added.
+                    if ( running == 0 )
+                    {
+                        waiting.add( this );
+                        
+                        if ( permits.availablePermits() > 0 && waiting.remove( this ) )
+                            continue;
+                    }
+                    return false;
+                }
+                
+                String formula;
+                try {
+                    formula = formulas.next();
+                } catch ( RuntimeException e ) {
+                    done.completeExceptionally( e );
+                    return true;
+                }
+                
+                running++;
+                try {
+                    executor.execute( () -> parse( formula ) );
+                } catch ( RejectedExecutionException e ) {
+                    running--;
+                    done.completeExceptionally( e );
+                    return true;
+                }
+            }
+            
+            if ( exhausted && running == 0 )
+                done.complete( null );
+            
+            return false;
+        }
+        
+        
+        private void parse( String formula )
+        {
+            ParseResult result = FormulaParser.tryParse( formula );
+            try {
+                synchronized( this )
+                {
+                    if ( ! done.isDone() )
+                        consumer.accept( formula, result );
+                }
+            } catch ( Throwable t ) {
+                done.completeExceptionally( t );
+            } finally {
+                //The permit is handed back before this stops counting as 
+                //running, so that done isn't completed while it's held.
+                release();
+                synchronized( this )
+                {
+                    running--;
+                }
+                fill();
+            }
+        }
+    }
+}
@@ -0,0 +1,504 @@
+/*
+Many parsed formulas held in a few flat arrays.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+import cloud.mypattern.FormulaParser.*;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Many parsed formulas, e.g. those of a whole pattern library, held in a few
+ * flat arrays rather than as Expression trees.
+ *
+ * Each part of a formula is one int, recorded in postfix order as the parser
+ * finds them, with the formulas one after another. The low bits are the kind
+ * of part and the rest its value: an integer or operator itself, or the 
+ * index of a decimal in an array of doubles, or of a name in a table shared 
+ * by all the formulas, so each name is only held once. So a part takes 4 
+ * bytes, against the tens of bytes of each Expression and the String of each
+ * token, and a million formulas take around a ninth of the memory.
+ *
+ * A formula is added as it is parsed, without building an Expression, and 
+ * can be sent to a FormulaHandler or written as XML just like an Expression,
+ * or made into one if it is needed.
+ *
+ * <pre>
+ * CompactFormulas formulas = new CompactFormulas();
+ * int f = formulas.add( "(a + 5) / 2" );
+ * formulas.toXML( f );
+ * </pre>
+ *
+ * Adding is not thread safe, but once built the formulas may be read by many
+ * threads. There is room for 2^27 decimals and as many names; adding a 
+ * formula that needs more throws IllegalStateException, and adds nothing.
+ *
+ * @author Jason Dore
+ */
+public final class CompactFormulas
+{
+    private static final byte INTEGER         = 0;
+    private static final byte DECIMAL         = 1;
+    private static final byte VARIABLE        = 2;
+    private static final byte CUSTOM_VARIABLE = 3;
+    private static final byte HASH_VARIABLE   = 4;
+    private static final byte FUNCTION1       = 5;
+    private static final byte FUNCTION2       = 6;
+    private static final byte PARENTHESIS     = 7;
+    private static final byte OPERATION       = 8;
+    private static final byte TERNARY         = 9;
+    private static final byte BIG_INTEGER     = 10; //too big for a part, so held as a decimal
+
+    //The bits of a part that are its kind.
+    private static final int KIND_BITS = 4;
+    private static final int KIND_MASK = ( 1 << KIND_BITS ) - 1;
+    
+    //The largest index of a decimal or name, as it has to fit above the kind.
+    static final int MAX_INDEX = Integer.MAX_VALUE >> KIND_BITS;
+
+    //One entry per part, in postfix order: the kind, and above it the 
+    //integer, operator, or index into decimals or names.
+    private int[] parts = new int[64];
+    private int count;
+
+    //The entry after the last of each formula.
+    private int[] ends = new int[16];
+    private int formulaCount;
+
+    private double[] decimals = new double[16];
+    int decimalCount;
+
+    //The names used by all the formulas, each once, and where each is, 
+    //which is only kept while adding.
+    private String[] names = new String[16];
+    int nameCount;
+    private Map<String,Integer> nameIndex = new HashMap<>();
+
+    private final Appender appender = new Appender();
+
+
+    /**
+     * Parse a formula and add it.
+     *
+     * @param formula
+     * @return the index of the formula, which is one more than the last.
+     * @throws cloud.mypattern.FormulaParser.FormulaSyntaxException if the
+     * formula is invalid, in which case nothing is added.
+     * @throws IllegalStateException if there is no room for its decimals or
+     * names, in which case nothing is added either.
+     */
+    public int add( String formula ) throws FormulaSyntaxException
+    {
+        int start = count;
+        int startDecimals = decimalCount;
+        int startNames = nameCount;
+
+        try {
+            FormulaParser.parse( new Stream( formula ), appender );
+        } catch ( Stream.SyntaxException e ) {
+            forget( start, startDecimals, startNames );
+            throw new FormulaSyntaxException( e );
+        } catch ( RuntimeException e ) {
+            forget( start, startDecimals, startNames );
+            throw e;
+        }
+
+        if ( formulaCount == ends.length )
+            ends = Arrays.copyOf( ends, Math.max( 16, formulaCount * 2 ) );
+
+        ends[ formulaCount ] = count;
+        return formulaCount++;
+    }
+
+
+    /**
+     * Forget what was added of a formula that failed.
+     */
+    private void forget( int start, int startDecimals, int startNames )
+    {
+        count = start;
+        decimalCount = startDecimals;
+        for( int i=startNames; i<nameCount; i++ )
+        {
+            nameIndex.remove( names[i] );
+            names[i] = null;
+        }
+        nameCount = startNames;
+    }
+
+
+    /**
+     * @return the number of formulas.
+     */
+    public int size()
+    {
+        return formulaCount;
+    }
+
+
+    /**
+     * @return the number of parts of all the formulas.
+     */
+    public int getPartCount()
+    {
+        return count;
+    }
+
+
+    /**
+     * Let go of the space kept for adding more formulas, once they have all
+     * been added, including the index of the names. More can still be added,
+     * but the index is then made again.
+     */
+    public void trimToSize()
+    {
+        parts = Arrays.copyOf( parts, count );
+        ends = Arrays.copyOf( ends, formulaCount );
+        decimals = Arrays.copyOf( decimals, decimalCount );
+        names = Arrays.copyOf( names, nameCount );
+        nameIndex = null;
+    }
+
+
+    /**
+     * Send a formula to the handler, in the same order as Expression.emit().
+     *
+     * This walks the formula with its own stack rather than recursing, so
+     * deeply nested formulas are fine.
+     *
+     * @param formula
+     * @param h
+     * @throws Exception whatever the handler throws.
+     */
+    public void emit( int formula, FormulaHandler h ) throws Exception
+    {
+        int end = end( formula );
+        int start = formula == 0 ? 0 : ends[ formula - 1 ];
+
+        int[] sizes = sizes( start, end );
+        int[] stack = new int[ ( end - start ) * 2 ];
+        int top = 0;
+        stack[ top++ ] = end - 1;
+
+        while( top > 0 )
+        {
+            int p = stack[ --top ];
+
+            if ( p < 0 ) //the end of a part whose operands have all been sent
+            {
+                switch( parts[ ~p ] & KIND_MASK )
+                {
+                    case FUNCTION1:
+                    case FUNCTION2:   h.endFunction(); break;
+                    case PARENTHESIS: h.endParenthesis(); break;
+                    default:          h.endOperation();
+                }
+                continue;
+            }
+
+            int kind = parts[p] & KIND_MASK;
+            int value = parts[p] >> KIND_BITS;
+            int parameterCount;
+            switch( kind )
+            {
+                case INTEGER:         h.integer( value ); continue;
+                case BIG_INTEGER:     h.integer( (int)decimals[ value ] ); continue;
+                case DECIMAL:         h.decimal( decimals[ value ] ); continue;
+                case VARIABLE:        h.variable( names[ value ], false, false ); continue;
+                case CUSTOM_VARIABLE: h.variable( names[ value ], true, false ); continue;
+                case HASH_VARIABLE:   h.variable( names[ value ], false, true ); continue;
+
+                case FUNCTION1:
+                case FUNCTION2:
+                    h.startFunction( names[ value ] );
+                    parameterCount = kind == FUNCTION2 ? 2 : 1;
+                    break;
+
+                case PARENTHESIS:
+                    h.startParenthesis();
+                    parameterCount = 1;
+                    break;
+
+                case OPERATION:
+                    h.startOperation( FormulaParser.getOperatorName( value ) );
+                    parameterCount = 2;
+                    break;
+
+                default: //TERNARY
+                    h.startOperation( "ternary" );
+                    parameterCount = 3;
+            }
+
+            stack[ top++ ] = ~p;
+
+            //Operands are found last first, so pushing them in that order
+            //means the first operand is the next one off the stack.
+            int operand = p - 1;
+            for( int i=0; i<parameterCount; i++ )
+            {
+                stack[ top++ ] = operand;
+                operand -= sizes[ operand - start ];
+            }
+        }
+    }
+
+
+    /**
+     * Work out the number of parts in the subtree ending at each part of a 
+     * formula, which is what is needed to find the operands of a part. These
+     * aren't kept as they'd double the space taken.
+     */
+    private int[] sizes( int start, int end )
+    {
+        int[] sizes = new int[ end - start ];
+        int[] starts = new int[ end - start ]; //of each subtree not yet used as an operand
+        int depth = 0;
+
+        for( int p=start; p<end; p++ )
+        {
+            int first = p;
+            for( int i=parameterCount( parts[p] & KIND_MASK ); i>0; i-- )
+                first = starts[ --depth ];
+
+            sizes[ p - start ] = p - first + 1;
+            starts[ depth++ ] = first;
+        }
+        return sizes;
+    }
+
+
+    private static int parameterCount( int kind )
+    {
+        switch( kind )
+        {
+            case FUNCTION1:
+            case PARENTHESIS: return 1;
+            case FUNCTION2:
+            case OPERATION:   return 2;
+            case TERNARY:     return 3;
+            default:          return 0;
+        }
+    }
+
+
+    /**
+     * Return a formula as XML, the same as FormulaParser.formulaToXML().
+     *
+     * @param formula
+     * @return
+     * @throws cloud.mypattern.FormulaParser.FormulaSyntaxException
+     */
+    public String toXML( int formula ) throws FormulaSyntaxException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            XMLTextFormulaHandler handler = new XMLTextFormulaHandler( out );
+            handler.startDocument();
+            emit( formula, handler );
+            handler.flush();
+        } catch ( Exception e ) {
+            throw new FormulaSyntaxException( e );
+        }
+        return new String( out.toByteArray(), StandardCharsets.UTF_8 );
+    }
+
+
+    /**
+     * Write a formula as an XML document.
+     *
+     * @param formula
+     * @param xmlStream
+     * @throws cloud.mypattern.FormulaParser.FormulaSyntaxException
+     */
+    public void toXML( int formula, XMLStreamWriter xmlStream ) throws FormulaSyntaxException
+    {
+        try {
+            xmlStream.writeStartDocument();
+            emit( formula, new XMLFormulaHandler( xmlStream ) );
+            xmlStream.flush();
+        } catch ( Exception e ) {
+            throw new FormulaSyntaxException( e );
+        }
+    }
+
+
+    /**
+     * Make a formula into an Expression, for when the tree is needed.
+     *
+     * @param formula
+     * @return
+     */
+    public Expression getExpression( int formula )
+    {
+        int end = end( formula );
+        int start = formula == 0 ? 0 : ends[ formula - 1 ];
+
+        //The entries are in postfix order, so are the events that build it.
+        ExpressionBuilder builder = new ExpressionBuilder();
+        for( int p=start; p<end; p++ )
+        {
+            int value = parts[p] >> KIND_BITS;
+            switch( parts[p] & KIND_MASK )
+            {
+                case INTEGER:         builder.integer( value, 0, 0 ); break;
+                case BIG_INTEGER:     builder.integer( (int)decimals[ value ], 0, 0 ); break;
+                case DECIMAL:         builder.decimal( decimals[ value ], 0, 0 ); break;
+                case VARIABLE:        builder.variable( names[ value ], false, false, 0, 0 ); break;
+                case CUSTOM_VARIABLE: builder.variable( names[ value ], true, false, 0, 0 ); break;
+                case HASH_VARIABLE:   builder.variable( names[ value ], false, true, 0, 0 ); break;
+                case FUNCTION1:       builder.function( names[ value ], 1, 0, 0 ); break;
+                case FUNCTION2:       builder.function( names[ value ], 2, 0, 0 ); break;
+                case PARENTHESIS:     builder.parenthesis( 0, 0 ); break;
+                case OPERATION:       builder.operation( value ); break;
+                default:              builder.ternary();
+            }
+        }
+        return builder.pop();
+    }
+
+
+    private int end( int formula )
+    {
+        if ( formula < 0 || formula >= formulaCount )
+            throw new IndexOutOfBoundsException( "No formula:" + formula );
+
+        return ends[ formula ];
+    }
+
+
+    /**
+     * Appends the parser's postfix events.
+     */
+    private final class Appender implements PostfixHandler
+    {
+        @Override
+        public void integer( int i, int start, int end )
+        {
+            //An integer too big to be shifted over the kind is held as a 
+            //decimal, which holds any int exactly.
+            if ( ( i << KIND_BITS ) >> KIND_BITS == i )
+                add( INTEGER, i );
+            else
+                add( BIG_INTEGER, addDecimal( i ) );
+        }
+
+
+        @Override
+        public void decimal( double d, int start, int end )
+        {
+            add( DECIMAL, addDecimal( d ) );
+        }
+
+
+        @Override
+        public void variable( String token, boolean isCustom, boolean isHashToken, int start, int end )
+        {
+            add( isCustom ? CUSTOM_VARIABLE : isHashToken ? HASH_VARIABLE : VARIABLE, name( token ) );
+        }
+
+
+        @Override
+        public void function( String function, int parameterCount, int start, int end )
+        {
+            add( parameterCount == 2 ? FUNCTION2 : FUNCTION1, name( function ) );
+        }
+
+
+        @Override
+        public void parenthesis( int start, int end )
+        {
+            add( PARENTHESIS, 0 );
+        }
+
+
+        @Override
+        public void operation( int operator )
+        {
+            add( OPERATION, operator );
+        }
+
+
+        @Override
+        public void ternary()
+        {
+            add( TERNARY, 0 );
+        }
+
+
+        private int addDecimal( double d )
+        {
+            //Decimals aren't shared, so many formulas can get here.
+            if ( decimalCount > MAX_INDEX )
+                throw new IllegalStateException( "CompactFormulas full" );
+            
+            if ( decimalCount == decimals.length )
+                decimals = Arrays.copyOf( decimals, Math.max( 16, decimalCount * 2 ) );
+
+            decimals[ decimalCount ] = d;
+            return decimalCount++;
+        }
+
+
+        /**
+         * @return the index of the name in the table, adding it if it's new.
+         */
+        private int name( String name )
+        {
+            if ( nameIndex == null ) //since trimToSize()
+            {
+                nameIndex = new HashMap<>();
+                for( int i=0; i<nameCount; i++ )
+                    nameIndex.put( names[i], i );
+            }
+            
+            Integer index = nameIndex.get( name );
+            if ( index != null )
+                return index;
+
+            if ( nameCount > MAX_INDEX )
+                throw new IllegalStateException( "CompactFormulas full" );
+            
+            if ( nameCount == names.length )
+                names = Arrays.copyOf( names, Math.max( 16, nameCount * 2 ) );
+
+            names[ nameCount ] = name;
+            nameIndex.put( name, nameCount );
+            return nameCount++;
+        }
+
+
+        private void add( byte kind, int value )
+        {
+            if ( count == parts.length )
+                parts = Arrays.copyOf( parts, Math.max( 64, count * 2 ) );
+
+            parts[ count++ ] = value << KIND_BITS | kind;
+        }
+    }
+}
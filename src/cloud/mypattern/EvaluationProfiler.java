@@ -0,0 +1,282 @@
+/*
+Records the cost of evaluating each formula of a pattern.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Records, for each formula evaluated with an id, how many times it was 
+ * evaluated, the time taken, the parts evaluated and the variables resolved, 
+ * to find which formulas make a pattern slow:
+ * 
+ * <pre>
+ * EvaluationProfiler profiler = new EvaluationProfiler();
+ * evaluator.setProfiler( profiler );
+ * profiler.setEnabled( true );
+ * ... evaluator.evaluate( "A12.length", expression ) ...
+ * profiler.getTop( 10 );
+ * profiler.writeCSV( out );
+ * </pre>
+ * 
+ * The time includes resolving the variables, so if resolving one evaluates 
+ * other formulas, theirs is counted in it too. 
+ * 
+ * While disabled, as it is to start with, evaluation costs no more than 
+ * without a profiler, so one can be left in place and enabled when needed.
+ * A profiler may be shared by evaluators on any number of threads.
+ * 
+ * @author Jason Dore
+ */
+public final class EvaluationProfiler
+{
+    private final ConcurrentMap<String,Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean enabled;
+    
+    
+    /**
+     * What has been recorded for one formula.
+     */
+    public static final class Entry
+    {
+        private final String id;
+        private long count;
+        private long nanos;
+        private long parts;
+        private long variables;
+        
+        
+        Entry( String id )
+        {
+            this.id = id;
+        }
+        
+        
+        private Entry( Entry e )
+        {
+            this.id = e.id;
+            synchronized( e )
+            {
+                this.count = e.count;
+                this.nanos = e.nanos;
+                this.parts = e.parts;
+                this.variables = e.variables;
+            }
+        }
+        
+        
+        public String getId()
+        {
+            return id;
+        }
+        
+        
+        /**
+         * @return the number of times the formula was evaluated.
+         */
+        public long getCount()
+        {
+            return count;
+        }
+        
+        
+        /**
+         * @return the total time taken, in nanoseconds.
+         */
+        public long getNanos()
+        {
+            return nanos;
+        }
+        
+        
+        /**
+         * @return the total number of parts evaluated, each of which is a 
+         * variable, number, operation, function, parenthesis or ternary.
+         */
+        public long getParts()
+        {
+            return parts;
+        }
+        
+        
+        /**
+         * @return the total number of variables resolved.
+         */
+        public long getVariables()
+        {
+            return variables;
+        }
+        
+        
+        @Override
+        public String toString()
+        {
+            return id + " count:" + count + " nanos:" + nanos + " parts:" + parts + " variables:" + variables;
+        }
+    }
+    
+    
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+    
+    
+    public void setEnabled( boolean enabled )
+    {
+        this.enabled = enabled;
+    }
+    
+    
+    /**
+     * Forget all that has been recorded.
+     */
+    public void reset()
+    {
+        entries.clear();
+    }
+    
+    
+    /**
+     * Record an evaluation of a formula.
+     * 
+     * @param id not null; FormulaEvaluator doesn't profile formulas without one.
+     */
+    void record( String id, long nanos, int parts, int variables )
+    {
+        Entry e = entries.get( id );
+        if ( e == null )
+        {
+            Entry created = new Entry( id );
+            e = entries.putIfAbsent( id, created );
+            if ( e == null )
+                e = created;
+        }
+        
+        synchronized( e )
+        {
+            e.count++;
+            e.nanos += nanos;
+            e.parts += parts;
+            e.variables += variables;
+        }
+    }
+    
+    
+    /**
+     * @return a copy of what has been recorded for every formula, the 
+     * costliest, by total time, first.
+     */
+    public List<Entry> getEntries()
+    {
+        List<Entry> copies = new ArrayList<>( entries.size() );
+        for( Entry e : entries.values() )
+            copies.add( new Entry( e ) );
+        
+        Collections.sort( copies, ( a, b ) -> Long.compare( b.nanos, a.nanos ) );
+        return copies;
+    }
+    
+    
+    /**
+     * @param n
+     * @return the n costliest formulas, by total time.
+     */
+    public List<Entry> getTop( int n )
+    {
+        List<Entry> all = getEntries();
+        return all.size() > n ? new ArrayList<>( all.subList( 0, n ) ) : all;
+    }
+    
+    
+    /**
+     * Write every formula, the costliest first, as CSV with a header line: 
+     * id,count,nanos,parts,variables.
+     * 
+     * @param out
+     * @throws IOException 
+     */
+    public void writeCSV( Appendable out ) throws IOException
+    {
+        out.append( "id,count,nanos,parts,variables\n" );
+        for( Entry e : getEntries() )
+        {
+            boolean quote = e.id.indexOf( ',' ) >= 0 || e.id.indexOf( '"' ) >= 0 || e.id.indexOf( '\n' ) >= 0 || e.id.indexOf( '\r' ) >= 0;
+            if ( quote )
+                out.append( '"' ).append( e.id.replace( "\"", "\"\"" ) ).append( '"' );
+            else
+                out.append( e.id );
+            
+            out.append( ',' ).append( Long.toString( e.count ) )
+               .append( ',' ).append( Long.toString( e.nanos ) )
+               .append( ',' ).append( Long.toString( e.parts ) )
+               .append( ',' ).append( Long.toString( e.variables ) )
+               .append( '\n' );
+        }
+    }
+    
+    
+    /**
+     * Write every formula, the costliest first, as a JSON array of objects 
+     * with the fields id, count, nanos, parts and variables.
+     * 
+     * @param out
+     * @throws IOException 
+     */
+    public void writeJSON( Appendable out ) throws IOException
+    {
+        out.append( '[' );
+        boolean first = true;
+        for( Entry e : getEntries() )
+        {
+            if ( ! first )
+                out.append( ",\n" );
+            first = false;
+            
+            out.append( "{\"id\":\"" );
+            for( int i=0; i<e.id.length(); i++ )
+            {
+                char c = e.id.charAt( i );
+                if ( c == '"' || c == '\\' )
+                    out.append( '\\' ).append( c );
+                else if ( c < 0x20 )
+                    out.append( String.format( "\\u%04x", (int)c ) );
+                else
+                    out.append( c );
+            }
+            out.append( "\",\"count\":" ).append( Long.toString( e.count ) )
+               .append( ",\"nanos\":" ).append( Long.toString( e.nanos ) )
+               .append( ",\"parts\":" ).append( Long.toString( e.parts ) )
+               .append( ",\"variables\":" ).append( Long.toString( e.variables ) )
+               .append( '}' );
+        }
+        out.append( "]\n" );
+    }
+}
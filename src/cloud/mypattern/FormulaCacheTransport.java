@@ -0,0 +1,62 @@
+/*
+How the nodes of a ShardedFormulaCache reach each other.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+import java.io.IOException;
+
+/**
+ * Carries the requests of a ShardedFormulaCache to the node that owns a 
+ * formula, where they are answered by that node's getEntry() and putEntry().
+ *
+ * An entry is a formula in the cache's compact form, which a transport 
+ * carries as opaque bytes. LoopbackTransport connects the nodes of one 
+ * process; one over the network need only carry the formula text and 
+ * those bytes. A transport may be called by many threads at once.
+ *
+ * @author Jason Dore
+ */
+public interface FormulaCacheTransport
+{
+    /**
+     * Get a formula's entry from the node that owns it.
+     *
+     * @param node
+     * @param formula
+     * @return the entry, or null if the node hasn't got it.
+     * @throws IOException if the node can't be reached.
+     */
+    byte[] get( String node, String formula ) throws IOException;
+
+    /**
+     * Give the node that owns a formula its entry.
+     *
+     * @param node
+     * @param formula
+     * @param entry
+     * @throws IOException if the node can't be reached.
+     */
+    void put( String node, String formula, byte[] entry ) throws IOException;
+}
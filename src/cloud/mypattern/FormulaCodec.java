@@ -0,0 +1,329 @@
+/*
+Writes a parsed formula as compact bytes, and reads it back.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+import cloud.mypattern.FormulaParser.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes the parser's postfix events as a compact array of bytes, the form in
+ * which a ShardedFormulaCache sends formulas between nodes, and reads them
+ * back as an Expression.
+ *
+ * After a version byte, each part is a byte of its kind followed by its 
+ * value: an integer as a zig-zag varint, a decimal as its 8 bytes, an 
+ * operator as a byte, and a name as a varint that is either 0 followed by the
+ * name in UTF-8, for a name not seen before, or one more than the index of 
+ * the earlier one. So "(a + 5) / a" takes 14 bytes.
+ *
+ * An encoder can be cleared and reused for the next formula.
+ *
+ * @author Jason Dore
+ */
+final class FormulaCodec implements PostfixHandler
+{
+    private static final byte VERSION = 1;
+
+    private static final byte INTEGER         = 0;
+    private static final byte DECIMAL         = 1;
+    private static final byte VARIABLE        = 2;
+    private static final byte CUSTOM_VARIABLE = 3;
+    private static final byte HASH_VARIABLE   = 4;
+    private static final byte FUNCTION1       = 5;
+    private static final byte FUNCTION2       = 6;
+    private static final byte PARENTHESIS     = 7;
+    private static final byte OPERATION       = 8;
+    private static final byte TERNARY         = 9;
+
+    private byte[] bytes = new byte[64];
+    private int count;
+
+    private String[] names = new String[8];
+    private int nameCount;
+
+
+    FormulaCodec()
+    {
+        clear();
+    }
+
+
+    void clear()
+    {
+        Arrays.fill( names, 0, nameCount, null );
+        nameCount = 0;
+        count = 0;
+        bytes[ count++ ] = VERSION;
+    }
+
+
+    /**
+     * @return the bytes of the formula written since the last clear().
+     */
+    byte[] toByteArray()
+    {
+        return Arrays.copyOf( bytes, count );
+    }
+
+
+    @Override
+    public void integer( int i, int start, int end )
+    {
+        write( INTEGER );
+        writeVarint( ( i << 1 ) ^ ( i >> 31 ) );
+    }
+
+
+    @Override
+    public void decimal( double d, int start, int end )
+    {
+        write( DECIMAL );
+        long l = Double.doubleToRawLongBits( d );
+        for( int shift=56; shift>=0; shift-=8 )
+            write( (byte)( l >>> shift ) );
+    }
+
+
+    @Override
+    public void variable( String token, boolean isCustom, boolean isHashToken, int start, int end )
+    {
+        write( isCustom ? CUSTOM_VARIABLE : isHashToken ? HASH_VARIABLE : VARIABLE );
+        writeName( token );
+    }
+
+
+    @Override
+    public void function( String function, int parameterCount, int start, int end )
+    {
+        write( parameterCount == 2 ? FUNCTION2 : FUNCTION1 );
+        writeName( function );
+    }
+
+
+    @Override
+    public void parenthesis( int start, int end )
+    {
+        write( PARENTHESIS );
+    }
+
+
+    @Override
+    public void operation( int operator )
+    {
+        write( OPERATION );
+        write( (byte)operator );
+    }
+
+
+    @Override
+    public void ternary()
+    {
+        write( TERNARY );
+    }
+
+
+    private void writeName( String name )
+    {
+        for( int i=0; i<nameCount; i++ )
+            if ( names[i].equals( name ) )
+            {
+                writeVarint( i + 1 );
+                return;
+            }
+
+        if ( nameCount == names.length )
+            names = Arrays.copyOf( names, nameCount * 2 );
+        names[ nameCount++ ] = name;
+
+        byte[] utf8 = name.getBytes( StandardCharsets.UTF_8 );
+        writeVarint( 0 );
+        writeVarint( utf8.length );
+        for( byte b : utf8 )
+            write( b );
+    }
+
+
+    private void writeVarint( int v )
+    {
+        while( ( v & ~0x7f ) != 0 )
+        {
+            write( (byte)( 0x80 | ( v & 0x7f ) ) );
+            v >>>= 7;
+        }
+        write( (byte)v );
+    }
+
+
+    private void write( byte b )
+    {
+        if ( count == bytes.length )
+            bytes = Arrays.copyOf( bytes, count * 2 );
+
+        bytes[ count++ ] = b;
+    }
+
+
+    /**
+     * Read a formula written by an encoder.
+     *
+     * @param bytes
+     * @return the formula.
+     * @throws IllegalArgumentException if the bytes aren't a formula, e.g. 
+     * because they were damaged on the way.
+     */
+    static Expression decode( byte[] bytes )
+    {
+        if ( bytes.length == 0 || bytes[0] != VERSION )
+            throw new IllegalArgumentException( "Unknown version of formula" );
+
+        Reader r = new Reader( bytes );
+        ExpressionBuilder builder = new ExpressionBuilder();
+        String[] names = new String[8];
+        int nameCount = 0;
+        int operands = 0; //on the builder's stack
+
+        while( r.position < bytes.length )
+        {
+            byte kind = r.read();
+            String name = null;
+
+            if ( kind >= VARIABLE && kind <= FUNCTION2 )
+            {
+                int n = r.readVarint();
+                if ( n == 0 )
+                {
+                    int length = r.readVarint();
+                    if ( length < 0 || length > bytes.length - r.position )
+                        throw new IllegalArgumentException( "Formula truncated" );
+
+                    name = new String( bytes, r.position, length, StandardCharsets.UTF_8 );
+                    r.position += length;
+
+                    if ( nameCount == names.length )
+                        names = Arrays.copyOf( names, nameCount * 2 );
+                    names[ nameCount++ ] = name;
+                }
+                else if ( n <= nameCount )
+                {
+                    name = names[ n - 1 ];
+                }
+                else
+                {
+                    throw new IllegalArgumentException( "Unknown name:" + n );
+                }
+            }
+
+            int needed;
+            switch( kind )
+            {
+                case INTEGER:         needed = 0; break;
+                case DECIMAL:         needed = 0; break;
+                case VARIABLE:        needed = 0; break;
+                case CUSTOM_VARIABLE: needed = 0; break;
+                case HASH_VARIABLE:   needed = 0; break;
+                case FUNCTION1:       needed = 1; break;
+                case FUNCTION2:       needed = 2; break;
+                case PARENTHESIS:     needed = 1; break;
+                case OPERATION:       needed = 2; break;
+                case TERNARY:         needed = 3; break;
+                default:
+                    throw new IllegalArgumentException( "Unknown part:" + kind );
+            }
+            if ( operands < needed )
+                throw new IllegalArgumentException( "Too few operands at:" + r.position );
+            operands += 1 - needed;
+
+            switch( kind )
+            {
+                case INTEGER:
+                    int z = r.readVarint();
+                    builder.integer( ( z >>> 1 ) ^ -( z & 1 ), 0, 0 );
+                    break;
+                case DECIMAL:
+                    long l = 0;
+                    for( int i=0; i<8; i++ )
+                        l = ( l << 8 ) | ( r.read() & 0xff );
+                    builder.decimal( Double.longBitsToDouble( l ), 0, 0 );
+                    break;
+                case VARIABLE:        builder.variable( name, false, false, 0, 0 ); break;
+                case CUSTOM_VARIABLE: builder.variable( name, true, false, 0, 0 ); break;
+                case HASH_VARIABLE:   builder.variable( name, false, true, 0, 0 ); break;
+                case FUNCTION1:       builder.function( name, 1, 0, 0 ); break;
+                case FUNCTION2:       builder.function( name, 2, 0, 0 ); break;
+                case PARENTHESIS:     builder.parenthesis( 0, 0 ); break;
+                case OPERATION:
+                    int operator = r.read();
+                    if ( FormulaParser.getOperatorName( operator ) == null )
+                        throw new IllegalArgumentException( "Unknown operator:" + operator );
+                    builder.operation( operator );
+                    break;
+                default:              builder.ternary();
+            }
+        }
+
+        if ( operands != 1 )
+            throw new IllegalArgumentException( "Not one formula but:" + operands );
+
+        return builder.pop();
+    }
+
+
+    private static final class Reader
+    {
+        private final byte[] bytes;
+        private int position = 1; //after the version
+
+
+        Reader( byte[] bytes )
+        {
+            this.bytes = bytes;
+        }
+
+
+        byte read()
+        {
+            if ( position == bytes.length )
+                throw new IllegalArgumentException( "Formula truncated" );
+
+            return bytes[ position++ ];
+        }
+
+
+        int readVarint()
+        {
+            int v = 0;
+            for( int shift=0; shift<35; shift+=7 )
+            {
+                byte b = read();
+                v |= ( b & 0x7f ) << shift;
+                if ( b >= 0 )
+                    return v;
+            }
+            throw new IllegalArgumentException( "Bad number at:" + position );
+        }
+    }
+}
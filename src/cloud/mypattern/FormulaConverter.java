@@ -0,0 +1,344 @@
+/*
+Converts a file of formulas, one per line, to XML.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Converts a file of formulas, one per line, to a file of their XML, one per
+ * line, e.g. for migrating stored formulas:
+ * 
+ * <pre>
+ * java -cp FormulaParser.jar cloud.mypattern.FormulaConverter formulas.txt formulas.xml errors.txt
+ * </pre>
+ * 
+ * The input, encoded as UTF-8, is memory mapped and split into chunks of 
+ * about a megabyte that end at the end of a line. The chunks are converted in 
+ * parallel and written in order, so line n of the output is always the XML of 
+ * line n of the input. A blank line, or a formula that isn't valid, gives a 
+ * blank line. Each invalid formula is also written to the errors file, if 
+ * there is one, as its line number (from 1), the offset and message of the 
+ * error, and the formula, separated by tabs.
+ * 
+ * @author Jason Dore
+ */
+public final class FormulaConverter
+{
+    private static final int CHUNK_SIZE = 1 << 20;
+    
+    private final int threads;
+    private PrintStream progress;
+    private long formulaCount;
+    private long errorCount;
+    
+    
+    /**
+     * The converted lines of one chunk.
+     */
+    private static final class Chunk
+    {
+        final Bytes xml = new Bytes();
+        final List<Integer> errorLines = new ArrayList<>(); //within the chunk, from 0
+        final List<String> errors = new ArrayList<>();
+        int lines;
+        int formulas;
+        long inputBytes;
+    }
+    
+    
+    /**
+     * A ByteArrayOutputStream whose content can be written without copying it.
+     */
+    private static final class Bytes extends ByteArrayOutputStream
+    {
+        Bytes()
+        {
+            super( CHUNK_SIZE * 4 );
+        }
+        
+        ByteBuffer wrap()
+        {
+            return ByteBuffer.wrap( buf, 0, count );
+        }
+    }
+    
+    
+    /**
+     * @param threads the number of chunks to convert at once.
+     */
+    public FormulaConverter( int threads )
+    {
+        if ( threads < 1 )
+            throw new IllegalArgumentException( "threads:" + threads );
+        
+        this.threads = threads;
+    }
+    
+    
+    /**
+     * @param args the input, output and optionally errors file.
+     * @throws Exception 
+     */
+    public static void main( String[] args ) throws Exception
+    {
+        if ( args.length < 2 || args.length > 3 )
+        {
+            System.err.println( "Usage: FormulaConverter input output [errors]" );
+            System.exit( 2 );
+        }
+        
+        FormulaConverter converter = new FormulaConverter( Runtime.getRuntime().availableProcessors() );
+        converter.setProgress( System.err );
+        converter.convert( Paths.get( args[0] ), Paths.get( args[1] ), args.length > 2 ? Paths.get( args[2] ) : null );
+        
+        if ( converter.getErrorCount() > 0 )
+            System.exit( 1 );
+    }
+    
+    
+    /**
+     * @param progress where to report progress about once a second, and the
+     * totals once done, or null for nothing.
+     */
+    public void setProgress( PrintStream progress )
+    {
+        this.progress = progress;
+    }
+    
+    
+    /**
+     * @return the number of formulas, valid or not, in the last convert().
+     */
+    public long getFormulaCount()
+    {
+        return formulaCount;
+    }
+    
+    
+    /**
+     * @return the number of invalid formulas in the last convert().
+     */
+    public long getErrorCount()
+    {
+        return errorCount;
+    }
+    
+    
+    /**
+     * Convert the formulas in the input, writing their XML to output and 
+     * their errors, if errors isn't null, to errors. 
+     * 
+     * @param input
+     * @param output
+     * @param errors
+     * @throws IOException
+     */
+    public void convert( Path input, Path output, Path errors ) throws IOException
+    {
+        formulaCount = 0;
+        errorCount = 0;
+        
+        ExecutorService pool = Executors.newFixedThreadPool( threads, r -> {
+            Thread t = new Thread( r, "FormulaConverter" );
+            t.setDaemon( true );
+            return t;
+        } );
+        
+        try ( FileChannel in = FileChannel.open( input, StandardOpenOption.READ );
+              FileChannel out = FileChannel.open( output, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING );
+              FileChannel err = errors == null ? null : FileChannel.open( errors, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING ) )
+        {
+            long size = in.size();
+            long started = System.nanoTime();
+            long reported = started;
+            long line = 1;
+            long done = 0;
+            
+            //Enough chunks are queued to keep the threads busy while the 
+            //first is written, but no more, so the memory used is bounded.
+            ArrayDeque<Future<Chunk>> queued = new ArrayDeque<>();
+            long position = 0;
+            
+            while( position < size || ! queued.isEmpty() )
+            {
+                while( position < size && queued.size() < threads * 2 )
+                {
+                    long end = lineEnd( in, Math.min( position + CHUNK_SIZE, size ), size );
+                    MappedByteBuffer mapped = in.map( FileChannel.MapMode.READ_ONLY, position, end - position );
+                    queued.add( pool.submit( () -> convert( mapped ) ) );
+                    position = end;
+                }
+                
+                Chunk chunk = queued.remove().get();
+                write( out, chunk.xml.wrap() );
+                
+                if ( err != null && ! chunk.errors.isEmpty() )
+                {
+                    StringBuilder sb = new StringBuilder();
+                    for( int i=0; i<chunk.errors.size(); i++ )
+                        sb.append( line + chunk.errorLines.get( i ) ).append( '\t' ).append( chunk.errors.get( i ) ).append( '\n' );
+                    
+                    write( err, StandardCharsets.UTF_8.encode( sb.toString() ) );
+                }
+                
+                line += chunk.lines;
+                done += chunk.inputBytes;
+                formulaCount += chunk.formulas;
+                errorCount += chunk.errors.size();
+                
+                long now = System.nanoTime();
+                if ( progress != null && ( now - reported > 1000000000L || queued.isEmpty() ) )
+                {
+                    report( done, size, now - started );
+                    reported = now;
+                }
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new IOException( e );
+        } catch ( ExecutionException e ) {
+            throw new IOException( e.getCause() );
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+    
+    
+    private void report( long done, long size, long nanos )
+    {
+        double seconds = Math.max( nanos, 1 ) / 1e9;
+        progress.printf( "%d%% %d formulas, %d errors, %.0f formulas/s, %.1f MB/s%n",
+                         size == 0 ? 100 : done * 100 / size, formulaCount, errorCount, 
+                         formulaCount / seconds, done / seconds / 1e6 );
+    }
+    
+    
+    /**
+     * @return the position after the end of the line containing position - 1, 
+     * i.e. position itself if that starts a line.
+     */
+    private static long lineEnd( FileChannel in, long position, long size ) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( 8192 );
+        Buffer b = buffer; //as Java 8 has no ByteBuffer.clear()
+        
+        if ( position >= size )
+            return size;
+        
+        //Look for the newline from the byte before position, which may end the line.
+        for( long p = position - 1; p < size; )
+        {
+            b.clear();
+            int n = in.read( buffer, p );
+            for( int i=0; i<n; i++ )
+                if ( buffer.get( i ) == '\n' )
+                    return p + i + 1;
+            
+            p += n;
+        }
+        return size;
+    }
+    
+    
+    private static void write( FileChannel channel, ByteBuffer buffer ) throws IOException
+    {
+        while( buffer.hasRemaining() )
+            channel.write( buffer );
+    }
+    
+    
+    /**
+     * Convert the formulas of one chunk.
+     */
+    private static Chunk convert( MappedByteBuffer mapped ) throws Exception
+    {
+        Chunk chunk = new Chunk();
+        chunk.inputBytes = mapped.remaining();
+        
+        CharBuffer chars = StandardCharsets.UTF_8.decode( mapped );
+        String text = chars.toString();
+        
+        XMLTextFormulaHandler handler = new XMLTextFormulaHandler( chunk.xml );
+        
+        for( int start = 0; start < text.length(); chunk.lines++ )
+        {
+            int end = text.indexOf( '\n', start );
+            if ( end < 0 )
+                end = text.length();
+            
+            int next = end + 1;
+            if ( end > start && text.charAt( end - 1 ) == '\r' )
+                end--;
+            
+            String formula = text.substring( start, end );
+            start = next;
+            
+            if ( ! formula.trim().isEmpty() )
+            {
+                chunk.formulas++;
+                try {
+                    FormulaParser.parse( formula, handler );
+                } catch ( FormulaParser.FormulaSyntaxException e ) {
+                    chunk.errorLines.add( chunk.lines );
+                    chunk.errors.add( error( formula, e ) );
+                }
+            }
+            handler.newLine();
+        }
+        handler.flush();
+        return chunk;
+    }
+    
+    
+    /**
+     * @return the offset, message and formula, separated by tabs.
+     */
+    private static String error( String formula, FormulaParser.FormulaSyntaxException e )
+    {
+        Throwable cause = e.getCause();
+        int offset = cause instanceof Stream.SyntaxException ? ((Stream.SyntaxException)cause).getOffset() : -1;
+        String message = ( cause != null ? cause.getMessage() : e.getMessage() ).trim();
+        return offset + "\t" + message + "\t" + formula;
+    }
+}
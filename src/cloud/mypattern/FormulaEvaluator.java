@@ -0,0 +1,530 @@
+/*
+Evaluates parsed formulas, optionally with their derivatives.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+import cloud.mypattern.FormulaParser.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Evaluates parsed formulas, getting the value of each variable from a 
+ * VariableResolver.
+ * 
+ * The functions are those of Seamly2D/Valentina: sin, cos, tan, asin, acos 
+ * and atan in radians, and sinD, cosD etc. in degrees; sinh, cosh, tanh, 
+ * asinh, acosh and atanh; log2, log10, log (to base 10), ln, exp, sqrt, sign,
+ * rint, abs, degTorad and radTodeg; and min, max, sum, avg and fmod of two 
+ * values. A comparison is 1 if true and 0 if not, and a ternary takes any
+ * condition other than 0 as true, evaluating only the branch taken.
+ * 
+ * differentiate() also works out the partial derivatives of a formula with 
+ * respect to any of its variables, in the same single pass, by carrying the
+ * gradient of each part along with its value (forward mode automatic 
+ * differentiation). So how a length changes with each of hundreds of 
+ * measurements costs one evaluation rather than one more per measurement.
+ * 
+ * <pre>
+ * FormulaEvaluator evaluator = new FormulaEvaluator( VariableResolver.of( measurements ) );
+ * double length = evaluator.evaluate( parser.getExpression() );
+ * FormulaEvaluator.Derivatives d = evaluator.differentiate( parser.getExpression(), "bust_circ", "waist_circ" );
+ * d.getPartial( "bust_circ" );
+ * </pre>
+ * 
+ * To find which formulas of a pattern are slow, give the evaluator an 
+ * EvaluationProfiler and evaluate each formula with an id.
+ * 
+ * Formulas are walked with their own stack, so deeply nested ones are fine. 
+ * An evaluator may be shared between threads if its resolver can be.
+ * 
+ * @author Jason Dore
+ */
+public class FormulaEvaluator
+{
+    private static final double DEGREES = Math.PI / 180;
+    
+    private static final double[] NO_GRADIENT = new double[0];
+    
+    private final VariableResolver resolver;
+    
+    private volatile EvaluationProfiler profiler;
+    
+    
+    public FormulaEvaluator( VariableResolver resolver )
+    {
+        this.resolver = resolver;
+    }
+    
+    
+    /**
+     * @param profiler to record the formulas evaluated with an id while it 
+     * is enabled, or null for none.
+     */
+    public void setProfiler( EvaluationProfiler profiler )
+    {
+        this.profiler = profiler;
+    }
+    
+    
+    /**
+     * The value of a formula and its partial derivatives.
+     */
+    public static final class Derivatives
+    {
+        private final double value;
+        private final String[] variables;
+        private final double[] partials;
+        
+        
+        Derivatives( double value, String[] variables, double[] partials )
+        {
+            this.value = value;
+            this.variables = variables;
+            this.partials = partials;
+        }
+        
+        
+        public double getValue()
+        {
+            return value;
+        }
+        
+        
+        /**
+         * @param variable one of those the derivatives were asked for.
+         * @return the partial derivative with respect to it.
+         * @throws IllegalArgumentException if they weren't asked for it.
+         */
+        public double getPartial( String variable )
+        {
+            for( int i=0; i<variables.length; i++ )
+            {
+                if ( variables[i].equals( variable ) )
+                    return partials[i];
+            }
+            throw new IllegalArgumentException( "Not differentiated with respect to:" + variable );
+        }
+        
+        
+        /**
+         * @return the partial derivatives in the order the variables were given.
+         */
+        public double[] getPartials()
+        {
+            return partials.clone();
+        }
+        
+        
+        @Override
+        public String toString()
+        {
+            return value + " " + Arrays.toString( partials );
+        }
+    }
+    
+    
+    /**
+     * @param e
+     * @return the value of the formula.
+     * @throws IllegalArgumentException for an unknown function, or whatever
+     * the resolver throws.
+     */
+    public double evaluate( Expression e )
+    {
+        return evaluate( null, null, e );
+    }
+    
+    
+    /**
+     * Evaluate a formula, recording it against the id in the profiler, if 
+     * there is one and it is enabled. Without an id it is evaluated but not
+     * recorded, as by evaluate( Expression ).
+     * 
+     * @param id e.g. the id of the object and the attribute the formula is of,
+     * or null.
+     * @param e
+     * @return the value of the formula.
+     * @throws IllegalArgumentException for an unknown function, or whatever
+     * the resolver throws.
+     */
+    public double evaluate( String id, Expression e )
+    {
+        EvaluationProfiler p = profiler;
+        return evaluate( id, id != null && p != null && p.isEnabled() ? p : null, e );
+    }
+    
+    
+    /**
+     * Evaluate a formula, counting its parts and variables only if it is 
+     * being profiled or recorded by the Flight Recorder.
+     */
+    private double evaluate( String id, EvaluationProfiler p, Expression e )
+    {
+        Object event = FormulaEvents.begin( FormulaEvents.EVALUATE );
+        if ( p == null && event == null )
+            return evaluate( e, null, 0, null )[0][0];
+        
+        int[] counts = new int[2];
+        long start = System.nanoTime();
+        RuntimeException error = null;
+        try {
+            return evaluate( e, null, 0, counts )[0][0];
+        } catch ( RuntimeException x ) {
+            error = x;
+            throw x;
+        } finally {
+            if ( p != null )
+                p.record( id, System.nanoTime() - start, counts[0], counts[1] );
+            
+            FormulaEvents.end( event, e, counts[0], error );
+        }
+    }
+    
+    
+    /**
+     * Evaluate a formula along with its partial derivatives with respect to
+     * the variables given. 
+     * 
+     * Where a function has no derivative, e.g. sign, or a comparison, the 
+     * derivative is taken as 0. That of a ternary is the derivative of the 
+     * branch taken.
+     * 
+     * @param e
+     * @param variables
+     * @return the value and partial derivatives.
+     * @throws IllegalArgumentException for an unknown function, or whatever
+     * the resolver throws.
+     */
+    public Derivatives differentiate( Expression e, String... variables )
+    {
+        Map<String,Integer> indexes = new HashMap<>();
+        for( int i=0; i<variables.length; i++ )
+            indexes.put( variables[i], i );
+        
+        double[][] result = evaluate( e, indexes, variables.length, null );
+        return new Derivatives( result[0][0], variables.clone(), result[1] );
+    }
+    
+    
+    /**
+     * Evaluate the formula with the gradient of each part, of length n, 
+     * seeding that of each variable in indexes.
+     * 
+     * @param counts if not null, set to the number of parts evaluated and 
+     * the number of variables resolved.
+     * @return the value, in an array of its own, and the gradient.
+     */
+    private double[][] evaluate( Expression e, Map<String,Integer> indexes, int n, int[] counts )
+    {
+        //The parts being evaluated, and how many operands each has had so far.
+        Expression[] parts = new Expression[16];
+        int[] states = new int[16];
+        int top = 0;
+        
+        //The values of the operands evaluated, and their gradients.
+        double[] values = new double[16];
+        double[][] gradients = new double[16][];
+        int count = 0;
+        
+        int evaluated = 0;
+        int resolved = 0;
+        
+        parts[ top ] = e;
+        states[ top++ ] = 0;
+        
+        while( top > 0 )
+        {
+            e = parts[ top - 1 ];
+            int state = states[ top - 1 ];
+            
+            if ( count == values.length )
+            {
+                values = Arrays.copyOf( values, count * 2 );
+                gradients = Arrays.copyOf( gradients, count * 2 );
+            }
+            
+            if ( e.getParameterCount() == 0 ) //a token
+            {
+                double[] g = gradients[ count ];
+                if ( g == null )
+                    g = gradients[ count ] = n == 0 ? NO_GRADIENT : new double[ n ];
+                else if ( n > 0 )
+                    Arrays.fill( g, 0 );
+                
+                if ( e instanceof IntegerToken )
+                {
+                    values[ count++ ] = ((IntegerToken)e).i;
+                }
+                else if ( e instanceof DoubleToken )
+                {
+                    values[ count++ ] = ((DoubleToken)e).d;
+                }
+                else 
+                {
+                    String name = ((Token)e).token;
+                    values[ count++ ] = resolver.resolve( name );
+                    resolved++;
+                    
+                    Integer index = indexes == null ? null : indexes.get( name );
+                    if ( index != null )
+                        g[ index ] = 1;
+                }
+                
+                parts[ --top ] = null;
+                evaluated++;
+                continue;
+            }
+            
+            if ( e instanceof TertiaryOperation )
+            {
+                TertiaryOperation t = (TertiaryOperation)e;
+                
+                if ( state == 2 ) //the branch taken has been evaluated
+                {
+                    parts[ --top ] = null;
+                    evaluated++;
+                    continue;
+                }
+                
+                if ( state == 0 )
+                {
+                    e = t.condition;
+                }
+                else 
+                {
+                    e = values[ --count ] != 0 ? t.ifTrue : t.ifFalse;
+                }
+                
+                states[ top - 1 ] = state + 1;
+            }
+            else if ( state < e.getParameterCount() )
+            {
+                states[ top - 1 ] = state + 1;
+                e = e.getParameter( state );
+            }
+            else //all the operands have been evaluated
+            {
+                if ( e instanceof TwoParameterOperation )
+                {
+                    count--;
+                    operation( ((TwoParameterOperation)e).operator, values, gradients, count - 1 );
+                }
+                else if ( e instanceof Function )
+                {
+                    Function f = (Function)e;
+                    if ( f.parameter2 == null )
+                    {
+                        function( f.function, values, gradients, count - 1 );
+                    }
+                    else
+                    {
+                        count--;
+                        function2( f.function, values, gradients, count - 1 );
+                    }
+                }
+                //A parenthesis has the value of what's inside.
+                
+                parts[ --top ] = null;
+                evaluated++;
+                continue;
+            }
+            
+            if ( top == parts.length )
+            {
+                parts = Arrays.copyOf( parts, top * 2 );
+                states = Arrays.copyOf( states, top * 2 );
+            }
+            
+            parts[ top ] = e;
+            states[ top++ ] = 0;
+        }
+        
+        if ( counts != null )
+        {
+            counts[0] = evaluated;
+            counts[1] = resolved;
+        }
+        
+        return new double[][]{ { values[0] }, gradients[0] };
+    }
+    
+    
+    /**
+     * Replace the operands at i and i+1 with the result of the operation.
+     */
+    private static void operation( int operator, double[] values, double[][] gradients, int i )
+    {
+        double a = values[i];
+        double b = values[i+1];
+        double value;
+        double da;
+        double db;
+        
+        switch( operator )
+        {
+            case FormulaParser.OP_ADD:      value = a + b; da = 1;     db = 1;          break;
+            case FormulaParser.OP_SUBTRACT: value = a - b; da = 1;     db = -1;         break;
+            case FormulaParser.OP_MULT:     value = a * b; da = b;     db = a;          break;
+            case FormulaParser.OP_DIVIDE:   value = a / b; da = 1 / b; db = -a / b / b; break;
+                
+            case FormulaParser.OP_POWER:    
+                value = Math.pow( a, b ); 
+                da = b * Math.pow( a, b - 1 ); 
+                db = value * Math.log( a ); 
+                break;
+                
+            default:
+                switch( operator )
+                {
+                    case FormulaParser.OP_GREATERTHAN:     value = a > b ? 1 : 0; break;
+                    case FormulaParser.OP_LESSTHAN:        value = a < b ? 1 : 0; break;
+                    case FormulaParser.OP_GREATERTHANOREQ: value = a >= b ? 1 : 0; break;
+                    case FormulaParser.OP_LESSTHANOREQ:    value = a <= b ? 1 : 0; break;
+                    case FormulaParser.OP_EQUALS:          value = a == b ? 1 : 0; break;
+                    case FormulaParser.OP_NOTEQUALS:       value = a != b ? 1 : 0; break;
+                    default:
+                        throw new IllegalArgumentException( "Unknown operator:" + operator );
+                }
+                values[i] = value;
+                Arrays.fill( gradients[i], 0 );
+                return;
+        }
+        
+        values[i] = value;
+        combine( gradients[i], da, gradients[i+1], db );
+    }
+    
+    
+    /**
+     * Replace the operand at i with the result of the function.
+     */
+    private static void function( String function, double[] values, double[][] gradients, int i )
+    {
+        double x = values[i];
+        double value;
+        double d; //the derivative
+        
+        switch( function )
+        {
+            case "-":        value = -x;                        d = -1; break;
+            case "sin":      value = Math.sin( x );             d = Math.cos( x ); break;
+            case "cos":      value = Math.cos( x );             d = -Math.sin( x ); break;
+            case "tan":      value = Math.tan( x );             d = 1 + value * value; break;
+            case "asin":     value = Math.asin( x );            d = 1 / Math.sqrt( 1 - x * x ); break;
+            case "acos":     value = Math.acos( x );            d = -1 / Math.sqrt( 1 - x * x ); break;
+            case "atan":     value = Math.atan( x );            d = 1 / ( 1 + x * x ); break;
+            case "sinD":     value = Math.sin( x * DEGREES );   d = Math.cos( x * DEGREES ) * DEGREES; break;
+            case "cosD":     value = Math.cos( x * DEGREES );   d = -Math.sin( x * DEGREES ) * DEGREES; break;
+            case "tanD":     value = Math.tan( x * DEGREES );   d = ( 1 + value * value ) * DEGREES; break;
+            case "asinD":    value = Math.asin( x ) / DEGREES;  d = 1 / Math.sqrt( 1 - x * x ) / DEGREES; break;
+            case "acosD":    value = Math.acos( x ) / DEGREES;  d = -1 / Math.sqrt( 1 - x * x ) / DEGREES; break;
+            case "atanD":    value = Math.atan( x ) / DEGREES;  d = 1 / ( 1 + x * x ) / DEGREES; break;
+            case "sinh":     value = Math.sinh( x );            d = Math.cosh( x ); break;
+            case "cosh":     value = Math.cosh( x );            d = Math.sinh( x ); break;
+            case "tanh":     value = Math.tanh( x );            d = 1 - value * value; break;
+            case "asinh":    value = asinh( x );                d = 1 / Math.sqrt( x * x + 1 ); break;
+            case "acosh":    value = Math.log( x + Math.sqrt( x * x - 1 ) ); d = 1 / Math.sqrt( x * x - 1 ); break;
+            case "atanh":    value = 0.5 * Math.log( ( 1 + x ) / ( 1 - x ) ); d = 1 / ( 1 - x * x ); break;
+            case "log2":     value = Math.log( x ) / Math.log( 2 ); d = 1 / ( x * Math.log( 2 ) ); break;
+            case "log10":
+            case "log":      value = Math.log10( x );           d = 1 / ( x * Math.log( 10 ) ); break;
+            case "ln":       value = Math.log( x );             d = 1 / x; break;
+            case "exp":      value = Math.exp( x );             d = value; break;
+            case "sqrt":     value = Math.sqrt( x );            d = 0.5 / value; break;
+            case "sign":     value = Math.signum( x );          d = 0; break;
+            case "rint":     value = Math.rint( x );            d = 0; break;
+            case "abs":      value = Math.abs( x );             d = Math.signum( x ); break;
+            case "degTorad": value = x * DEGREES;               d = DEGREES; break;
+            case "radTodeg": value = x / DEGREES;               d = 1 / DEGREES; break;
+            default:
+                throw new IllegalArgumentException( "Unknown function:" + function );
+        }
+        
+        values[i] = value;
+        combine( gradients[i], d, NO_GRADIENT, 0 );
+    }
+    
+    
+    /**
+     * Replace the operands at i and i+1 with the result of the function.
+     */
+    private static void function2( String function, double[] values, double[][] gradients, int i )
+    {
+        double a = values[i];
+        double b = values[i+1];
+        
+        switch( function )
+        {
+            case "min": 
+            case "max":
+                //The gradient is that of the one chosen.
+                if ( function.equals( "min" ) ? b < a : b > a )
+                {
+                    values[i] = b;
+                    System.arraycopy( gradients[i+1], 0, gradients[i], 0, gradients[i].length );
+                }
+                return;
+                
+            case "sum":  values[i] = a + b;         combine( gradients[i], 1, gradients[i+1], 1 ); return;
+            case "avg":  values[i] = ( a + b ) / 2; combine( gradients[i], 0.5, gradients[i+1], 0.5 ); return;
+                
+            case "fmod": 
+                //a % b is a - b * q where q is a / b rounded towards 0.
+                double q = a / b;
+                values[i] = a % b;  
+                combine( gradients[i], 1, gradients[i+1], q < 0 ? -Math.ceil( q ) : -Math.floor( q ) ); 
+                return;
+                
+            default:
+                throw new IllegalArgumentException( "Unknown function:" + function + "(2)" );
+        }
+    }
+    
+    
+    /**
+     * Set ga to da * ga + db * gb. Where a gradient is 0 its derivative isn't
+     * used, so that e.g. the NaN derivative of a^b with respect to b at a=0 
+     * only matters if b depends on the variable.
+     */
+    private static void combine( double[] ga, double da, double[] gb, double db )
+    {
+        for( int i=0; i<ga.length; i++ )
+        {
+            double a = ga[i] == 0 ? 0 : da * ga[i];
+            double b = gb.length == 0 || gb[i] == 0 ? 0 : db * gb[i];
+            ga[i] = a + b;
+        }
+    }
+    
+    
+    private static double asinh( double x )
+    {
+        //Math has no asinh() before Java 9. Working with |x| keeps the 
+        //precision for large negative x.
+        double y = Math.log( Math.abs( x ) + Math.sqrt( x * x + 1 ) );
+        return x < 0 ? -y : y;
+    }
+}
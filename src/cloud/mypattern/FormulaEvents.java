@@ -0,0 +1,116 @@
+/*
+Records parsing, marshalling and evaluation as Flight Recorder events, where there is one.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+/**
+ * Records parsing, marshalling to XML and evaluation as JDK Flight Recorder
+ * events, if there is a Flight Recorder, i.e. on Java 11 or later, or 8u262 
+ * or later.
+ * 
+ * The events themselves are in JFRFormulaEvents, under src-jfr, which is only
+ * compiled by a JDK that has jdk.jfr, and only loaded, by name, if 
+ * jdk.jfr.Event can be. Otherwise, or if the system property 
+ * cloud.mypattern.jfr is false, begin() returns null and nothing else is 
+ * done, so the only cost is a check for null. With a Flight Recorder, 
+ * JFRFormulaEvents doesn't register its events until a recording is 
+ * running. Until then begin() returns null after one more check, and the 
+ * first formula takes about as long as with the events off.
+ * 
+ * Use: 
+ * <pre>
+ * Object event = FormulaEvents.begin( FormulaEvents.PARSE );
+ * ...
+ * FormulaEvents.end( event, formula, nodes, error );
+ * </pre>
+ * 
+ * @author Jason Dore
+ */
+abstract class FormulaEvents
+{
+    static final int PARSE    = 0;
+    static final int MARSHAL  = 1;
+    static final int EVALUATE = 2;
+    
+    private static final FormulaEvents EVENTS = load();
+    
+    
+    private static FormulaEvents load()
+    {
+        if ( "false".equals( System.getProperty( "cloud.mypattern.jfr" ) ) )
+            return null;
+        
+        try {
+            Class.forName( "jdk.jfr.Event" );
+            return (FormulaEvents)Class.forName( "cloud.mypattern.JFRFormulaEvents" ).getDeclaredConstructor().newInstance();
+        } catch ( Throwable t ) { //no Flight Recorder
+            return null;
+        }
+    }
+    
+    
+    /**
+     * @param kind PARSE, MARSHAL or EVALUATE.
+     * @return the event, timing from now, or null if it isn't being recorded.
+     */
+    static Object begin( int kind )
+    {
+        return EVENTS == null ? null : EVENTS.start( kind );
+    }
+    
+    
+    /**
+     * End the event, and record it if it took at least its threshold.
+     * 
+     * @param event from begin(), may be null.
+     * @param formula a String, Stream or Expression, only made into text if 
+     * the event is recorded.
+     * @param nodes the number of parts of the formula parsed, written or evaluated.
+     * @param error why it failed, or null if it didn't.
+     */
+    static void end( Object event, Object formula, int nodes, Throwable error )
+    {
+        if ( event != null )
+            EVENTS.finish( event, formula, nodes, error );
+    }
+    
+    
+    abstract Object start( int kind );
+    
+    
+    abstract void finish( Object event, Object formula, int nodes, Throwable error );
+    
+    
+    static String text( Object formula )
+    {
+        if ( formula instanceof Stream )
+            return new String( ((Stream)formula).chars, 0, ((Stream)formula).length );
+        
+        if ( formula instanceof FormulaParser.Expression )
+            return ((FormulaParser.Expression)formula).toNormativeString();
+        
+        return String.valueOf( formula );
+    }
+}
@@ -0,0 +1,56 @@
+/*
+Receives the parts of a formula as events, in the order they appear in the XML.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+/**
+ * A SAX style handler for a parsed formula.
+ *
+ * Events arrive in document order, so an operation's start event is followed
+ * by the events of each of its operands and then its end event. The type names
+ * are the same as those used in the XML output, e.g. add, ternary.
+ *
+ * @author Jason Dore
+ */
+public interface FormulaHandler
+{
+    void startOperation( String type ) throws Exception;
+
+    void endOperation() throws Exception;
+
+    void startFunction( String function ) throws Exception;
+
+    void endFunction() throws Exception;
+
+    void startParenthesis() throws Exception;
+
+    void endParenthesis() throws Exception;
+
+    void variable( String name, boolean isCustom, boolean isHashToken ) throws Exception;
+
+    void integer( int i ) throws Exception;
+
+    void decimal( double d ) throws Exception;
+}
@@ -31,7 +31,10 @@ SOFTWARE.
 package cloud.mypattern;
 
 import java.io.CharArrayWriter;
+import java.io.OutputStream;
 import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collection;
 import javax.xml.stream.XMLStreamWriter;    
 import javax.xml.stream.XMLOutputFactory;   
 import javax.xml.stream.XMLStreamException; 
@@ -60,22 +63,96 @@ public class FormulaParser
     static final int OP_LESSTHANOREQ    = 12;
     
     //These can not validly be included in any token    
-    char[] delimiters = {' ', '\n', '\t', '(', ')', '*', '+', '-', '/', '^', ',', ';',':','<','>','?','=' };
+    static final char[] delimiters = {' ', '\n', '\t', '(', ')', '*', '+', '-', '/', '^', ',', ';',':','<','>','?','=' };
+    
+    //These can only appear between two parameters, unlike '-' which might be: -1
+    private static final char[] binaryOperators = { '+', '*', '/', '^' };
     
     
     private static boolean debug = false;
     
     /** 
      * A part of the formula.
+     * 
+     * Expressions are immutable and hold no reference to the parser that
+     * created them, so a parsed tree may be shared freely between threads.
      */
-    abstract class Expression
+    public static abstract class Expression
     {        
+        Expression()
+        {
+        }
+        
+        /**
+         * @return the formula as written, less any whitespace.
+         */
         String toNormativeString()
         {
-            return toString();
+            StringBuilder sb = new StringBuilder();
+            print( this, sb, false );
+            return sb.toString();
+        }
+        
+        /**
+         * Return the formula without whitespace and with only the parentheses
+         * that the precedence of its operators needs, e.g. "a+(b*c)" and 
+         * "( a + b * c )" are both a+b*c. So formulas that mean the same can
+         * be told apart from those that don't by comparing strings.
+         * 
+         * @return the canonical form of the formula.
+         */
+        public String toCanonicalString()
+        {
+            StringBuilder sb = new StringBuilder();
+            print( this, sb, true );
+            return sb.toString();
+        }
+        
+        /**
+         * Return a 64 bit hash of the structure of the formula, leaving out
+         * any parentheses, so it is the same for formulas with the same 
+         * canonical form. The hash doesn't change between runs or JVMs, so
+         * can be stored.
+         * 
+         * @return the hash.
+         * @see #toCanonicalString() 
+         */
+        public long structuralHash()
+        {
+            return StructuralHash.of( this );
+        }
+        
+        /**
+         * @return the number of operands, 0 for a token.
+         */
+        int getParameterCount()
+        {
+            return 0;
+        }
+        
+        /**
+         * @return the i'th operand, in the order they appear in the formula.
+         */
+        Expression getParameter( int i )
+        {
+            throw new IndexOutOfBoundsException( "No parameter:" + i );
+        }
+        
+        /**
+         * @return a copy of this expression with the i'th operand replaced.
+         */
+        Expression withParameter( int i, Expression e )
+        {
+            throw new IndexOutOfBoundsException( "No parameter:" + i );
         }
 
-        abstract void marshallXML( XMLStreamWriter xmlStream ) throws XMLStreamException;
+        /**
+         * Send this expression to the handler, in the same order as the XML.
+         * 
+         * @param h
+         * @throws Exception whatever the handler throws.
+         */
+        public abstract void emit( FormulaHandler h ) throws Exception;
     }
     
     
@@ -83,7 +160,9 @@ public class FormulaParser
     {
         FormulaSyntaxException( Exception cause ) 
         {
-            super(cause);
+            //A syntax error is an expected outcome, so like its cause this 
+            //doesn't pay for a stack trace.
+            super( cause == null ? null : cause.toString(), cause, true, ! ( cause instanceof Stream.SyntaxException ) );
         }
     }    
     
@@ -94,70 +173,86 @@ public class FormulaParser
      * For example:  b ? n : m
      * 
      */
-    class TertiaryOperation extends Expression
+    public static final class TertiaryOperation extends Expression
     {
-        Expression condition;
-        Expression ifTrue;
-        Expression ifFalse;
+        final Expression condition;
+        final Expression ifTrue;
+        final Expression ifFalse;
+        
+        public TertiaryOperation( Expression condition, Expression ifTrue, Expression ifFalse ) 
+        {
+            this.condition = condition;
+            this.ifTrue = ifTrue;
+            this.ifFalse = ifFalse;
+        }
+        
+        public Expression getCondition()
+        {
+            return condition;
+        }
+        
+        public Expression getIfTrue()
+        {
+            return ifTrue;
+        }
         
-        TertiaryOperation( Expression e ) 
+        public Expression getIfFalse()
         {
-            this.condition = e;
+            return ifFalse;
         }
         
         @Override
-        public String toString()
+        int getParameterCount()
+        {
+            return 3;
+        }
+        
+        @Override
+        Expression getParameter( int i )
+        {
+            switch( i )
+            {
+                case 0:  return condition;
+                case 1:  return ifTrue;
+                case 2:  return ifFalse;
+                default: return super.getParameter( i );
+            }
+        }
+        
+        @Override
+        Expression withParameter( int i, Expression e )
         {
-            return toString( false );
+            switch( i )
+            {
+                case 0:  return new TertiaryOperation( e, ifTrue, ifFalse );
+                case 1:  return new TertiaryOperation( condition, e, ifFalse );
+                case 2:  return new TertiaryOperation( condition, ifTrue, e );
+                default: return super.withParameter( i, e );
+            }
         }
         
-        private String toString( boolean normative )
+        @Override
+        public String toString()
         {
             StringBuilder sb = new StringBuilder();
-            boolean showWithBrackets = (!normative);
-            if ( showWithBrackets )
-                sb.append( " [");
-            
-            if ( normative )
-                sb.append( condition.toNormativeString() );
-            else
-                sb.append( condition ).append(" ");
-            
+            sb.append( " [");
+            sb.append( condition ).append(" ");
             sb.append( "?" ); 
-            
-            if ( normative )
-                sb.append( ifTrue.toNormativeString() );
-            else
-                sb.append(" ").append( ifTrue );
-            
+            sb.append(" ").append( ifTrue );
             sb.append( ":" ); 
-            
-            if ( normative )
-                sb.append( ifFalse.toNormativeString() );
-            else
-                sb.append(" ").append( ifFalse );
-                        
-            if ( showWithBrackets )
-                sb.append( "] ");
-            
+            sb.append(" ").append( ifFalse );
+            sb.append( "] ");
             return sb.toString();
         }      
         
         @Override
-        String toNormativeString()
-        {
-            return toString( true );
-        }        
-        
-        @Override
-        void marshallXML( XMLStreamWriter xmlStream ) throws XMLStreamException
+        public void emit( FormulaHandler h ) throws Exception
         {
-            xmlStream.writeStartElement( "operation" );
-            xmlStream.writeAttribute( "type", "ternary" );
-            condition.marshallXML(xmlStream);
-            ifTrue.marshallXML(xmlStream);
-            ifFalse.marshallXML(xmlStream);
-            xmlStream.writeEndElement();
+            h.startOperation( "ternary" );
+            condition.emit( h );
+            ifTrue.emit( h );
+            ifFalse.emit( h );
+            h.endOperation();
         }                
     }
     
@@ -168,55 +263,89 @@ public class FormulaParser
      * For example:  a + b
      * 
      */    
-    class TwoParameterOperation extends Expression
+    public static final class TwoParameterOperation extends Expression
     {
-        Expression parameter1;
-        int operator;
-        Expression parameter2;
+        final Expression parameter1;
+        final int operator;
+        final Expression parameter2;
 
-        TwoParameterOperation( Expression e, int operator ) 
+        TwoParameterOperation( Expression parameter1, int operator, Expression parameter2 ) 
         {
-            this.parameter1 = e;
+            this.parameter1 = parameter1;
             this.operator = operator;
+            this.parameter2 = parameter2;
+        }
+        
+        /**
+         * Create an operation from its XML type name, e.g. add.
+         * 
+         * @throws IllegalArgumentException if the type is not a two parameter operation.
+         */
+        public TwoParameterOperation( Expression parameter1, String type, Expression parameter2 ) 
+        {
+            this( parameter1, getOperator( type ), parameter2 );
+            
+            if ( operator == OP_NONE )
+                throw new IllegalArgumentException( "Unknown operation:" + type );
+        }
+        
+        public Expression getParameter1()
+        {
+            return parameter1;
+        }
+        
+        /**
+         * @return the XML type name of the operator, e.g. add.
+         */
+        public String getType()
+        {
+            return getOperatorName( operator );
+        }
+        
+        public Expression getParameter2()
+        {
+            return parameter2;
         }
         
         @Override
-        public String toString()
+        int getParameterCount()
+        {
+            return 2;
+        }
+        
+        @Override
+        Expression getParameter( int i )
+        {
+            switch( i )
+            {
+                case 0:  return parameter1;
+                case 1:  return parameter2;
+                default: return super.getParameter( i );
+            }
+        }
+        
+        @Override
+        Expression withParameter( int i, Expression e )
         {
-            return toString( false );
+            switch( i )
+            {
+                case 0:  return new TwoParameterOperation( e, operator, parameter2 );
+                case 1:  return new TwoParameterOperation( parameter1, operator, e );
+                default: return super.withParameter( i, e );
+            }
         }
         
-        private String toString( boolean normative )
+        @Override
+        public String toString()
         {
             StringBuilder sb = new StringBuilder();
-            boolean showWithBrackets = (!normative) && getOperatorPrecedence(operator) > 1 ;
+            boolean showWithBrackets = getOperatorPrecedence(operator) > 1 ;
             if ( showWithBrackets )
                 sb.append( " [");
             
-            if ( normative )
-                sb.append( parameter1.toNormativeString() );
-            else
-                sb.append( parameter1 ).append(" ");
-            
-            switch( operator)
-            {
-                case OP_ADD             : sb.append( "+" ); break;
-                case OP_MULT            : sb.append( "*" ); break;
-                case OP_DIVIDE          : sb.append( "/" ); break;
-                case OP_SUBTRACT        : sb.append( "-" ); break;
-                case OP_POWER           : sb.append( "^" ); break;
-                case OP_GREATERTHAN     : sb.append( ">" );break;
-                case OP_LESSTHAN        : sb.append( "<" ); break;
-                case OP_GREATERTHANOREQ : sb.append( ">" );break;
-                case OP_LESSTHANOREQ    : sb.append( "<" ); break;
-                case OP_EQUALS          : sb.append( "==" ); break;
-                case OP_NOTEQUALS       : sb.append( "!=" ); break;
-            }
-            
-            if ( normative )
-                sb.append( parameter2.toNormativeString() );
-            else
-                sb.append(" ").append( parameter2 );
+            sb.append( parameter1 ).append(" ");
+            sb.append( getOperatorSymbol( operator ) );
+            sb.append(" ").append( parameter2 );
             
             if ( showWithBrackets )
                 sb.append( "] ");
@@ -225,37 +354,16 @@ public class FormulaParser
         }      
         
         @Override
-        String toNormativeString()
-        {
-            return toString( true );
-        }        
-        
-        @Override
-        void marshallXML( XMLStreamWriter xmlStream ) throws XMLStreamException
+        public void emit( FormulaHandler h ) throws Exception
         {
-            String tag;
-            switch( operator)
-            {
-                case OP_ADD             : tag = "add"; break;
-                case OP_MULT            : tag = "multiply"; break;
-                case OP_DIVIDE          : tag = "divide"; break;
-                case OP_SUBTRACT        : tag = "subtract"; break;
-                case OP_POWER           : tag = "power"; break;
-                case OP_GREATERTHAN     : tag = "greaterThan"; break;
-                case OP_LESSTHAN        : tag = "lessThan"; break;
-                case OP_GREATERTHANOREQ : tag = "greaterThanOrEqual"; break;
-                case OP_LESSTHANOREQ    : tag = "lessThanOrEqual"; break;
-                case OP_EQUALS          : tag = "equalTo"; break;
-                case OP_NOTEQUALS       : tag = "notEqualTo"; break;
-                default:
-                    throw new XMLStreamException("Uknown operator");
-            }
+            String tag = getOperatorName( operator );
+            if ( tag == null )
+                throw new IllegalStateException("Uknown operator");
             
-            xmlStream.writeStartElement( "operation" );
-            xmlStream.writeAttribute( "type", tag );
-            parameter1.marshallXML(xmlStream);
-            parameter2.marshallXML(xmlStream);
-            xmlStream.writeEndElement();
+            h.startOperation( tag );
+            parameter1.emit( h );
+            parameter2.emit( h );
+            h.endOperation();
         }        
     }
     
@@ -263,27 +371,50 @@ public class FormulaParser
     /**
      * A pair of parenthesis.
      */
-    class BracketPair extends Expression
+    public static final class BracketPair extends Expression
     {        
-        Expression innerExpression;
+        final Expression innerExpression;
+        
+        public BracketPair( Expression innerExpression )
+        {
+            this.innerExpression = innerExpression;
+        }
+        
+        public Expression getInnerExpression()
+        {
+            return innerExpression;
+        }
         
         @Override
-        public String toString()
+        int getParameterCount()
         {
-            return "(" + innerExpression.toString() + ")";
-        }        
+            return 1;
+        }
+        
         @Override
-        String toNormativeString()
+        Expression getParameter( int i )
+        {
+            return i == 0 ? innerExpression : super.getParameter( i );
+        }
+        
+        @Override
+        Expression withParameter( int i, Expression e )
+        {
+            return i == 0 ? new BracketPair( e ) : super.withParameter( i, e );
+        }
+        
+        @Override
+        public String toString()
         {
-            return "(" + innerExpression.toNormativeString() + ")";
+            return "(" + innerExpression.toString() + ")";
         }        
         
         @Override
-        void marshallXML( XMLStreamWriter xmlStream ) throws XMLStreamException
+        public void emit( FormulaHandler h ) throws Exception
         {
-            xmlStream.writeStartElement( "parenthesis" );
-            innerExpression.marshallXML(xmlStream);
-            xmlStream.writeEndElement();
+            h.startParenthesis();
+            innerExpression.emit( h );
+            h.endParenthesis();
         }            
     }
     
@@ -293,41 +424,89 @@ public class FormulaParser
      * 
      * For example:  b ? n : m
      */    
-    class Function extends Expression
+    public static final class Function extends Expression
     {
-        String function;
-        Expression parameter1;
-        Expression parameter2;
+        final String function;
+        final Expression parameter1;
+        final Expression parameter2;
+        
+        /**
+         * @param function
+         * @param parameter1
+         * @param parameter2 null for a function with one parameter.
+         */
+        public Function( String function, Expression parameter1, Expression parameter2 )
+        {
+            this.function = function;
+            this.parameter1 = parameter1;
+            this.parameter2 = parameter2;
+        }
+        
+        public String getFunction()
+        {
+            return function;
+        }
+        
+        public Expression getParameter1()
+        {
+            return parameter1;
+        }
+        
+        /**
+         * @return the second parameter, or null if there is only one.
+         */
+        public Expression getParameter2()
+        {
+            return parameter2;
+        }
         
         @Override
-        public String toString()
+        int getParameterCount()
         {
-            return function + "(" + parameter1 + ( parameter2 == null ? "" : "," + parameter2 ) + ")";
-        }                
+            return parameter2 == null ? 1 : 2;
+        }
         
         @Override
-        String toNormativeString()
+        Expression getParameter( int i )
         {
-            if (   ( function.equals("-") ) 
-                && ( parameter2 == null ))
-                return function + parameter1.toNormativeString();
-                
-            return function + "(" + parameter1.toNormativeString() + ( parameter2 == null ? "" : "," + parameter2.toNormativeString() ) + ")";
-        }        
+            if ( i == 0 )
+                return parameter1;
+            
+            if ( i == 1 && parameter2 != null )
+                return parameter2;
+            
+            return super.getParameter( i );
+        }
         
         @Override
-        void marshallXML( XMLStreamWriter xmlStream ) throws XMLStreamException
+        Expression withParameter( int i, Expression e )
         {
-            xmlStream.writeStartElement( "function" );
+            if ( i == 0 )
+                return new Function( function, e, parameter2 );
             
-            xmlStream.writeAttribute( "type", function );
+            if ( i == 1 && parameter2 != null )
+                return new Function( function, parameter1, e );
+            
+            return super.withParameter( i, e );
+        }
+        
+        @Override
+        public String toString()
+        {
+            return function + "(" + parameter1 + ( parameter2 == null ? "" : "," + parameter2 ) + ")";
+        }                
+        
+        @Override
+        public void emit( FormulaHandler h ) throws Exception
+        {
+            h.startFunction( function );
             
-            parameter1.marshallXML(xmlStream);
+            parameter1.emit( h );
             
             if ( parameter2 != null )
-                parameter2.marshallXML(xmlStream);
+                parameter2.emit( h );
             
-            xmlStream.writeEndElement();
+            h.endFunction();
         }                            
     }
     
@@ -337,37 +516,50 @@ public class FormulaParser
      * 
      * Also overridden for tokens that are numbers.
      */    
-    class Token extends Expression
+    public static final class Token extends Expression
     {        
-        String token;
-        boolean isCustom;
-        boolean isHashToken;
+        final String token;
+        final boolean isCustom;
+        final boolean isHashToken;
         
-        @Override
-        public String toString()
+        public Token( String token, boolean isCustom, boolean isHashToken )
+        {
+            this.token = token;
+            this.isCustom = isCustom;
+            this.isHashToken = isHashToken;
+        }
+        
+        public String getToken()
         {
             return token;
-        }                
+        }
+        
+        /**
+         * @return true if the name starts with @
+         */
+        public boolean isCustom()
+        {
+            return isCustom;
+        }
+        
+        /**
+         * @return true if the name starts with #
+         */
+        public boolean isHashToken()
+        {
+            return isHashToken;
+        }
         
         @Override
-        String toNormativeString()
+        public String toString()
         {
             return token;
-        }        
+        }                
         
         @Override
-        void marshallXML( XMLStreamWriter xmlStream ) throws XMLStreamException
+        public void emit( FormulaHandler h ) throws Exception
         {
-            xmlStream.writeStartElement( "variable" );
-            
-            if ( isCustom )
-                xmlStream.writeAttribute( "custom", "true" );
-            
-            if ( isHashToken )
-                xmlStream.writeAttribute( "hash", "true" );         
-            
-            xmlStream.writeCharacters( token );
-            xmlStream.writeEndElement();
+            h.variable( token, isCustom, isHashToken );
         }                    
     }
     
@@ -377,14 +569,19 @@ public class FormulaParser
      * 
      * E.g. 3.1415
      */
-    class DoubleToken extends Expression
+    public static final class DoubleToken extends Expression
     {        
-        Double d;
+        final double d;
 
-        private DoubleToken(Double d) {
+        public DoubleToken( double d ) {
             this.d = d;
         }
         
+        public double getValue()
+        {
+            return d;
+        }
+        
         @Override
         public String toString()
         {
@@ -392,17 +589,9 @@ public class FormulaParser
         }                
         
         @Override
-        String toNormativeString()
-        {
-            return Double.toString(d);
-        }        
-        
-        @Override
-        void marshallXML( XMLStreamWriter xmlStream ) throws XMLStreamException
+        public void emit( FormulaHandler h ) throws Exception
         {
-            xmlStream.writeStartElement( "decimal" );
-            xmlStream.writeCharacters( Double.toString(d) );
-            xmlStream.writeEndElement();
+            h.decimal( d );
         }                            
     }
     
@@ -412,14 +601,19 @@ public class FormulaParser
      * 
      * E.g. 2
      */
-    class IntegerToken extends Expression
+    public static final class IntegerToken extends Expression
     {        
-        Integer i;
+        final int i;
 
-        private IntegerToken(Integer i) {
+        public IntegerToken( int i ) {
             this.i = i;
         }
         
+        public int getValue()
+        {
+            return i;
+        }
+        
         @Override
         public String toString()
         {
@@ -427,23 +621,28 @@ public class FormulaParser
         }                
         
         @Override
-        String toNormativeString()
-        {
-            return Integer.toString(i);
-        }        
-        
-        @Override
-        void marshallXML( XMLStreamWriter xmlStream ) throws XMLStreamException
+        public void emit( FormulaHandler h ) throws Exception
         {
-            xmlStream.writeStartElement( "integer" );
-            xmlStream.writeCharacters( Integer.toString(i) );
-            xmlStream.writeEndElement();
+            h.integer( i );
         }                                    
     }    
 
     
     //The outer expression
-    Expression expression;
+    final Expression expression;
+    
+    //Worked out as it was parsed
+    private final long structuralHash;
+    
+    
+    //Reused by parse() so that streaming a formula allocates next to nothing.
+    private static final ThreadLocal<PostfixBuffer> buffers = new ThreadLocal<PostfixBuffer>() {
+        @Override
+        protected PostfixBuffer initialValue()
+        {
+            return new PostfixBuffer();
+        }
+    };
     
     
     /**
@@ -458,85 +657,627 @@ public class FormulaParser
      */
     public static String formulaToXML( String formula ) throws FormulaSyntaxException
     {
-        FormulaParser fp;
+        PostfixBuffer buffer = parseToBuffer( formula );
+        PostfixBuffer.Text text = buffer.text();
+        writeXML( formula, buffer, text );
+        return text.toString();
+    }
+    
+    
+    /**
+     * Parse the formula provided and write it as an XML document to the output
+     * stream, encoded as UTF-8.
+     * 
+     * This writes the same as an XMLStreamWriter would, but without one, so 
+     * without the cost of finding an XMLOutputFactory.
+     * 
+     * @param formula
+     * @param out
+     * @throws cloud.mypattern.FormulaParser.FormulaSyntaxException 
+     */
+    public static void formulaToXML( String formula, OutputStream out ) throws FormulaSyntaxException
+    {
+        writeXML( formula, parseToBuffer( formula ), out );
+    }
+    
+    
+    /**
+     * Write the formula parsed into the buffer, through the buffer's bytes,
+     * and finish with the buffer.
+     */
+    private static void writeXML( String formula, PostfixBuffer buffer, OutputStream out ) throws FormulaSyntaxException
+    {
+        Object event = FormulaEvents.begin( FormulaEvents.MARSHAL );
+        Exception error = null;
         try {
-            fp = new FormulaParser( new Stream( formula ) );
+            XMLTextFormulaHandler handler = new XMLTextFormulaHandler( out, buffer.bytes() );
+            handler.startDocument();
+            buffer.replay( handler );
+            handler.flush();
         } catch ( Exception e ) {
-            
+            error = e;
             throw new FormulaSyntaxException( e );
+        } finally {
+            FormulaEvents.end( event, formula, buffer.size(), error );
+            buffer.inUse = false;
         }
-        
-        return fp.marshall();
     }
     
     
     /**
-     * Create a new FormulaParser.
-     * 
-     * @param s  The stream from the text representation. 
-     * @throws cloud.mypattern.Stream.SyntaxException 
+     * @return the XMLOutputFactory, which is only looked up the first time 
+     * as that is slow. Writers can be created from it by any thread.
      */
-    public FormulaParser( Stream s ) throws Stream.SyntaxException
+    static XMLOutputFactory getXMLOutputFactory()
     {
-        expression = parseExpression( s, 1 );
-    }    
+        return XMLOutputFactoryHolder.FACTORY;
+    }
+    
+    
+    private static final class XMLOutputFactoryHolder
+    {
+        static final XMLOutputFactory FACTORY = XMLOutputFactory.newInstance();
+    }
     
     
     /**
-     * Get a parameter from the stream for use with the specified precedence
-     * 
-     * So, if the parameter's next operation is high precedence then we should handle that here.
+     * Parse the formula provided and write it as an XML document.
      * 
-     * e.g. 
-     * parseExpressionParameter( "2 + 3 * 4^5 + 1", 1 ) should return "2"
-     * parseExpressionParameter( "3 * 4^5 + 1" , 1 ) should return "3 * 4^5"
+     * No Expression tree is built, the XML is written directly from the parse. 
+     * Nothing is written if the formula is not valid.
      * 
-     * @param s
-     * @param precedence
-     * @return
-     * @throws Stream.SyntaxException 
+     * @param formula
+     * @param xmlStream
+     * @throws cloud.mypattern.FormulaParser.FormulaSyntaxException 
      */
-    private Expression parseExpressionParameter( Stream s, int precedence ) throws Stream.SyntaxException
+    public static void formulaToXML( String formula, XMLStreamWriter xmlStream ) throws FormulaSyntaxException
     {
-        if ( debug ) System.out.println( "parseExpressionParameter() precedence:" + precedence );
-        
-        if ( s.isTokenDelimeter( s.lookahead(), new char[]{'+','*','/','^'} ) ) //nb '-' is permitted here because it might be: -1
-        {
-            throw s.throwException( "Unexpected token (operator not expected here):" + s.lookahead() );
-        } 
-        
-        Expression e;
-        
-        if ( s.lookahead() == '(')
-        {
-            s.consumeChar( '(' );
-            
-            BracketPair bp = new BracketPair();
-            bp.innerExpression = parseExpression(s, 1);
-                    
-            s.consumeOptionalWhiteSpace();
-            s.consumeChar( ')' );
-            e = bp; 
+        PostfixBuffer buffer = parseToBuffer( formula );
+        Object event = FormulaEvents.begin( FormulaEvents.MARSHAL );
+        Exception error = null;
+        try {
+            xmlStream.writeStartDocument();
+            buffer.replay( new XMLFormulaHandler( xmlStream ) );
+            xmlStream.flush();
+        } catch ( Exception e ) {
+            error = e;
+            throw new FormulaSyntaxException( e );
+        } finally {
+            FormulaEvents.end( event, formula, buffer.size(), error );
+            buffer.inUse = false;
+        }
+    }
+    
+    
+    /**
+     * Parse the formula provided, sending each part of it to the handler in 
+     * document order. 
+     * 
+     * This does not build an Expression tree, so is the cheapest way to 
+     * convert a formula to some other form. The handler is not called at all
+     * if the formula is not valid.
+     * 
+     * @param formula
+     * @param handler
+     * @throws cloud.mypattern.FormulaParser.FormulaSyntaxException if the 
+     * formula is invalid, or wrapping anything the handler throws.
+     */
+    public static void parse( String formula, FormulaHandler handler ) throws FormulaSyntaxException
+    {
+        parse( formula, handler, ParseLimits.NONE );
+    }
+    
+    
+    /**
+     * Parse the formula provided, as parse( formula, handler ) does, but 
+     * within the limits given.
+     * 
+     * @param formula
+     * @param handler
+     * @param limits
+     * @throws cloud.mypattern.FormulaParser.FormulaSyntaxException if the 
+     * formula is invalid or over a limit, or wrapping anything the handler throws.
+     */
+    public static void parse( String formula, FormulaHandler handler, ParseLimits limits ) throws FormulaSyntaxException
+    {
+        PostfixBuffer buffer = parseToBuffer( formula, limits );
+        try {
+            buffer.replay( handler );
+        } catch ( Exception e ) {
+            throw new FormulaSyntaxException( e );
+        } finally {
+            buffer.inUse = false;
+        }
+    }
+    
+    
+    /**
+     * Parse the formula into this thread's buffer, marking it in use. 
+     */
+    private static PostfixBuffer parseToBuffer( String formula ) throws FormulaSyntaxException
+    {
+        return parseToBuffer( formula, ParseLimits.NONE );
+    }
+    
+    
+    private static PostfixBuffer parseToBuffer( String formula, ParseLimits limits ) throws FormulaSyntaxException
+    {
+        PostfixBuffer buffer = buffers.get();
+        
+        if ( buffer.inUse ) //a handler is parsing another formula
+            buffer = new PostfixBuffer();
+        
+        buffer.clear();
+        Object event = FormulaEvents.begin( FormulaEvents.PARSE );
+        try {
+            limits.check( formula );
+            parse( new Stream( formula ), limits.guard( buffer ) );
+        } catch ( Exception e ) {
+            FormulaEvents.end( event, formula, buffer.size(), e );
+            throw new FormulaSyntaxException( e );
+        }
+        FormulaEvents.end( event, formula, buffer.size(), null );
+        
+        buffer.inUse = true;
+        return buffer;
+    }
+    
+    
+    /**
+     * Parse the formula without throwing an exception if it is invalid.
+     * 
+     * This is the cheapest way to parse formulas when many are expected to 
+     * be invalid; the error in the result carries its code, offset and the
+     * expected and found characters but no stack trace.
+     * 
+     * @param formula
+     * @return the Expression, or the error.
+     */
+    public static ParseResult tryParse( String formula )
+    {
+        return parse( new Stream( formula ) );
+    }
+    
+    
+    /**
+     * Parse the formula, as tryParse( formula ) does, but within the limits
+     * given.
+     * 
+     * @param formula
+     * @param limits
+     * @return the Expression, or the error, which has the code LIMIT_EXCEEDED
+     * if the formula was over a limit.
+     */
+    public static ParseResult tryParse( String formula, ParseLimits limits )
+    {
+        try {
+            limits.check( formula );
+        } catch ( Stream.SyntaxException e ) {
+            return new ParseResult( null, 0, e );
+        }
+        return parse( new Stream( formula ), limits );
+    }
+    
+    
+    /**
+     * Parse the stream into an Expression, or the error that prevented it.
+     */
+    static ParseResult parse( Stream s )
+    {
+        return parse( s, ParseLimits.NONE );
+    }
+    
+    
+    /**
+     * Parse the stream into an Expression, or the error that prevented it, 
+     * counting the nodes and tokens and time against the limits.
+     */
+    static ParseResult parse( Stream s, ParseLimits limits )
+    {
+        Object event = FormulaEvents.begin( FormulaEvents.PARSE );
+        ExpressionBuilder builder = new ExpressionBuilder();
+        try {
+            parse( s, limits.guard( builder ) );
+        } catch ( Stream.SyntaxException e ) {
+            FormulaEvents.end( event, s, builder.nodes, e );
+            return new ParseResult( null, 0, e );
+        }
+        FormulaEvents.end( event, s, builder.nodes, null );
+        return new ParseResult( builder.peek(), builder.peekHash(), null );
+    }
+    
+    
+    /**
+     * Create a new FormulaParser.
+     * 
+     * @param s  The stream from the text representation. 
+     * @throws cloud.mypattern.Stream.SyntaxException 
+     */
+    public FormulaParser( Stream s ) throws Stream.SyntaxException
+    {
+        ParseResult result = parse( s );
+        
+        if ( ! result.isValid() )
+            throw result.getError();
+        
+        expression = result.getExpression();
+        structuralHash = result.getStructuralHash();
+    }    
+    
+    
+    /**
+     * Builds the Expression tree from the parser's postfix events, along with
+     * the structural hash of each part of it.
+     */
+    static class ExpressionBuilder implements PostfixHandler
+    {
+        private Expression[] stack = new Expression[8];
+        private long[] hashes = new long[8];
+        private int size;
+        int nodes; //made so far
+        
+        
+        private void push( Expression e, long hash )
+        {
+            nodes++;
+            
+            if ( size == stack.length )
+            {
+                stack = Arrays.copyOf( stack, size * 2 );
+                hashes = Arrays.copyOf( hashes, size * 2 );
+            }
+            
+            stack[ size ] = e;
+            hashes[ size++ ] = hash;
+        }
+        
+        
+        Expression pop()
+        {
+            Expression e = stack[ --size ];
+            stack[ size ] = null;
+            return e;
+        }
+        
+        
+        Expression peek()
+        {
+            return stack[ size - 1 ];
+        }
+        
+        
+        /**
+         * @return the structural hash of the expression on top.
+         */
+        long peekHash()
+        {
+            return hashes[ size - 1 ];
+        }
+        
+        
+        @Override
+        public void integer( int i, int start, int end )
+        {
+            push( new IntegerToken( i ), StructuralHash.integer( i ) );
+        }
+        
+        
+        @Override
+        public void decimal( double d, int start, int end )
+        {
+            push( new DoubleToken( d ), StructuralHash.decimal( d ) );
+        }
+        
+        
+        @Override
+        public void variable( String token, boolean isCustom, boolean isHashToken, int start, int end )
+        {
+            push( new Token( token, isCustom, isHashToken ), StructuralHash.variable( token, isCustom, isHashToken ) );
+        }
+        
+        
+        @Override
+        public void function( String function, int parameterCount, int start, int end )
+        {
+            long hash = parameterCount == 2 ? StructuralHash.function( function, hashes[ size - 2 ], hashes[ size - 1 ] )
+                                            : StructuralHash.function( function, hashes[ size - 1 ] );
+            Expression parameter2 = parameterCount == 2 ? pop() : null;
+            push( new Function( function, pop(), parameter2 ), hash );
+        }
+        
+        
+        @Override
+        public void parenthesis( int start, int end )
+        {
+            long hash = hashes[ size - 1 ]; //parentheses don't count
+            push( new BracketPair( pop() ), hash );
+        }
+        
+        
+        @Override
+        public void operation( int operator )
+        {
+            long hash = StructuralHash.operation( operator, hashes[ size - 2 ], hashes[ size - 1 ] );
+            Expression parameter2 = pop();
+            push( new TwoParameterOperation( pop(), operator, parameter2 ), hash );
+        }
+        
+        
+        @Override
+        public void ternary()
+        {
+            long hash = StructuralHash.ternary( hashes[ size - 3 ], hashes[ size - 2 ], hashes[ size - 1 ] );
+            Expression ifFalse = pop();
+            Expression ifTrue = pop();
+            push( new TertiaryOperation( pop(), ifTrue, ifFalse ), hash );
+        }
+    }
+    
+    
+    //The points at which parse() picks up a frame again. The EXPRESSION states
+    //are those of what used to be parseExpression(), the PARAMETER states those 
+    //of parseExpressionParameter(). Most are where the frame waits for an 
+    //expression it has pushed to be parsed.
+    private static final int EXPRESSION_START         = 0;
+    private static final int EXPRESSION_LOOP          = 1; //look for another operator
+    private static final int EXPRESSION_TERNARY_TRUE  = 2; //after b ? n
+    private static final int EXPRESSION_TERNARY_FALSE = 3; //after b ? n : m
+    private static final int EXPRESSION_OPERATION     = 4; //after a + b
+    private static final int PARAMETER_START          = 5;
+    private static final int PARAMETER_PARENTHESIS    = 6; //after ( a
+    private static final int PARAMETER_NEGATIVE       = 7; //after -( a
+    private static final int PARAMETER_FUNCTION1      = 8; //after f( a
+    private static final int PARAMETER_FUNCTION2      = 9; //after f( a, b
+    private static final int PARAMETER_LOOKAHEAD      = 10; //a parameter has been parsed
+    private static final int PARAMETER_OPERATION      = 11; //after a + b
+    
+    
+    /**
+     * The stack used by parse() in place of recursion.
+     * 
+     * Each frame is the state of one call to parseExpression() or 
+     * parseExpressionParameter() as they used to be. A Frames may be reused
+     * for the next parse.
+     */
+    static final class Frames
+    {
+        int[] states = new int[16];
+        int[] precedences = new int[16];
+        int[] operators = new int[16];
+        String[] functions = new String[16];
+        int[] starts = new int[16];    //where a parenthesis or function began
+        int[] negatives = new int[16]; //where a function's unary - was, or -1
+        int size;
+        
+        void push( int state, int precedence )
+        {
+            if ( size == states.length )
+            {
+                states = Arrays.copyOf( states, size * 2 );
+                precedences = Arrays.copyOf( precedences, size * 2 );
+                operators = Arrays.copyOf( operators, size * 2 );
+                functions = Arrays.copyOf( functions, size * 2 );
+                starts = Arrays.copyOf( starts, size * 2 );
+                negatives = Arrays.copyOf( negatives, size * 2 );
+            }
+            states[ size ] = state;
+            precedences[ size ] = precedence;
+            size++;
+        }
+        
+        void pop()
+        {
+            functions[ --size ] = null;
+        }
+        
+        void clear()
+        {
+            Arrays.fill( functions, 0, size, null );
+            size = 0;
+        }
+    }
+    
+    
+    /**
+     * A handler that ignores everything. Given this, parse() only checks the 
+     * formula's syntax and does not make any Strings for names or decimals.
+     */
+    static final PostfixHandler RECOGNISE_ONLY = new PostfixHandler() {
+        @Override public void integer( int i, int start, int end ) {}
+        @Override public void decimal( double d, int start, int end ) {}
+        @Override public void variable( String token, boolean isCustom, boolean isHashToken, int start, int end ) {}
+        @Override public void function( String function, int parameterCount, int start, int end ) {}
+        @Override public void parenthesis( int start, int end ) {}
+        @Override public void operation( int operator ) {}
+        @Override public void ternary() {}
+    };
+    
+    
+    /**
+     * Parse the stream, sending each part of the formula to the handler as
+     * it is recognised.
+     * 
+     * This is a precedence climbing parser, but instead of recursing for 
+     * each parenthesis, function parameter, operation and ternary branch it 
+     * keeps its own stack of frames. However deeply the formula is nested, the 
+     * Java stack used stays the same, and each character is looked at a fixed
+     * number of times.
+     * 
+     * @param s
+     * @param h
+     * @throws Stream.SyntaxException 
+     */
+    static void parse( Stream s, PostfixHandler h ) throws Stream.SyntaxException
+    {
+        parse( s, h, new Frames() );
+    }
+    
+    
+    /**
+     * Parse the stream using, and clearing first, the given frames.
+     */
+    static void parse( Stream s, PostfixHandler h, Frames f ) throws Stream.SyntaxException
+    {
+        f.clear();
+        f.push( EXPRESSION_START, 1 );
+        
+        ParseLimits.Guard guard = h instanceof ParseLimits.Guard ? (ParseLimits.Guard)h : null;
+        
+        while( f.size > 0 )
+        {
+            if ( guard != null )
+                guard.check( s );
+            
+            int top = f.size - 1;
+            int precedence = f.precedences[ top ];
+            
+            switch( f.states[ top ] )
+            {
+                case EXPRESSION_START:
+                    if ( debug ) System.out.println( "parseExpression() precedence:" + precedence );
+                    
+                    s.consumeOptionalWhiteSpace();
+                    f.states[ top ] = EXPRESSION_LOOP;
+                    f.push( PARAMETER_START, precedence );
+                    break;
+                    
+                case EXPRESSION_TERNARY_TRUE:
+                    s.consumeOptionalWhiteSpace();
+                    s.consumeChar(':');
+                    s.consumeOptionalWhiteSpace();
+                    f.states[ top ] = EXPRESSION_TERNARY_FALSE;
+                    f.push( EXPRESSION_START, 1 );
+                    break;
+                    
+                case EXPRESSION_TERNARY_FALSE:
+                    h.ternary();
+                    f.states[ top ] = EXPRESSION_LOOP;
+                    break;
+                    
+                case EXPRESSION_OPERATION:
+                    h.operation( f.operators[ top ] );
+                    f.states[ top ] = EXPRESSION_LOOP;
+                    break;
+                    
+                case EXPRESSION_LOOP:
+                    parseExpressionOperator( s, f, top, precedence );
+                    break;
+                    
+                case PARAMETER_START:
+                    parseExpressionParameter( s, f, top, h );
+                    break;
+                    
+                case PARAMETER_PARENTHESIS:
+                    s.consumeOptionalWhiteSpace();
+                    s.consumeChar( ')' );
+                    h.parenthesis( f.starts[ top ], s.index );
+                    f.states[ top ] = PARAMETER_LOOKAHEAD;
+                    break;
+                    
+                case PARAMETER_NEGATIVE:
+                    s.consumeOptionalWhiteSpace();
+                    s.consumeChar( ')' );                    
+                    h.function( "-", 1, f.starts[ top ], s.index );
+                    f.states[ top ] = PARAMETER_LOOKAHEAD;
+                    break;
+                    
+                case PARAMETER_FUNCTION1:
+                    s.consumeOptionalWhiteSpace();
+
+                    if (   ( s.lookahead() == ',' )
+                        || ( s.lookahead() == ';' ) )
+                    {
+                        s.consumeChar();
+                        f.states[ top ] = PARAMETER_FUNCTION2;
+                        f.push( EXPRESSION_START, 1 );
+                        break;
+                    }
+                    
+                    endFunction( s, f, top, 1, h );
+                    break;
+                    
+                case PARAMETER_FUNCTION2:
+                    s.consumeOptionalWhiteSpace();                           
+                    endFunction( s, f, top, 2, h );
+                    break;
+                    
+                case PARAMETER_LOOKAHEAD:
+                    parseParameterOperator( s, f, top, precedence );
+                    break;
+                    
+                case PARAMETER_OPERATION:
+                    h.operation( f.operators[ top ] );
+                    f.pop();
+                    break;
+            }
+        }
+        
+        if ( guard != null )
+            guard.check( s );
+        
+        if ( debug ) System.out.println( "parse() complete" );
+    }
+    
+    
+    /**
+     * Get a parameter from the stream for use with the specified precedence
+     * 
+     * So, if the parameter's next operation is high precedence then we should handle that here.
+     * 
+     * e.g. 
+     * parseExpressionParameter( "2 + 3 * 4^5 + 1", 1 ) should return "2"
+     * parseExpressionParameter( "3 * 4^5 + 1" , 1 ) should return "3 * 4^5"
+     * 
+     * This handles the start of the parameter, up to the point where it
+     * needs an inner expression parsing (a parenthesis or function call) or,
+     * for a simple token, where it looks at the following operator. 
+     * 
+     * @param s
+     * @param f
+     * @param top  The frame for this parameter.
+     * @param h
+     * @throws Stream.SyntaxException 
+     */
+    private static void parseExpressionParameter( Stream s, Frames f, int top, PostfixHandler h ) throws Stream.SyntaxException
+    {
+        if ( debug ) System.out.println( "parseExpressionParameter() precedence:" + f.precedences[ top ] );
+        
+        if ( s.isTokenDelimeter( s.lookahead(), binaryOperators ) ) //nb '-' is permitted here because it might be: -1
+        {
+            throw s.throwException( Stream.SyntaxException.UNEXPECTED_OPERATOR );
+        } 
+        
+        f.states[ top ] = PARAMETER_LOOKAHEAD;
+        
+        if ( s.lookahead() == '(')
+        {
+            f.starts[ top ] = s.index;
+            s.consumeChar( '(' );
+            f.states[ top ] = PARAMETER_PARENTHESIS;
+            f.push( EXPRESSION_START, 1 );
         }
         else if ( s.lookahead() == '@' )
         {
+            int start = s.index;
             s.consumeChar( '@' );
-            Token tk = new Token();
-            tk.token = "@" + s.getToken( delimiters );
-            tk.isCustom = true;
-            e = tk;
+            s.skipToken( delimiters );
+            
+            if ( h != RECOGNISE_ONLY )
+                h.variable( s.getString( start, s.index ), true, false, start, s.index );
         }
         else if ( s.lookahead() == '#' )
         {
+            int start = s.index;
             s.consumeChar( '#' );
-            Token tk = new Token();
-            tk.token = "#" + s.getToken( delimiters );
-            tk.isHashToken = true;
-            e = tk;
+            s.skipToken( delimiters );
+            
+            if ( h != RECOGNISE_ONLY )
+                h.variable( s.getString( start, s.index ), false, true, start, s.index );
         }
         else 
         {
             boolean unaryNegative = false;
+            int negativeStart = s.index;
             if ( s.lookahead() == '-')
             {
                 unaryNegative = true;
@@ -546,95 +1287,93 @@ public class FormulaParser
             
             if ( unaryNegative && ( s.lookahead() == '(' ) )
             {
+                f.starts[ top ] = negativeStart;
                 s.consumeChar( '(' );
-                
-                Function f = new Function();
-                f.function = "-";
-                f.parameter1 = parseExpression(s, 1);
-
-                s.consumeOptionalWhiteSpace();
-                s.consumeChar( ')' );                    
-                e = f;
+                f.states[ top ] = PARAMETER_NEGATIVE;
+                f.push( EXPRESSION_START, 1 );
             }
             else
             {
-                String token = s.getToken( delimiters );
-                //Token tk;
+                int start = s.index;
+                int end = s.skipToken( delimiters );
+                int numberStart = unaryNegative ? negativeStart : start;
 
-                try {
-                    Integer i = Integer.parseInt( token );
+                //Test for numbers first rather than waiting for parseInt() 
+                //and parseDouble() to throw exceptions for every name.
+                if ( s.isInteger( start, end ) )
+                {
+                    int i = s.parseInteger( start, end );
 
                     if ( unaryNegative )
                         i = -1 * i;
 
-                    e = new IntegerToken( i );
-
-
-                } catch ( NumberFormatException ne ) {
-
-                    try {
-                        Double d = Double.parseDouble(token);
+                    h.integer( i, numberStart, end );
+                }
+                else if ( s.isDecimal( start, end ) )
+                {
+                    if ( h != RECOGNISE_ONLY )
+                    {
+                        double d = Double.parseDouble( s.getString( start, end ) );
 
                         if ( unaryNegative )
                             d = -1 * d;
 
-                        e = new DoubleToken( d );
-
-                    } catch ( Exception fe ) {         
-
-                        s.consumeOptionalWhiteSpace();
-                        if ( s.lookahead() == '(' )
-                        {
-                            //a method call
-                            Function f = new Function();
-                            f.function = token;
-                            s.consumeChar( '(' );
-                            f.parameter1 = parseExpression(s, 1);
-                            s.consumeOptionalWhiteSpace();
-
-                            if (   ( s.lookahead() == ',' )
-                                || ( s.lookahead() == ';' ) )
-                            {
-                                s.consumeChar();
-                                f.parameter2 = parseExpression(s, 1);
-                                s.consumeOptionalWhiteSpace();                           
-                            }
-                            s.consumeChar( ')' );
-                            e = f;
-                            
-                            if ( unaryNegative )
-                            {
-                                Function un = new Function();
-                                un.function = "-";
-                                un.parameter1 = f;
-                                e = un;
-                            }
-                            
-                            s.consumeOptionalWhiteSpace();
-
-                        }
-                        else
-                        {
-                            //Stick with the string.
-                            Token tk = new Token();
-                            tk.token = token;     
-                            e = tk;
-                            
-                            if ( unaryNegative )
-                            {
-                                Function un = new Function();
-                                un.function = "-";
-                                un.parameter1 = tk;
-                                e = un;
-                            }                            
-                        }
-                    }                
+                        h.decimal( d, numberStart, end );
+                    }
+                }
+                else
+                {
+                    String token = h != RECOGNISE_ONLY ? s.getString( start, end ) : null;
+                    
+                    s.consumeOptionalWhiteSpace();
+                    if ( s.lookahead() == '(' )
+                    {
+                        //a method call
+                        s.consumeChar( '(' );
+                        f.states[ top ] = PARAMETER_FUNCTION1;
+                        f.functions[ top ] = token;
+                        f.starts[ top ] = start;
+                        f.negatives[ top ] = unaryNegative ? negativeStart : -1;
+                        f.push( EXPRESSION_START, 1 );
+                    }
+                    else
+                    {
+                        //Stick with the string.
+                        h.variable( token, false, false, start, end );
+
+                        if ( unaryNegative )
+                            h.function( "-", 1, negativeStart, end );
+                    }
                 }
             }
         }
+    }
+    
+    
+    /**
+     * Close a function call once its parameters have been parsed.
+     */
+    private static void endFunction( Stream s, Frames f, int top, int parameterCount, PostfixHandler h ) throws Stream.SyntaxException
+    {
+        s.consumeChar( ')' );
+        h.function( f.functions[ top ], parameterCount, f.starts[ top ], s.index );
 
-        if ( debug ) System.out.println( "token parsed:" + e );
-        
+        if ( f.negatives[ top ] >= 0 )
+            h.function( "-", 1, f.negatives[ top ], s.index );
+
+        s.consumeOptionalWhiteSpace();
+        f.functions[ top ] = null;
+        f.states[ top ] = PARAMETER_LOOKAHEAD;
+    }
+    
+    
+    /**
+     * Having parsed a parameter, if its next operation is of higher precedence
+     * then take the operator and push the expression to its right, otherwise 
+     * the parameter is complete.
+     */
+    private static void parseParameterOperator( Stream s, Frames f, int top, int precedence ) throws Stream.SyntaxException
+    {
         s.consumeOptionalWhiteSpace();
         int operator = getOperatorFromLookahead(s);
         int nextPrecedence = getOperatorPrecedence( operator );
@@ -645,13 +1384,6 @@ public class FormulaParser
         {
             if ( debug ) System.out.println( "lookahead precedence greater..."  );
             
-            if ( operator == OP_TERNARY )
-            {
-                System.out.println("Weird");
-            }
-            
-            //assert operator != OP_TERNARY; //as this is the lowest precedence (WAS)
-            
             s.consumeChar(); //the operator.
             
             //Some operators are formed of two characters: == !=
@@ -679,18 +1411,16 @@ public class FormulaParser
             }
             
             s.consumeOptionalWhiteSpace();
-            TwoParameterOperation twoOp = new TwoParameterOperation( e, operator );
-            twoOp.parameter2 = parseExpression( s, nextPrecedence );
-            e = twoOp;
+            f.states[ top ] = PARAMETER_OPERATION;
+            f.operators[ top ] = operator;
+            f.push( EXPRESSION_START, nextPrecedence );
         }
         else
         {
             if ( debug ) System.out.println( "lookahead precedence lower..."  );
+            
+            f.pop();
         }
-        
-        if ( debug ) System.out.println( "parseExpressionParameter() returning:" + e );
-        
-        return e;
     }
     
     
@@ -700,112 +1430,100 @@ public class FormulaParser
      * (( a ))
      * a + b / c - d
      * 
+     * Having parsed the first parameter, or an operation, of an expression 
+     * look for the next operator. If it binds less tightly than this 
+     * expression's precedence then the expression is complete, otherwise 
+     * take the operator and push the parameter to its right.
      * 
      * @param s
+     * @param f
+     * @param top  The frame for this expression.
+     * @param precedence
      * @throws Stream.SyntaxException 
      */
-    private Expression parseExpression( Stream s, int precedence ) throws Stream.SyntaxException
+    private static void parseExpressionOperator( Stream s, Frames f, int top, int precedence ) throws Stream.SyntaxException
     {
-        if ( debug ) System.out.println( "parseExpression() precedence:" + precedence );
-        
-        int operation = OP_NONE; //might just be a bracketted expression. 
-        
         s.consumeOptionalWhiteSpace();
-
-        Expression expression = parseExpressionParameter( s, precedence );
-                
-        if ( debug ) System.out.println( "initial expression:" + expression );
         
-        s.consumeOptionalWhiteSpace();
+        if ( s.isEOF() )
+        {
+            f.pop();
+            return;
+        }
         
-        while( ! s.isEOF() )
+        int operation = getOperatorFromLookahead( s );
+
+        if ( operation == OP_NONE )
         {
-            operation = getOperatorFromLookahead( s );
+            f.pop();
+            return;
+        }
 
-            if ( operation == OP_NONE )
-            {
-                break;
-            }
-            
-            //Some operators are formed of two characters: == !=
+        int nextPrecedence = getOperatorPrecedence( operation );
+
+        if ( debug ) System.out.println( "lookahead operation:" + operation + " lookahead precedence:" + nextPrecedence );
+
+//TODO why does this fail with 3.1415 * 22 + @width * height 
+//            assert nextPrecedence <= precedence; //otherwise it would have got handled by parseExpressionParameter
+
+        if ( nextPrecedence <= precedence ) 
+        {
+            if ( debug ) System.out.println( "lookahead precendence lower, returning" );
+
+            f.pop();
+            return;
+        }
+
+        if ( operation == OP_TERNARY )
+        {
+            s.consumeChar( '?' ); //the operator
+            s.consumeOptionalWhiteSpace();
+
+            f.states[ top ] = EXPRESSION_TERNARY_TRUE;
+            f.push( EXPRESSION_START, 1 );
+        }
+        else
+        {
+            s.consumeChar(); //the operator
+
+            //Some operators are formed of two characters: == != <= >=, and
+            //the second is only looked for once the first is consumed. The
+            //precedence is the same either way.
             switch( operation )
             {
                 case OP_GREATERTHAN:
                     if ( s.lookahead() =='=' )
                     {
                         s.consumeChar( '=' );
-                        operation = OP_GREATERTHANOREQ; //this has the same precedence
+                        operation = OP_GREATERTHANOREQ;
                     }
                     break;
-                    
+
                 case OP_LESSTHAN:
                     if ( s.lookahead() =='=' )
                     {
                         s.consumeChar( '=' );
-                        operation = OP_LESSTHANOREQ; //this has the same precedence
+                        operation = OP_LESSTHANOREQ;
                     }
                     break;
-                                    
+
                 case OP_EQUALS:
                 case OP_NOTEQUALS:
                     s.consumeChar( '=' );
             }
 
-            int nextPrecedence = getOperatorPrecedence( operation );
-            
-            if ( debug ) System.out.println( "lookahead operation:" + operation + " lookahead precedence:" + nextPrecedence );
-            
-//TODO why does this fail with 3.1415 * 22 + @width * height 
-//            assert nextPrecedence <= precedence; //otherwise it would have got handled by parseExpressionParameter
-            
-            if ( nextPrecedence <= precedence ) 
-            {
-                if ( debug ) System.out.println( "lookahead precendence lower, returning:" + expression );
-                
-                return expression;
-            }
-
-            if ( operation == OP_TERNARY )
-            {
-                TertiaryOperation threeOp = new TertiaryOperation(expression);
-                s.consumeChar( '?' ); //the operator
-                s.consumeOptionalWhiteSpace();
-                
-                threeOp.ifTrue = parseExpression(s,1);//Parameter( s, 2 );//precedence );
-                
-                s.consumeOptionalWhiteSpace();
-                s.consumeChar(':');
-                s.consumeOptionalWhiteSpace();
-                
-                
-                threeOp.ifFalse = parseExpression(s,1);//Parameter( s, 2);/// precedence );
-                expression = threeOp;
-            }
-            else
-            {
-                TwoParameterOperation twoOp = new TwoParameterOperation( expression, operation );
-
-                s.consumeChar(); //the operator
-                s.consumeOptionalWhiteSpace();
-                
-                if ( debug ) System.out.println( "doing operation:" + operation + " of " + expression + " and..." );
+            s.consumeOptionalWhiteSpace();
 
-                twoOp.parameter2 = parseExpressionParameter( s, nextPrecedence );
+            if ( debug ) System.out.println( "doing operation:" + operation );
 
-                if ( debug ) System.out.println( "giving combined expression:" + twoOp );
-                
-                expression = twoOp;    
-            }
-                        
-            s.consumeOptionalWhiteSpace();
+            f.states[ top ] = EXPRESSION_OPERATION;
+            f.operators[ top ] = operation;
+            f.push( PARAMETER_START, nextPrecedence );
         }
-        
-        if ( debug ) System.out.println( "parseExpression() returning expression:" + expression );
-        return expression;
     }
     
     
-    int getOperatorPrecedence( int operator )
+    static int getOperatorPrecedence( int operator )
     {
         switch( operator )
         {
@@ -838,6 +1556,80 @@ public class FormulaParser
     }
     
     
+    /**
+     * Return the name used for the operator in the XML, or null if it is
+     * not a two parameter operator.
+     * 
+     * @param operator
+     * @return 
+     */
+    static String getOperatorName( int operator )
+    {
+        switch( operator )
+        {
+            case OP_ADD             : return "add";
+            case OP_MULT            : return "multiply";
+            case OP_DIVIDE          : return "divide";
+            case OP_SUBTRACT        : return "subtract";
+            case OP_POWER           : return "power";
+            case OP_GREATERTHAN     : return "greaterThan";
+            case OP_LESSTHAN        : return "lessThan";
+            case OP_GREATERTHANOREQ : return "greaterThanOrEqual";
+            case OP_LESSTHANOREQ    : return "lessThanOrEqual";
+            case OP_EQUALS          : return "equalTo";
+            case OP_NOTEQUALS       : return "notEqualTo";
+            default:
+                return null;
+        }
+    }
+    
+    
+    /**
+     * Return the operator as it is written in a formula, e.g. +, or null if
+     * it is unknown.
+     * 
+     * @param operator
+     * @return 
+     */
+    static String getOperatorSymbol( int operator )
+    {
+        switch( operator )
+        {
+            case OP_ADD             : return "+";
+            case OP_MULT            : return "*";
+            case OP_DIVIDE          : return "/";
+            case OP_SUBTRACT        : return "-";
+            case OP_POWER           : return "^";
+            case OP_TERNARY         : return "?";
+            case OP_GREATERTHAN     : return ">";
+            case OP_LESSTHAN        : return "<";
+            case OP_GREATERTHANOREQ : return ">=";
+            case OP_LESSTHANOREQ    : return "<=";
+            case OP_EQUALS          : return "==";
+            case OP_NOTEQUALS       : return "!=";
+            default:
+                return null;
+        }
+    }
+    
+    
+    /**
+     * Return the operator with the given XML name, or OP_NONE. 
+     * 
+     * @param name
+     * @return 
+     */
+    static int getOperator( String name )
+    {
+        for( int operator = OP_MULT; operator <= OP_LESSTHANOREQ; operator++ )
+        {
+            if ( name.equals( getOperatorName( operator ) ) )
+                return operator;
+        }
+        return OP_NONE;
+    }
+    
+    
     /**
      * Return the operator, or OP_NONE represented by the next character in the
      * stream.
@@ -845,7 +1637,7 @@ public class FormulaParser
      * @param s
      * @return 
      */
-    int getOperatorFromLookahead( Stream s )
+    static int getOperatorFromLookahead( Stream s )
     {
         if ( s.lookahead() == '*' )
             return OP_MULT;
@@ -872,6 +1664,243 @@ public class FormulaParser
     }     
 
 
+    /**
+     * @return the parsed formula, which may be shared between threads.
+     */
+    public Expression getExpression()
+    {
+        return expression;
+    }
+    
+    
+    /**
+     * @return the structural hash of the formula, which was worked out as it 
+     * was parsed.
+     * @see Expression#structuralHash() 
+     */
+    public long getStructuralHash()
+    {
+        return structuralHash;
+    }
+    
+    
+    /**
+     * Add the names of the variables the expression refers to, and if 
+     * functions is not null the names of the functions it calls. The unary 
+     * negative is an operator rather than a function, so is not included.
+     * 
+     * The tree is walked with its own stack, so deeply nested expressions 
+     * are fine.
+     * 
+     * @param e
+     * @param variables
+     * @param functions may be null.
+     */
+    static void collectNames( Expression e, Collection<String> variables, Collection<String> functions )
+    {
+        Expression[] stack = new Expression[16];
+        int size = 0;
+        stack[ size++ ] = e;
+        
+        while( size > 0 )
+        {
+            e = stack[ --size ];
+            stack[ size ] = null;
+            
+            if ( e instanceof Token )
+                variables.add( ((Token)e).token );
+            else if ( functions != null && e instanceof Function && ! ((Function)e).function.equals( "-" ) )
+                functions.add( ((Function)e).function );
+            
+            for( int i=e.getParameterCount()-1; i>=0; i-- )
+            {
+                if ( size == stack.length )
+                    stack = Arrays.copyOf( stack, size * 2 );
+                
+                stack[ size++ ] = e.getParameter( i );
+            }
+        }
+    }
+    
+    
+    /**
+     * Append the expression to sb. The normative form is the formula as it
+     * was written less its whitespace. The canonical form leaves out the 
+     * parentheses that were written, and puts back only those needed to keep
+     * the structure, taking the operators as left associative, and those 
+     * around an operation compared with something. It has no whitespace but 
+     * that around != which needs it.
+     * 
+     * Each part is appended once and the tree is walked with its own stack, 
+     * so this takes time in proportion to the length of the result however 
+     * deeply nested the expression is.
+     * 
+     * @param e
+     * @param sb
+     * @param canonical 
+     */
+    static void print( Expression e, StringBuilder sb, boolean canonical )
+    {
+        //Expressions still to print, and the Strings between them.
+        Object[] stack = new Object[16];
+        int size = 0;
+        stack[ size++ ] = e;
+        
+        while( size > 0 )
+        {
+            Object o = stack[ --size ];
+            stack[ size ] = null;
+            
+            if ( o instanceof String )
+            {
+                sb.append( (String)o );
+                continue;
+            }
+            
+            e = canonical ? unwrap( (Expression)o ) : (Expression)o;
+            
+            if ( e instanceof Token )
+            {
+                sb.append( ((Token)e).token );
+                continue;
+            }
+            else if ( e instanceof IntegerToken )
+            {
+                sb.append( ((IntegerToken)e).i );
+                continue;
+            }
+            else if ( e instanceof DoubleToken )
+            {
+                sb.append( ((DoubleToken)e).d );
+                continue;
+            }
+            
+            if ( size + 8 > stack.length )
+                stack = Arrays.copyOf( stack, stack.length * 2 );
+            
+            //Push the parts last first.
+            if ( e instanceof BracketPair )
+            {
+                stack[ size++ ] = ")";
+                stack[ size++ ] = ((BracketPair)e).innerExpression;
+                stack[ size++ ] = "(";
+            }
+            else if ( e instanceof Function )
+            {
+                Function f = (Function)e;
+                
+                if ( f.function.equals( "-" ) && f.parameter2 == null )
+                {
+                    //Without parentheses -(a+b) would be read as -a+b, -(-a) 
+                    //as the token -a, -(1) as the number -1 and -(@a) as a
+                    //variable that is neither custom nor an increment.
+                    Expression p = canonical ? unwrap( f.parameter1 ) : null;
+                    boolean parenthesise =    p instanceof TwoParameterOperation 
+                                           || p instanceof TertiaryOperation 
+                                           || p instanceof Function && ((Function)p).function.equals( "-" )
+                                           || p instanceof IntegerToken
+                                           || p instanceof DoubleToken
+                                           || p instanceof Token && ( ((Token)p).isCustom || ((Token)p).isHashToken );
+                    
+                    size = push( stack, size, f.parameter1, parenthesise );
+                    stack[ size++ ] = "-";
+                }
+                else
+                {
+                    stack[ size++ ] = ")";
+                    
+                    if ( f.parameter2 != null )
+                    {
+                        stack[ size++ ] = f.parameter2;
+                        stack[ size++ ] = ",";
+                    }
+                    
+                    stack[ size++ ] = f.parameter1;
+                    stack[ size++ ] = f.function + "(";
+                }
+            }
+            else if ( e instanceof TwoParameterOperation )
+            {
+                TwoParameterOperation op = (TwoParameterOperation)e;
+                int precedence = getOperatorPrecedence( op.operator );
+                size = push( stack, size, op.parameter2, canonical && needsParenthesis( op.parameter2, precedence, true ) );
+                //! is not a delimiter, so a!=b would be read as the token a!
+                stack[ size++ ] = canonical && op.operator == OP_NOTEQUALS ? " != " : getOperatorSymbol( op.operator );
+                size = push( stack, size, op.parameter1, canonical && (    needsParenthesis( op.parameter1, precedence, false ) 
+                                                                        || isComparison( op.operator ) && unwrap( op.parameter1 ) instanceof TwoParameterOperation ) );
+            }
+            else if ( e instanceof TertiaryOperation )
+            {
+                TertiaryOperation t = (TertiaryOperation)e;
+                stack[ size++ ] = t.ifFalse;
+                stack[ size++ ] = ":";
+                stack[ size++ ] = t.ifTrue;
+                stack[ size++ ] = "?";
+                size = push( stack, size, t.condition, canonical && unwrap( t.condition ) instanceof TertiaryOperation );
+            }
+        }
+    }
+    
+    
+    /**
+     * Push e onto the print() stack, in parentheses if asked.
+     */
+    private static int push( Object[] stack, int size, Expression e, boolean parenthesise )
+    {
+        if ( parenthesise )
+            stack[ size++ ] = ")";
+        
+        stack[ size++ ] = e;
+        
+        if ( parenthesise )
+            stack[ size++ ] = "(";
+        
+        return size;
+    }
+    
+    
+    /**
+     * Whether an operand needs parentheses in the canonical form, which it 
+     * does if it would otherwise be taken as only part of the operand.
+     */
+    private static boolean needsParenthesis( Expression operand, int precedence, boolean isRight )
+    {
+        operand = unwrap( operand );
+        
+        if ( operand instanceof TertiaryOperation )
+            return true;
+        
+        if ( ! ( operand instanceof TwoParameterOperation ) )
+            return false;
+        
+        int operandPrecedence = getOperatorPrecedence( ((TwoParameterOperation)operand).operator );
+        return isRight ? operandPrecedence <= precedence : operandPrecedence < precedence;
+    }
+    
+    
+    /**
+     * Whether the operator compares its operands. After an operation, e.g. 
+     * a+b<=c, the parser only takes the first character of a comparison, 
+     * so in the canonical form the operation is parenthesised: (a+b)<=c.
+     */
+    private static boolean isComparison( int operator )
+    {
+        return operator >= OP_GREATERTHAN && operator <= OP_LESSTHANOREQ;
+    }
+    
+    
+    /**
+     * @return the expression inside any parentheses.
+     */
+    static Expression unwrap( Expression e )
+    {
+        while( e instanceof BracketPair )
+            e = ((BracketPair)e).innerExpression;
+        
+        return e;
+    }
+    
+    
     @Override
     public String toString()
     {
@@ -888,8 +1917,7 @@ public class FormulaParser
     {
         Writer out = new CharArrayWriter();
         try { 
-            XMLOutputFactory output = XMLOutputFactory.newInstance();
-            XMLStreamWriter xmlStream = output.createXMLStreamWriter( out );
+            XMLStreamWriter xmlStream = getXMLOutputFactory().createXMLStreamWriter( out );
             
             //XSNamespace ns = binding.getSchema().getNamespace();
             //if ( ns != null )
@@ -897,7 +1925,7 @@ public class FormulaParser
                         
             xmlStream.writeStartDocument();      
             
-            expression.marshallXML( xmlStream );
+            expression.emit( new XMLFormulaHandler( xmlStream ) );
             xmlStream.flush();
             out.flush();
             return out.toString();
@@ -0,0 +1,494 @@
+/*
+A small HTTP server for parsing, validating and evaluating formulas.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small HTTP server, using only the JDK's com.sun.net.httpserver, so that
+ * the library can be run as a sidecar:
+ * 
+ * <pre>
+ * java -cp FormulaParser.jar cloud.mypattern.FormulaServer 8080
+ * </pre>
+ * 
+ * Each of these takes a POST of one or more formulas, one per line, encoded
+ * as UTF-8, and answers with one line for each of them:
+ * 
+ * <ul>
+ * <li>/parse - the XML, as FormulaParser.formulaToXML() gives it.
+ * <li>/validate - OK.
+ * <li>/evaluate?name=value&amp;... - the value, taking the variables from the
+ * query, e.g. /evaluate?a=1&amp;%40width=40 for a and @width.
+ * </ul>
+ * 
+ * A formula that fails gets the line "ERROR offset message", with an offset 
+ * of -1 if the error isn't a syntax error. 
+ * 
+ * So that an overloaded server stays responsive, a body of more than 4 MB 
+ * gets 413, and a request whose formulas don't fit in the queue, of 65536,
+ * gets 503 at once. A request still waiting after 30 seconds gets 503 too, 
+ * and those of its formulas not yet done are skipped.
+ * 
+ * GET /status answers with JSON of the number of requests, formulas and 
+ * batches, the number of formulas queued now and at most, the mean and 
+ * longest time a formula took from being queued to being done, and the 
+ * number of requests rejected as the queue was full and formulas skipped as
+ * their request had timed out.
+ * 
+ * The formulas of all the requests are put in one queue, from which each of 
+ * a few workers takes as many as there are, up to 256 at a time. So when 
+ * many small requests arrive at once they are done in batches, sharing the
+ * worker's FormulaValidator rather than making one for each formula.
+ * 
+ * @author Jason Dore
+ */
+public final class FormulaServer
+{
+    private static final int MAX_BATCH = 256;
+    
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final int MAX_BODY_BYTES = 4 << 20;
+    
+    //How long a request waits for its formulas before giving up.
+    private static final long TIMEOUT_MILLIS = 30000;
+    
+    private static final int PARSE    = 0;
+    private static final int VALIDATE = 1;
+    private static final int EVALUATE = 2;
+    
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final Thread[] workers;
+    private final BlockingQueue<Item> queue;
+    private final int maxBodyBytes;
+    private final long timeoutMillis;
+    private volatile boolean running;
+    
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong formulas = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong maxQueueDepth = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong(); //nanoseconds
+    private final AtomicLong maxLatency = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong();
+    
+    
+    /**
+     * What the formulas of one request share.
+     */
+    private static final class Request
+    {
+        final int mode;
+        final VariableResolver variables;
+        final CountDownLatch done;
+        
+        //Set once the client has been answered without the results.
+        volatile boolean abandoned;
+        
+        Request( int mode, VariableResolver variables, int count )
+        {
+            this.mode = mode;
+            this.variables = variables;
+            this.done = new CountDownLatch( count );
+        }
+    }
+    
+    
+    /**
+     * One formula of a request.
+     */
+    private static final class Item
+    {
+        final Request request;
+        final String formula;
+        final long queued = System.nanoTime();
+        String result;
+        
+        Item( Request request, String formula )
+        {
+            this.request = request;
+            this.formula = formula;
+        }
+    }
+    
+    
+    /**
+     * Create a server, which listens once started.
+     * 
+     * @param address
+     * @param workerCount the number of threads doing the formulas.
+     * @throws IOException if the address can't be bound.
+     */
+    public FormulaServer( InetSocketAddress address, int workerCount ) throws IOException
+    {
+        this( address, workerCount, QUEUE_CAPACITY, MAX_BODY_BYTES, TIMEOUT_MILLIS );
+    }
+    
+    
+    /**
+     * @param queueCapacity the most formulas queued at once.
+     * @param maxBodyBytes the largest request body.
+     * @param timeoutMillis how long a request waits for its formulas.
+     */
+    FormulaServer( InetSocketAddress address, int workerCount, int queueCapacity, int maxBodyBytes, long timeoutMillis ) throws IOException
+    {
+        queue = new LinkedBlockingQueue<>( queueCapacity );
+        this.maxBodyBytes = maxBodyBytes;
+        this.timeoutMillis = timeoutMillis;
+        
+        server = HttpServer.create( address, 0 );
+        server.createContext( "/parse", exchange -> handle( exchange, PARSE ) );
+        server.createContext( "/validate", exchange -> handle( exchange, VALIDATE ) );
+        server.createContext( "/evaluate", exchange -> handle( exchange, EVALUATE ) );
+        server.createContext( "/status", this::status );
+        
+        //The handlers only wait for the workers, so can be many.
+        handlers = Executors.newFixedThreadPool( 64, r -> {
+            Thread t = new Thread( r, "FormulaServer handler" );
+            t.setDaemon( true );
+            return t;
+        } );
+        server.setExecutor( handlers );
+        
+        workers = new Thread[ workerCount ];
+        for( int i=0; i<workerCount; i++ )
+        {
+            workers[i] = new Thread( this::work, "FormulaServer worker " + i );
+            workers[i].setDaemon( true );
+        }
+    }
+    
+    
+    /**
+     * Start a server on the loopback address.
+     * 
+     * @param args the port, by default 8080.
+     * @throws IOException 
+     */
+    public static void main( String[] args ) throws IOException
+    {
+        int port = args.length > 0 ? Integer.parseInt( args[0] ) : 8080;
+        FormulaServer server = new FormulaServer( new InetSocketAddress( InetAddress.getLoopbackAddress(), port ), 
+                                                  Runtime.getRuntime().availableProcessors() );
+        server.start();
+        System.out.println( "FormulaServer listening on port " + server.getPort() );
+    }
+    
+    
+    public void start()
+    {
+        running = true;
+        for( Thread worker : workers )
+            worker.start();
+        server.start();
+    }
+    
+    
+    /**
+     * Stop listening, and stop the workers once they have done what's queued.
+     */
+    public void stop()
+    {
+        server.stop( 0 );
+        running = false;
+        handlers.shutdown();
+    }
+    
+    
+    /**
+     * @return the port listened on, which is useful if it was 0 so chosen
+     * by the system.
+     */
+    public int getPort()
+    {
+        return server.getAddress().getPort();
+    }
+    
+    
+    private void handle( HttpExchange exchange, int mode ) throws IOException
+    {
+        try {
+            if ( ! exchange.getRequestMethod().equals( "POST" ) )
+            {
+                send( exchange, 405, "Use POST\n" );
+                return;
+            }
+            
+            VariableResolver variables = null;
+            if ( mode == EVALUATE )
+                variables = VariableResolver.of( parseQuery( exchange.getRequestURI().getRawQuery() ) );
+            
+            List<String> lines = readLines( exchange.getRequestBody(), maxBodyBytes );
+            if ( lines == null )
+            {
+                send( exchange, 413, "More than " + maxBodyBytes + " bytes\n" );
+                return;
+            }
+            
+            Request request = new Request( mode, variables, lines.size() );
+            List<Item> items = new ArrayList<>( lines.size() );
+            for( String line : lines )
+                items.add( new Item( request, line ) );
+            
+            requests.incrementAndGet();
+            for( Item item : items )
+            {
+                if ( ! queue.offer( item ) )
+                {
+                    //Any already queued are skipped.
+                    request.abandoned = true;
+                    rejected.incrementAndGet();
+                    send( exchange, 503, "Busy\n" );
+                    return;
+                }
+            }
+            maxQueueDepth.accumulateAndGet( queue.size(), Math::max );
+            
+            if ( ! request.done.await( timeoutMillis, TimeUnit.MILLISECONDS ) )
+            {
+                request.abandoned = true;
+                send( exchange, 503, "Timed out\n" );
+                return;
+            }
+            
+            StringBuilder response = new StringBuilder();
+            for( Item item : items )
+                response.append( item.result ).append( '\n' );
+            
+            send( exchange, 200, response.toString() );
+            
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            send( exchange, 503, "Interrupted\n" );
+        } catch ( IllegalArgumentException e ) {
+            send( exchange, 400, e.getMessage() + "\n" );
+        } finally {
+            exchange.close();
+        }
+    }
+    
+    
+    private void status( HttpExchange exchange ) throws IOException
+    {
+        try {
+            long count = formulas.get();
+            long batchCount = batches.get();
+            String json = "{\"requests\":" + requests.get()
+                        + ",\"formulas\":" + count
+                        + ",\"batches\":" + batchCount
+                        + ",\"meanBatchSize\":" + ( batchCount == 0 ? 0 : (double)count / batchCount )
+                        + ",\"queueDepth\":" + queue.size()
+                        + ",\"maxQueueDepth\":" + maxQueueDepth.get()
+                        + ",\"meanLatencyMicros\":" + ( count == 0 ? 0 : totalLatency.get() / count / 1000 )
+                        + ",\"maxLatencyMicros\":" + maxLatency.get() / 1000
+                        + ",\"rejected\":" + rejected.get()
+                        + ",\"abandoned\":" + abandoned.get()
+                        + "}\n";
+            exchange.getResponseHeaders().set( "Content-Type", "application/json" );
+            send( exchange, 200, json );
+        } finally {
+            exchange.close();
+        }
+    }
+    
+    
+    /**
+     * Take the queued formulas in batches and do them, until stopped.
+     */
+    private void work()
+    {
+        FormulaValidator validator = new FormulaValidator();
+        List<Item> batch = new ArrayList<>( MAX_BATCH );
+        
+        while( running || ! queue.isEmpty() )
+        {
+            try {
+                Item first = queue.poll( 100, TimeUnit.MILLISECONDS );
+                if ( first == null )
+                    continue;
+                
+                batch.add( first );
+                queue.drainTo( batch, MAX_BATCH - 1 );
+            } catch ( InterruptedException e ) {
+                return;
+            }
+            
+            batches.incrementAndGet();
+            
+            for( Item item : batch )
+            {
+                if ( item.request.abandoned )
+                {
+                    abandoned.incrementAndGet();
+                    continue;
+                }
+                
+                item.result = run( item, validator );
+                
+                long latency = System.nanoTime() - item.queued;
+                formulas.incrementAndGet();
+                totalLatency.addAndGet( latency );
+                maxLatency.accumulateAndGet( latency, Math::max );
+                item.request.done.countDown();
+            }
+            batch.clear();
+        }
+    }
+    
+    
+    /**
+     * @return the line answering the formula.
+     */
+    private static String run( Item item, FormulaValidator validator )
+    {
+        try {
+            switch( item.request.mode )
+            {
+                case PARSE:
+                    return FormulaParser.formulaToXML( item.formula );
+                    
+                case VALIDATE:
+                    if ( validator.validate( item.formula ) )
+                        return "OK";
+                    
+                    return "ERROR " + validator.getErrorOffset() + " " + validator.getErrorMessage();
+                    
+                default: //EVALUATE
+                    ParseResult result = FormulaParser.tryParse( item.formula );
+                    if ( ! result.isValid() )
+                        return "ERROR " + result.getError().getOffset() + " " + result.getError().getMessage();
+                    
+                    return Double.toString( new FormulaEvaluator( item.request.variables ).evaluate( result.getExpression() ) );
+            }
+        } catch ( FormulaParser.FormulaSyntaxException e ) {
+            Throwable cause = e.getCause();
+            if ( cause instanceof Stream.SyntaxException )
+                return "ERROR " + ((Stream.SyntaxException)cause).getOffset() + " " + cause.getMessage();
+            
+            return "ERROR -1 " + e.getMessage();
+            
+        } catch ( Exception e ) {
+            return "ERROR -1 " + e.getMessage();
+        }
+    }
+    
+    
+    /**
+     * @return the lines of the body, less any line ending, or null if it is
+     * more than maxBytes long.
+     */
+    private static List<String> readLines( InputStream in, int maxBytes ) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for( int n; ( n = in.read( buffer ) ) > 0; )
+        {
+            if ( bytes.size() + n > maxBytes )
+                return null;
+            bytes.write( buffer, 0, n );
+        }
+        
+        String body = new String( bytes.toByteArray(), StandardCharsets.UTF_8 );
+        
+        List<String> lines = new ArrayList<>();
+        int start = 0;
+        while( start < body.length() )
+        {
+            int end = body.indexOf( '\n', start );
+            if ( end < 0 )
+                end = body.length();
+            
+            lines.add( body.substring( start, end > start && body.charAt( end - 1 ) == '\r' ? end - 1 : end ) );
+            start = end + 1;
+        }
+        return lines;
+    }
+    
+    
+    /**
+     * @return the variables given in the query, e.g. a=1&amp;b=2.
+     * @throws IllegalArgumentException if a value is not a number.
+     */
+    static Map<String,Double> parseQuery( String query ) throws UnsupportedEncodingException
+    {
+        Map<String,Double> variables = new HashMap<>();
+        if ( query == null )
+            return variables;
+        
+        for( String pair : query.split( "&" ) )
+        {
+            int equals = pair.indexOf( '=' );
+            if ( equals < 0 )
+                continue;
+            
+            String name = URLDecoder.decode( pair.substring( 0, equals ), "UTF-8" );
+            String value = URLDecoder.decode( pair.substring( equals + 1 ), "UTF-8" );
+            try {
+                variables.put( name, Double.parseDouble( value ) );
+            } catch ( NumberFormatException e ) {
+                throw new IllegalArgumentException( "Not a number:" + name + "=" + value );
+            }
+        }
+        return variables;
+    }
+    
+    
+    private static void send( HttpExchange exchange, int code, String body ) throws IOException
+    {
+        byte[] bytes = body.getBytes( StandardCharsets.UTF_8 );
+        
+        if ( ! exchange.getResponseHeaders().containsKey( "Content-Type" ) )
+            exchange.getResponseHeaders().set( "Content-Type", "text/plain; charset=UTF-8" );
+        
+        exchange.sendResponseHeaders( code, bytes.length );
+        try ( OutputStream out = exchange.getResponseBody() ) {
+            out.write( bytes );
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+Checks the syntax of formulas without parsing them into anything.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+/**
+ * Checks formulas against the same grammar as FormulaParser, but without
+ * building anything.
+ *
+ * A validator reuses its buffers from one formula to the next, so checking a
+ * valid formula allocates nothing. It is not thread safe; use one per thread.
+ *
+ * <pre>
+ * FormulaValidator v = new FormulaValidator();
+ * if ( ! v.validate( formula ) )
+ *     reject( v.getErrorOffset(), v.getErrorMessage() );
+ * </pre>
+ *
+ * @author Jason Dore
+ */
+public class FormulaValidator
+{
+    private final Stream stream = new Stream( "" );
+    private final FormulaParser.Frames frames = new FormulaParser.Frames();
+
+    private int errorOffset = -1;
+    private String errorMessage;
+
+
+    /**
+     * Check the formula.
+     *
+     * @param formula
+     * @return true if FormulaParser would accept it.
+     */
+    public boolean validate( String formula )
+    {
+        stream.reset( formula );
+        errorOffset = -1;
+        errorMessage = null;
+
+        try {
+            FormulaParser.parse( stream, FormulaParser.RECOGNISE_ONLY, frames );
+            return true;
+        } catch ( Stream.SyntaxException e ) {
+            errorOffset = e.getOffset();
+            errorMessage = e.getMessage();
+            return false;
+        }
+    }
+
+
+    /**
+     * @return the offset of the character at which the last formula
+     * validated failed, or -1 if it was valid.
+     */
+    public int getErrorOffset()
+    {
+        return errorOffset;
+    }
+
+
+    /**
+     * @return why the last formula validated failed, or null if it was valid.
+     */
+    public String getErrorMessage()
+    {
+        return errorMessage;
+    }
+}
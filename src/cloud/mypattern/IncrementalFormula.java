@@ -0,0 +1,458 @@
+/*
+A parsed formula that can be edited without parsing all of it again.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+import cloud.mypattern.FormulaParser.Expression;
+import java.util.Arrays;
+
+/**
+ * A parsed formula that remembers where in the text each part came from, so
+ * that an edit can be applied by reparsing only the part it falls within.
+ *
+ * An edit inside a parenthesis, a function parameter or a ternary branch is
+ * reparsed on its own and spliced into a copy of the path down to it; the
+ * rest of the tree is shared with the previous version. If the edited part
+ * no longer parses on its own, e.g. because a parenthesis was deleted, the
+ * next part out is tried, and finally the whole formula. Either way the
+ * result is the same as parsing the new text from scratch.
+ *
+ * An IncrementalFormula is immutable; editing it returns a new one.
+ *
+ * <pre>
+ * IncrementalFormula f = IncrementalFormula.parse( "sqrt( a^2 + b^2 )" );
+ * f = f.edit( 15, 0, " + c^2" ); //sqrt( a^2 + b^2 + c^2 )
+ * </pre>
+ *
+ * @author Jason Dore
+ */
+public final class IncrementalFormula
+{
+    /**
+     * Where one Expression is in the text.
+     *
+     * Each operand's offset is relative to the start of this part, so a Span,
+     * like its Expression, can be reused after an edit earlier in the text.
+     */
+    static final class Span
+    {
+        private static final int[] NO_OFFSETS = new int[0];
+        private static final Span[] NO_OPERANDS = new Span[0];
+
+        final Expression expression;
+        final int length;
+        final int[] offsets;
+        final Span[] operands;
+
+        Span( Expression expression, int length, int[] offsets, Span[] operands )
+        {
+            this.expression = expression;
+            this.length = length;
+            this.offsets = offsets;
+            this.operands = operands;
+        }
+    }
+
+
+    /**
+     * Builds the Spans alongside the Expressions.
+     */
+    private static final class SpanBuilder extends FormulaParser.ExpressionBuilder
+    {
+        private Span[] spans = new Span[8];
+        private int[] starts = new int[8];
+        private int size;
+
+
+        @Override
+        public void integer( int i, int start, int end )
+        {
+            super.integer( i, start, end );
+            add( 0, start, end );
+        }
+
+
+        @Override
+        public void decimal( double d, int start, int end )
+        {
+            super.decimal( d, start, end );
+            add( 0, start, end );
+        }
+
+
+        @Override
+        public void variable( String token, boolean isCustom, boolean isHashToken, int start, int end )
+        {
+            super.variable( token, isCustom, isHashToken, start, end );
+            add( 0, start, end );
+        }
+
+
+        @Override
+        public void function( String function, int parameterCount, int start, int end )
+        {
+            super.function( function, parameterCount, start, end );
+            add( parameterCount, start, end );
+        }
+
+
+        @Override
+        public void parenthesis( int start, int end )
+        {
+            super.parenthesis( start, end );
+            add( 1, start, end );
+        }
+
+
+        @Override
+        public void operation( int operator )
+        {
+            super.operation( operator );
+            add( 2, starts[ size - 2 ], end() );
+        }
+
+
+        @Override
+        public void ternary()
+        {
+            super.ternary();
+            add( 3, starts[ size - 3 ], end() );
+        }
+
+
+        /**
+         * Record the Expression just built, which spans start to end and
+         * whose operands are the last parameterCount Spans.
+         */
+        private void add( int parameterCount, int start, int end )
+        {
+            int[] offsets = Span.NO_OFFSETS;
+            Span[] operands = Span.NO_OPERANDS;
+
+            if ( parameterCount > 0 )
+            {
+                offsets = new int[ parameterCount ];
+                operands = new Span[ parameterCount ];
+                size -= parameterCount;
+
+                for( int i=0; i<parameterCount; i++ )
+                {
+                    offsets[i] = starts[ size + i ] - start;
+                    operands[i] = spans[ size + i ];
+                    spans[ size + i ] = null;
+                }
+            }
+
+            if ( size == spans.length )
+            {
+                spans = Arrays.copyOf( spans, size * 2 );
+                starts = Arrays.copyOf( starts, size * 2 );
+            }
+
+            spans[ size ] = new Span( peek(), end - start, offsets, operands );
+            starts[ size ] = start;
+            size++;
+        }
+
+
+        private int end()
+        {
+            return starts[ size - 1 ] + spans[ size - 1 ].length;
+        }
+    }
+
+
+    private final String text;
+    private final int start; //of the outer expression, after any whitespace
+    private final Span root;
+
+    //How many characters were parsed to make this version, for testing.
+    final int reparsedLength;
+
+
+    private IncrementalFormula( String text, int start, Span root, int reparsedLength )
+    {
+        this.text = text;
+        this.start = start;
+        this.root = root;
+        this.reparsedLength = reparsedLength;
+    }
+
+
+    /**
+     * Parse the whole formula.
+     *
+     * @param formula
+     * @return
+     * @throws cloud.mypattern.Stream.SyntaxException
+     */
+    public static IncrementalFormula parse( String formula ) throws Stream.SyntaxException
+    {
+        SpanBuilder builder = new SpanBuilder();
+        FormulaParser.parse( new Stream( formula ), builder );
+        return new IncrementalFormula( formula, builder.starts[0], builder.spans[0], formula.length() );
+    }
+
+
+    /**
+     * Apply an edit to the text and parse the result, reusing as much of this
+     * version as possible.
+     *
+     * @param offset  Where the edit starts.
+     * @param deletedLength  The number of characters removed from offset.
+     * @param inserted  The text inserted at offset.
+     * @return the edited formula.
+     * @throws cloud.mypattern.Stream.SyntaxException if the edited text is
+     * not a valid formula, in which case the offset is within the new text.
+     */
+    public IncrementalFormula edit( int offset, int deletedLength, String inserted ) throws Stream.SyntaxException
+    {
+        int editEnd = offset + deletedLength;
+
+        if ( offset < 0 || deletedLength < 0 || editEnd > text.length() )
+            throw new IndexOutOfBoundsException( "Edit outside formula:" + offset + "," + deletedLength );
+
+        int delta = inserted.length() - deletedLength;
+        String newText = new StringBuilder( text.length() + delta )
+                             .append( text, 0, offset )
+                             .append( inserted )
+                             .append( text, editEnd, text.length() )
+                             .toString();
+
+        //Walk down to the deepest part that holds the whole edit, noting the
+        //parts that can be reparsed on their own.
+        Span[] path = new Span[16];
+        int[] starts = new int[16];
+        int[] operands = new int[16];     //which operand of the part above
+        int[] regionStarts = new int[16]; //-1 if it can't be reparsed alone
+        int[] regionEnds = new int[16];
+        int depth = 0;
+
+        Span span = root;
+        int spanStart = start;
+        int operand = -1;
+        int regionStart = -1;
+        int regionEnd = -1;
+
+        while( true )
+        {
+            if ( depth == path.length )
+            {
+                path = Arrays.copyOf( path, depth * 2 );
+                starts = Arrays.copyOf( starts, depth * 2 );
+                operands = Arrays.copyOf( operands, depth * 2 );
+                regionStarts = Arrays.copyOf( regionStarts, depth * 2 );
+                regionEnds = Arrays.copyOf( regionEnds, depth * 2 );
+            }
+
+            path[ depth ] = span;
+            starts[ depth ] = spanStart;
+            operands[ depth ] = operand;
+            regionStarts[ depth ] = regionStart;
+            regionEnds[ depth ] = regionEnd;
+            depth++;
+
+            operand = -1;
+            for( int i=0; i<span.operands.length && operand < 0; i++ )
+            {
+                int s = spanStart + span.offsets[i];
+                int e = s + span.operands[i].length;
+                int rs = skipWhiteSpaceBack( s );
+                int re = skipWhiteSpace( e );
+                boolean region = isRegion( span, i, rs, re );
+
+                if ( ! region )
+                {
+                    rs = s;
+                    re = e;
+                }
+
+                if ( rs <= offset && editEnd <= re )
+                {
+                    operand = i;
+                    regionStart = region ? rs : -1;
+                    regionEnd = region ? re : -1;
+                }
+            }
+
+            if ( operand < 0 )
+                break;
+
+            spanStart += span.offsets[ operand ];
+            span = span.operands[ operand ];
+        }
+
+        //Reparse the innermost region that still parses on its own.
+        for( int d = depth - 1; d > 0; d-- )
+        {
+            if ( regionStarts[d] < 0 )
+                continue;
+
+            Stream s = new Stream( newText.substring( regionStarts[d], regionEnds[d] + delta ) );
+            SpanBuilder builder = new SpanBuilder();
+            try {
+                FormulaParser.parse( s, builder );
+            } catch ( Stream.SyntaxException e ) {
+                continue;
+            }
+
+            if ( ! s.isEOF() )
+                continue;
+
+            Span child = builder.spans[0];
+            int childStart = regionStarts[d] + builder.starts[0];
+            int oldChildEnd = starts[d] + path[d].length;
+
+            for( int j = d - 1; j >= 0; j-- )
+            {
+                Span parent = path[j];
+                int i = operands[ j + 1 ];
+                int oldEnd = starts[j] + parent.length;
+                int newEnd = oldEnd == oldChildEnd ? childStart + child.length : oldEnd + delta;
+
+                int[] offsets = parent.offsets.clone();
+                offsets[i] = childStart - starts[j];
+                for( int k = i + 1; k < offsets.length; k++ )
+                    offsets[k] += delta;
+
+                Span[] children = parent.operands.clone();
+                children[i] = child;
+
+                child = new Span( parent.expression.withParameter( i, child.expression ), newEnd - starts[j], offsets, children );
+                childStart = starts[j];
+                oldChildEnd = oldEnd;
+            }
+
+            return new IncrementalFormula( newText, start, child, s.length );
+        }
+
+        return parse( newText );
+    }
+
+
+    /**
+     * Test whether operand i of the span is parsed as an expression of its
+     * own, between an opening and closing character: the inside of a
+     * parenthesis, a function parameter or a ternary branch.
+     *
+     * The characters either side are checked too. Once the region is parsed
+     * on its own they are what stops the parse in the full formula, so they
+     * have to be ones that can't continue an expression.
+     */
+    private boolean isRegion( Span span, int i, int regionStart, int regionEnd )
+    {
+        Expression e = span.expression;
+
+        if ( ! (   ( e instanceof FormulaParser.BracketPair )
+                || ( e instanceof FormulaParser.Function )
+                || ( e instanceof FormulaParser.TertiaryOperation && i > 0 ) ) )
+            return false;
+
+        if ( regionStart == 0 )
+            return false;
+
+        switch( text.charAt( regionStart - 1 ) )
+        {
+            case '(': case ',': case ';': case '?': case ':': break;
+            default: return false;
+        }
+
+        if ( regionEnd == text.length() )
+            return true;
+
+        switch( text.charAt( regionEnd ) )
+        {
+            case ')': case ',': case ';': case ':': return true;
+            default: return false;
+        }
+    }
+
+
+    private int skipWhiteSpaceBack( int i )
+    {
+        while( i > 0 && Stream.isWhiteSpace( text.charAt( i - 1 ) ) )
+            i--;
+        return i;
+    }
+
+
+    private int skipWhiteSpace( int i )
+    {
+        while( i < text.length() && Stream.isWhiteSpace( text.charAt( i ) ) )
+            i++;
+        return i;
+    }
+
+
+    public String getText()
+    {
+        return text;
+    }
+
+
+    /**
+     * @return the parsed formula, which may be shared between threads.
+     */
+    public Expression getExpression()
+    {
+        return root.expression;
+    }
+
+
+    /**
+     * Find the innermost part of the formula at a position in the text, e.g.
+     * to highlight what the cursor is in.
+     *
+     * @param offset
+     * @return the Expression, or null if offset is outside the formula.
+     */
+    public Expression getExpressionAt( int offset )
+    {
+        Span span = root;
+        int spanStart = start;
+
+        if ( offset < spanStart || offset >= spanStart + span.length )
+            return null;
+
+        while( true )
+        {
+            Span next = null;
+            for( int i=0; i<span.operands.length && next == null; i++ )
+            {
+                int s = spanStart + span.offsets[i];
+                if ( offset >= s && offset < s + span.operands[i].length )
+                {
+                    next = span.operands[i];
+                    spanStart = s;
+                }
+            }
+
+            if ( next == null )
+                return span.expression;
+
+            span = next;
+        }
+    }
+}
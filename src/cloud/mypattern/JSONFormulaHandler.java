@@ -0,0 +1,220 @@
+/*
+Writes the events of a parsed formula as JSON.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * A FormulaHandler that writes the formula as JSON, with the same structure
+ * and names as the XML. E.g. "(a + 5) / 2" is written as:
+ *
+ * <pre>
+ * {"operation":"divide","operands":[
+ *   {"parenthesis":{"operation":"add","operands":[{"variable":"a"},{"integer":5}]}},
+ *   {"integer":2}]}
+ * </pre>
+ *
+ * but on one line. A custom variable has "custom":true and an increment
+ * "hash":true. A decimal that is not a JSON number, e.g. NaN, is written as a
+ * string.
+ *
+ * @author Jason Dore
+ */
+public class JSONFormulaHandler extends StreamFormulaHandler
+{
+    //For the top level and each open object or array, whether anything has
+    //been written in it yet.
+    private boolean[] written = new boolean[16];
+    private int depth;
+
+
+    public JSONFormulaHandler( OutputStream out )
+    {
+        super( out );
+    }
+
+
+    public JSONFormulaHandler( WritableByteChannel channel )
+    {
+        super( channel );
+    }
+
+
+    @Override
+    public void startOperation( String type ) throws IOException
+    {
+        value();
+        write( "{\"operation\":" );
+        string( type );
+        write( ",\"operands\":[" );
+        open();
+    }
+
+
+    @Override
+    public void endOperation() throws IOException
+    {
+        depth--;
+        write( "]}" );
+    }
+
+
+    @Override
+    public void startFunction( String function ) throws IOException
+    {
+        value();
+        write( "{\"function\":" );
+        string( function );
+        write( ",\"operands\":[" );
+        open();
+    }
+
+
+    @Override
+    public void endFunction() throws IOException
+    {
+        depth--;
+        write( "]}" );
+    }
+
+
+    @Override
+    public void startParenthesis() throws IOException
+    {
+        value();
+        write( "{\"parenthesis\":" );
+        open();
+    }
+
+
+    @Override
+    public void endParenthesis() throws IOException
+    {
+        depth--;
+        write( '}' );
+    }
+
+
+    @Override
+    public void variable( String name, boolean isCustom, boolean isHashToken ) throws IOException
+    {
+        value();
+        write( "{\"variable\":" );
+        string( name );
+
+        if ( isCustom )
+            write( ",\"custom\":true" );
+
+        if ( isHashToken )
+            write( ",\"hash\":true" );
+
+        write( '}' );
+    }
+
+
+    @Override
+    public void integer( int i ) throws IOException
+    {
+        value();
+        write( "{\"integer\":" );
+        write( i );
+        write( '}' );
+    }
+
+
+    @Override
+    public void decimal( double d ) throws IOException
+    {
+        value();
+        write( "{\"decimal\":" );
+
+        if ( Double.isNaN( d ) || Double.isInfinite( d ) )
+            string( Double.toString( d ) );
+        else
+            write( Double.toString( d ) );
+
+        write( '}' );
+    }
+
+
+    /**
+     * Separate this value from the one before, if there was one.
+     */
+    private void value() throws IOException
+    {
+        if ( written[ depth ] )
+            write( depth == 0 ? '\n' : ',' );
+
+        written[ depth ] = true;
+    }
+
+
+    private void open()
+    {
+        if ( ++depth == written.length )
+            written = Arrays.copyOf( written, depth * 2 );
+
+        written[ depth ] = false;
+    }
+
+
+    private void string( String s ) throws IOException
+    {
+        write( '"' );
+
+        //Write the characters between those that need escaping as they are.
+        int length = s.length();
+        int start = 0;
+        for( int i=0; i<length; i++ )
+        {
+            char c = s.charAt( i );
+
+            if ( c != '"' && c != '\\' && c >= 0x20 )
+                continue;
+
+            write( s, start, i );
+            start = i + 1;
+
+            if ( c < 0x20 )
+            {
+                write( "\\u00" );
+                write( Character.forDigit( c >> 4, 16 ) );
+                write( Character.forDigit( c & 0xf, 16 ) );
+            }
+            else
+            {
+                write( '\\' );
+                write( c );
+            }
+        }
+
+        write( s, start, length );
+        write( '"' );
+    }
+}
@@ -0,0 +1,362 @@
+/*
+Turns parsed formulas into JavaScript that evaluates them.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+import cloud.mypattern.FormulaParser.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Turns parsed formulas into JavaScript, so that a browser can evaluate them
+ * itself, e.g. as a measurement is changed, without asking the server.
+ *
+ * The source is an expression whose value is a function of an object of the
+ * variables' values, or for a whole pattern an object of such functions by 
+ * id, so it can be made once and cached:
+ *
+ * <pre>
+ * String js = JavaScriptEmitter.toJavaScript( formulasById );
+ * ... var pattern = new Function( "return " + js )();
+ * ... pattern["A12.length"]( { "bust_circ": 92, "#ease": 2 } );
+ * </pre>
+ *
+ * The results are those of FormulaEvaluator: every operation is written in
+ * parentheses, so the precedence is that of the parsed formula; a comparison
+ * is 1 or 0; a ternary takes any condition other than 0 as true, evaluating
+ * only the branch taken; and the functions are those of Math where they 
+ * behave the same, or else small functions that do, e.g. min and max of a 
+ * NaN, and rint. An unknown variable throws an Error. Only the functions 
+ * used are included, and the source needs nothing but ES5.
+ *
+ * @author Jason Dore
+ */
+public final class JavaScriptEmitter
+{
+    private static final int VALUE = 0;
+    private static final int DEGREES = 1;
+    private static final int MIN = 2;
+    private static final int MAX = 3;
+    private static final int RINT = 4;
+    private static final int SIGN = 5;
+    private static final int LOG10 = 6;
+    private static final int SINH = 7;
+    private static final int COSH = 8;
+    private static final int TANH = 9;
+    private static final int ASINH = 10;
+    private static final int ACOSH = 11;
+    private static final int ATANH = 12;
+
+    //The definition of each of the above, written out if it is used.
+    private static final String[] HELPERS = {
+        "function value(o,n){var x=o[n];if(typeof x!==\"number\")throw new Error(\"Unknown variable:\"+n);return x;}",
+        "var D=Math.PI/180;",
+        "function min(a,b){return b<a?b:a;}",
+        "function max(a,b){return b>a?b:a;}",
+        "function rint(x){var r=Math.round(x);return r-x===0.5&&r%2!==0?r-1:r;}",
+        "var sign=Math.sign||function(x){return x>0?1:x<0?-1:x;};",
+        "var log10=Math.log10||function(x){return Math.log(x)/Math.LN10;};",
+        "var sinh=Math.sinh||function(x){return(Math.exp(x)-Math.exp(-x))/2;};",
+        "var cosh=Math.cosh||function(x){return(Math.exp(x)+Math.exp(-x))/2;};",
+        "var tanh=Math.tanh||function(x){var e=Math.exp(2*x);return x>20?1:x<-20?-1:(e-1)/(e+1);};",
+        //As FormulaEvaluator works these out itself, so do the same.
+        "function asinh(x){var y=Math.log(Math.abs(x)+Math.sqrt(x*x+1));return x<0?-y:y;}",
+        "function acosh(x){return Math.log(x+Math.sqrt(x*x-1));}",
+        "function atanh(x){return 0.5*Math.log((1+x)/(1-x));}",
+    };
+
+    //For each function, the text before, between and after its parameters,
+    //and the helper it uses if any.
+    private static final Map<String,Object[]> FUNCTIONS = new HashMap<>();
+    private static final Map<String,Object[]> FUNCTIONS2 = new HashMap<>();
+
+    static {
+        function( "-",        "(-", ")" );
+        function( "sin",      "Math.sin(", ")" );
+        function( "cos",      "Math.cos(", ")" );
+        function( "tan",      "Math.tan(", ")" );
+        function( "asin",     "Math.asin(", ")" );
+        function( "acos",     "Math.acos(", ")" );
+        function( "atan",     "Math.atan(", ")" );
+        function( "sinD",     "Math.sin(", "*D)", DEGREES );
+        function( "cosD",     "Math.cos(", "*D)", DEGREES );
+        function( "tanD",     "Math.tan(", "*D)", DEGREES );
+        function( "asinD",    "(Math.asin(", ")/D)", DEGREES );
+        function( "acosD",    "(Math.acos(", ")/D)", DEGREES );
+        function( "atanD",    "(Math.atan(", ")/D)", DEGREES );
+        function( "sinh",     "sinh(", ")", SINH );
+        function( "cosh",     "cosh(", ")", COSH );
+        function( "tanh",     "tanh(", ")", TANH );
+        function( "asinh",    "asinh(", ")", ASINH );
+        function( "acosh",    "acosh(", ")", ACOSH );
+        function( "atanh",    "atanh(", ")", ATANH );
+        function( "log2",     "(Math.log(", ")/Math.log(2))" );
+        function( "log10",    "log10(", ")", LOG10 );
+        function( "log",      "log10(", ")", LOG10 );
+        function( "ln",       "Math.log(", ")" );
+        function( "exp",      "Math.exp(", ")" );
+        function( "sqrt",     "Math.sqrt(", ")" );
+        function( "sign",     "sign(", ")", SIGN );
+        function( "rint",     "rint(", ")", RINT );
+        function( "abs",      "Math.abs(", ")" );
+        function( "degTorad", "(", "*D)", DEGREES );
+        function( "radTodeg", "(", "/D)", DEGREES );
+
+        function2( "min",  "min(", ",", ")", MIN );
+        function2( "max",  "max(", ",", ")", MAX );
+        function2( "sum",  "(", "+", ")", -1 );
+        function2( "avg",  "((", "+", ")/2)", -1 );
+        function2( "fmod", "(", "%", ")", -1 ); //% of doubles is fmod in both
+    }
+
+    private final StringBuilder js = new StringBuilder();
+    private final boolean[] used = new boolean[ HELPERS.length ];
+    private final Deque<Object> stack = new ArrayDeque<>();
+
+
+    private JavaScriptEmitter()
+    {
+    }
+
+
+    /**
+     * @param e
+     * @return the source of a function of an object of the variables' values.
+     * @throws IllegalArgumentException if the formula uses an unknown function.
+     */
+    public static String toJavaScript( Expression e )
+    {
+        JavaScriptEmitter emitter = new JavaScriptEmitter();
+        emitter.function( e );
+        return emitter.wrap( emitter.js );
+    }
+
+
+    /**
+     * @param formulas by id.
+     * @return the source of an object of the functions of the formulas by id,
+     * each of an object of the variables' values.
+     * @throws IllegalArgumentException if a formula uses an unknown function.
+     */
+    public static String toJavaScript( Map<String,? extends Expression> formulas )
+    {
+        JavaScriptEmitter emitter = new JavaScriptEmitter();
+        StringBuilder js = emitter.js;
+
+        js.append( '{' );
+        for( Map.Entry<String,? extends Expression> formula : formulas.entrySet() )
+        {
+            if ( js.length() > 1 )
+                js.append( ',' );
+
+            quote( formula.getKey(), js );
+            js.append( ':' );
+            emitter.function( formula.getValue() );
+        }
+        js.append( '}' );
+
+        return emitter.wrap( js );
+    }
+
+
+    /**
+     * Put the helpers used, and then the value, in a function of their own.
+     */
+    private String wrap( CharSequence value )
+    {
+        StringBuilder s = new StringBuilder( value.length() + 256 );
+        s.append( "(function(){\"use strict\";" );
+        for( int i=0; i<HELPERS.length; i++ )
+            if ( used[i] )
+                s.append( HELPERS[i] );
+        s.append( "return " ).append( value ).append( ";})()" );
+        return s.toString();
+    }
+
+
+    private void function( Expression e )
+    {
+        js.append( "function(values){return " );
+        expression( e );
+        js.append( ";}" );
+    }
+
+
+    /**
+     * Write an expression, walking it with a stack of the parts still to 
+     * write, each a String or an Expression, so that deeply nested formulas
+     * are fine.
+     */
+    private void expression( Expression e )
+    {
+        stack.push( e );
+
+        while( ! stack.isEmpty() )
+        {
+            Object o = stack.pop();
+
+            if ( o instanceof String )
+            {
+                js.append( (String)o );
+                continue;
+            }
+
+            e = (Expression)o;
+
+            if ( e instanceof IntegerToken )
+            {
+                int i = ((IntegerToken)e).i;
+                if ( i < 0 )
+                    js.append( '(' ).append( i ).append( ')' );
+                else
+                    js.append( i );
+            }
+            else if ( e instanceof DoubleToken )
+            {
+                double d = ((DoubleToken)e).d;
+                if ( d < 0 || ( d == 0 && 1 / d < 0 ) ) //including -0.0
+                    js.append( '(' ).append( d ).append( ')' );
+                else
+                    js.append( d ); //e.g. 1.0E-7, NaN and Infinity are JavaScript too
+            }
+            else if ( e instanceof Token )
+            {
+                used[ VALUE ] = true;
+                js.append( "value(values," );
+                quote( ((Token)e).token, js );
+                js.append( ')' );
+            }
+            else if ( e instanceof BracketPair )
+            {
+                //Every operation is in parentheses anyway.
+                stack.push( ((BracketPair)e).innerExpression );
+            }
+            else if ( e instanceof TertiaryOperation )
+            {
+                TertiaryOperation t = (TertiaryOperation)e;
+                push( "(", t.condition, "!==0?", t.ifTrue, ":", t.ifFalse, ")" );
+            }
+            else if ( e instanceof TwoParameterOperation )
+            {
+                TwoParameterOperation t = (TwoParameterOperation)e;
+                switch( t.operator )
+                {
+                    case FormulaParser.OP_ADD:             push( "(", t.parameter1, "+", t.parameter2, ")" ); break;
+                    case FormulaParser.OP_SUBTRACT:        push( "(", t.parameter1, "-", t.parameter2, ")" ); break;
+                    case FormulaParser.OP_MULT:            push( "(", t.parameter1, "*", t.parameter2, ")" ); break;
+                    case FormulaParser.OP_DIVIDE:          push( "(", t.parameter1, "/", t.parameter2, ")" ); break;
+                    case FormulaParser.OP_POWER:           push( "Math.pow(", t.parameter1, ",", t.parameter2, ")" ); break;
+                    case FormulaParser.OP_GREATERTHAN:     push( "(", t.parameter1, ">", t.parameter2, "?1:0)" ); break;
+                    case FormulaParser.OP_LESSTHAN:        push( "(", t.parameter1, "<", t.parameter2, "?1:0)" ); break;
+                    case FormulaParser.OP_GREATERTHANOREQ: push( "(", t.parameter1, ">=", t.parameter2, "?1:0)" ); break;
+                    case FormulaParser.OP_LESSTHANOREQ:    push( "(", t.parameter1, "<=", t.parameter2, "?1:0)" ); break;
+                    case FormulaParser.OP_EQUALS:          push( "(", t.parameter1, "===", t.parameter2, "?1:0)" ); break;
+                    case FormulaParser.OP_NOTEQUALS:       push( "(", t.parameter1, "!==", t.parameter2, "?1:0)" ); break;
+                    default:
+                        throw new IllegalArgumentException( "Unknown operator:" + t.operator );
+                }
+            }
+            else
+            {
+                Function f = (Function)e;
+                if ( f.parameter2 == null )
+                {
+                    Object[] text = FUNCTIONS.get( f.function );
+                    if ( text == null )
+                        throw new IllegalArgumentException( "Unknown function:" + f.function );
+
+                    use( (int)text[2] );
+                    push( text[0], f.parameter1, text[1] );
+                }
+                else
+                {
+                    Object[] text = FUNCTIONS2.get( f.function );
+                    if ( text == null )
+                        throw new IllegalArgumentException( "Unknown function:" + f.function + "(2)" );
+
+                    use( (int)text[3] );
+                    push( text[0], f.parameter1, text[1], f.parameter2, text[2] );
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Push the parts to be written next, so the first is the next popped.
+     */
+    private void push( Object... parts )
+    {
+        for( int i=parts.length-1; i>=0; i-- )
+            stack.push( parts[i] );
+    }
+
+
+    private void use( int helper )
+    {
+        if ( helper >= 0 )
+            used[ helper ] = true;
+    }
+
+
+    /**
+     * Write s as a JavaScript string literal.
+     */
+    private static void quote( String s, StringBuilder js )
+    {
+        js.append( '"' );
+        for( int i=0; i<s.length(); i++ )
+        {
+            char c = s.charAt( i );
+            if ( c == '"' || c == '\\' )
+                js.append( '\\' ).append( c );
+            else if ( c < 0x20 || c == 0x2028 || c == 0x2029 ) //the last two end a line in JavaScript
+                js.append( String.format( "\\u%04x", (int)c ) );
+            else
+                js.append( c );
+        }
+        js.append( '"' );
+    }
+
+
+    private static void function( String name, String before, String after )
+    {
+        function( name, before, after, -1 );
+    }
+
+
+    private static void function( String name, String before, String after, int helper )
+    {
+        FUNCTIONS.put( name, new Object[] { before, after, helper } );
+    }
+
+
+    private static void function2( String name, String before, String between, String after, int helper )
+    {
+        FUNCTIONS2.put( name, new Object[] { before, between, after, helper } );
+    }
+}
@@ -0,0 +1,88 @@
+/*
+Connects the nodes of a ShardedFormulaCache within one process.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A FormulaCacheTransport that calls the other nodes directly, for tests and
+ * for nodes that share a host. Each node is registered once made, and can be
+ * unregistered to see how the others manage without it:
+ *
+ * <pre>
+ * LoopbackTransport transport = new LoopbackTransport();
+ * List&lt;String&gt; nodes = Arrays.asList( "a", "b", "c" );
+ * for( String node : nodes )
+ *     transport.register( new ShardedFormulaCache( node, nodes, transport ) );
+ * </pre>
+ *
+ * Entries are copied each way, as they would be over a network.
+ *
+ * @author Jason Dore
+ */
+public final class LoopbackTransport implements FormulaCacheTransport
+{
+    private final Map<String,ShardedFormulaCache> nodes = new ConcurrentHashMap<>();
+
+
+    public void register( ShardedFormulaCache cache )
+    {
+        nodes.put( cache.getNode(), cache );
+    }
+
+
+    public void unregister( String node )
+    {
+        nodes.remove( node );
+    }
+
+
+    @Override
+    public byte[] get( String node, String formula ) throws IOException
+    {
+        byte[] entry = find( node ).getEntry( formula );
+        return entry == null ? null : entry.clone();
+    }
+
+
+    @Override
+    public void put( String node, String formula, byte[] entry ) throws IOException
+    {
+        find( node ).putEntry( formula, entry.clone() );
+    }
+
+
+    private ShardedFormulaCache find( String node ) throws IOException
+    {
+        ShardedFormulaCache cache = nodes.get( node );
+        if ( cache == null )
+            throw new IOException( "No node:" + node );
+
+        return cache;
+    }
+}
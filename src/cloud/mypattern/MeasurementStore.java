@@ -0,0 +1,116 @@
+/*
+Publishes snapshots of measurements to concurrent readers.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/**
+ * Holds the latest Measurements snapshot, for an editor to change while 
+ * other threads evaluate formulas, neither locking:
+ * 
+ * <pre>
+ * MeasurementStore store = new MeasurementStore();
+ * store.set( "bust_circ", 92 );                             //editor
+ * 
+ * FormulaEvaluator evaluator = store.evaluator();           //render, for a batch
+ * for( Expression e : formulas )
+ *     evaluator.evaluate( e );
+ * </pre>
+ * 
+ * Each change publishes a new snapshot atomically, so a reader sees either
+ * all of a change or none of it, and one evaluator sees only the snapshot 
+ * it was made with.
+ * 
+ * @author Jason Dore
+ */
+public final class MeasurementStore
+{
+    private final AtomicReference<Measurements> current = new AtomicReference<>( Measurements.empty() );
+    
+    
+    /**
+     * @return the latest snapshot.
+     */
+    public Measurements snapshot()
+    {
+        return current.get();
+    }
+    
+    
+    /**
+     * @return an evaluator reading the latest snapshot, and only that, 
+     * however many formulas it evaluates.
+     */
+    public FormulaEvaluator evaluator()
+    {
+        return new FormulaEvaluator( current.get() );
+    }
+    
+    
+    /**
+     * @return the snapshot published.
+     */
+    public Measurements set( String name, double value )
+    {
+        return update( m -> m.with( name, value ) );
+    }
+    
+    
+    /**
+     * Set many values, all published at once.
+     * 
+     * @return the snapshot published.
+     */
+    public Measurements setAll( Map<String,? extends Number> values )
+    {
+        return update( m -> m.with( values ) );
+    }
+    
+    
+    /**
+     * @return the snapshot published.
+     */
+    public Measurements remove( String name )
+    {
+        return update( m -> m.without( name ) );
+    }
+    
+    
+    /**
+     * Publish a change made to the latest snapshot. If another thread 
+     * publishes first, the change is made again to theirs, so must have no
+     * side effects.
+     * 
+     * @param change
+     * @return the snapshot published.
+     */
+    public Measurements update( UnaryOperator<Measurements> change )
+    {
+        return current.updateAndGet( change );
+    }
+}
@@ -0,0 +1,262 @@
+/*
+An immutable, versioned snapshot of the values of variables.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An immutable snapshot of the values of variables, e.g. the measurements 
+ * and increments of a pattern, that any number of threads can read without
+ * locking. 
+ * 
+ * Changing a value makes a new snapshot with the next version, leaving this
+ * one as it was. Each name has a slot, given the first time the name is 
+ * used and kept by every later snapshot, and the values are held in pages of 
+ * 64 slots. A new snapshot copies only the array of pages and the pages 
+ * changed, sharing the rest, so changing one value of thousands is cheap.
+ * 
+ * A snapshot is a VariableResolver, so evaluating a batch of formulas with 
+ * one gives the values as they all were at one time, whatever is changed 
+ * meanwhile. MeasurementStore publishes snapshots for writers and readers 
+ * on different threads.
+ * 
+ * @author Jason Dore
+ */
+public final class Measurements implements VariableResolver
+{
+    private static final int PAGE_BITS = 6;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    
+    private final Slots slots;
+    private final Page[] pages;
+    private final int size;
+    private final long version;
+    
+    
+    /**
+     * The slot of each name, shared by a snapshot and all those made from it,
+     * which only ever gains names.
+     */
+    private static final class Slots
+    {
+        final ConcurrentHashMap<String,Integer> slots = new ConcurrentHashMap<>();
+        final AtomicInteger next = new AtomicInteger();
+        
+        int slot( String name )
+        {
+            Integer slot = slots.get( name );
+            return slot != null ? slot : slots.computeIfAbsent( name, n -> next.getAndIncrement() );
+        }
+        
+        int find( String name )
+        {
+            Integer slot = slots.get( name );
+            return slot != null ? slot : -1;
+        }
+    }
+    
+    
+    /**
+     * The values of 64 slots, and which of them have values.
+     */
+    private static final class Page
+    {
+        final double[] values;
+        long present;
+        
+        Page()
+        {
+            values = new double[ PAGE_SIZE ];
+        }
+        
+        Page( Page p )
+        {
+            values = p.values.clone();
+            present = p.present;
+        }
+    }
+    
+    
+    private Measurements( Slots slots, Page[] pages, int size, long version )
+    {
+        this.slots = slots;
+        this.pages = pages;
+        this.size = size;
+        this.version = version;
+    }
+    
+    
+    /**
+     * @return a snapshot with no values, of version 0.
+     */
+    public static Measurements empty()
+    {
+        return new Measurements( new Slots(), new Page[0], 0, 0 );
+    }
+    
+    
+    /**
+     * @return the version, which is one more than that of the snapshot this
+     * was made from.
+     */
+    public long getVersion()
+    {
+        return version;
+    }
+    
+    
+    /**
+     * @return the number of variables with values.
+     */
+    public int size()
+    {
+        return size;
+    }
+    
+    
+    public boolean contains( String name )
+    {
+        int slot = slots.find( name );
+        if ( slot < 0 || ( slot >>> PAGE_BITS ) >= pages.length )
+            return false;
+        
+        Page page = pages[ slot >>> PAGE_BITS ];
+        return page != null && ( page.present & ( 1L << slot ) ) != 0;
+    }
+    
+    
+    /**
+     * @param name
+     * @return its value.
+     * @throws IllegalArgumentException if it has none.
+     */
+    @Override
+    public double resolve( String name )
+    {
+        int slot = slots.find( name );
+        if ( slot >= 0 && ( slot >>> PAGE_BITS ) < pages.length )
+        {
+            Page page = pages[ slot >>> PAGE_BITS ];
+            if ( page != null && ( page.present & ( 1L << slot ) ) != 0 )
+                return page.values[ slot & ( PAGE_SIZE - 1 ) ];
+        }
+        throw new IllegalArgumentException( "Unknown variable:" + name );
+    }
+    
+    
+    /**
+     * @param name
+     * @param value
+     * @return a snapshot with the value set.
+     */
+    public Measurements with( String name, double value )
+    {
+        return with( Collections.singletonMap( name, value ) );
+    }
+    
+    
+    /**
+     * @param values
+     * @return a snapshot with all the values set, copying each page changed
+     * only once.
+     */
+    public Measurements with( Map<String,? extends Number> values )
+    {
+        if ( values.isEmpty() )
+            return this;
+        
+        Page[] copy = pages;
+        boolean[] copied = null;
+        int count = size;
+        
+        for( Map.Entry<String,? extends Number> e : values.entrySet() )
+        {
+            int slot = slots.slot( e.getKey() );
+            int p = slot >>> PAGE_BITS;
+            
+            if ( p >= copy.length || copy == pages )
+            {
+                copy = Arrays.copyOf( copy, Math.max( copy.length, p + 1 ) );
+                copied = copied == null ? new boolean[ copy.length ] : Arrays.copyOf( copied, copy.length );
+            }
+            
+            if ( ! copied[p] )
+            {
+                copy[p] = copy[p] == null ? new Page() : new Page( copy[p] );
+                copied[p] = true;
+            }
+            
+            Page page = copy[p];
+            if ( ( page.present & ( 1L << slot ) ) == 0 )
+                count++;
+            
+            page.present |= 1L << slot;
+            page.values[ slot & ( PAGE_SIZE - 1 ) ] = e.getValue().doubleValue();
+        }
+        
+        return new Measurements( slots, copy, count, version + 1 );
+    }
+    
+    
+    /**
+     * @param name
+     * @return a snapshot without a value for the name, or this if it has none.
+     */
+    public Measurements without( String name )
+    {
+        if ( ! contains( name ) )
+            return this;
+        
+        int slot = slots.find( name );
+        Page[] copy = pages.clone();
+        Page page = copy[ slot >>> PAGE_BITS ] = new Page( pages[ slot >>> PAGE_BITS ] );
+        page.present &= ~( 1L << slot );
+        return new Measurements( slots, copy, size - 1, version + 1 );
+    }
+    
+    
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder( "Measurements version:" ).append( version ).append( " {" );
+        boolean first = true;
+        for( Map.Entry<String,Integer> e : slots.slots.entrySet() )
+        {
+            if ( ! contains( e.getKey() ) )
+                continue;
+            
+            if ( ! first )
+                sb.append( ", " );
+            first = false;
+            sb.append( e.getKey() ).append( '=' ).append( resolve( e.getKey() ) );
+        }
+        return sb.append( '}' ).toString();
+    }
+}
@@ -0,0 +1,188 @@
+/*
+A VariableResolver that resolves each variable at most once.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A VariableResolver that asks another for each variable at most once, and 
+ * remembers the value, e.g. for references to the geometry of a pattern such 
+ * as Line_A1_A2 or Spl_A1_A2 that are expensive to work out. 
+ * 
+ * As FormulaEvaluator only asks for the variables an evaluation reaches, 
+ * those in an untaken branch of a ternary are never worked out at all.
+ * 
+ * One resolver can be shared by all the formulas of a pattern, evaluated by
+ * any number of threads. If a variable is asked for while another thread is
+ * working it out, the second thread waits for the first rather than working
+ * it out again. The resolver it wraps may itself evaluate formulas using 
+ * this resolver, e.g. to work out a point from the formulas that place it; 
+ * a variable that would need itself is an IllegalArgumentException, even 
+ * where the cycle passes through other threads, each waiting for the next. 
+ * 
+ * A variable that can't be resolved is not remembered, so is asked for again 
+ * next time.
+ * 
+ * @author Jason Dore
+ */
+public final class MemoizingResolver implements VariableResolver
+{
+    private final VariableResolver resolver;
+    private final ConcurrentMap<String,CompletableFuture<Double>> values = new ConcurrentHashMap<>();
+    
+    //The thread working out each variable, and the variable each thread is 
+    //waiting for, to find variables that need themselves, via any threads.
+    private final ConcurrentMap<String,Thread> owners = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Thread,String> waiting = new ConcurrentHashMap<>();
+    
+    
+    public MemoizingResolver( VariableResolver resolver )
+    {
+        this.resolver = resolver;
+    }
+    
+    
+    @Override
+    public double resolve( String name )
+    {
+        CompletableFuture<Double> value = values.get( name );
+        
+        if ( value == null )
+        {
+            CompletableFuture<Double> ours = new CompletableFuture<>();
+            value = values.putIfAbsent( name, ours );
+            
+            if ( value == null )
+                return resolve( name, ours );
+        }
+        
+        Thread thread = Thread.currentThread();
+        if ( ! value.isDone() )
+        {
+            //Say what this thread is waiting for before looking for a cycle, 
+            //so of threads that start waiting on each other at once at least
+            //the last sees the whole cycle.
+            waiting.put( thread, name );
+            if ( isCircular( name, thread ) )
+            {
+                waiting.remove( thread );
+                throw new IllegalArgumentException( "Circular reference:" + name );
+            }
+        }
+        
+        try {
+            return value.join();
+        } catch ( CompletionException e ) {
+            if ( e.getCause() instanceof RuntimeException )
+                throw (RuntimeException)e.getCause();
+            
+            throw e;
+        } finally {
+            waiting.remove( thread );
+        }
+    }
+    
+    
+    /**
+     * Whether waiting for the variable would wait for this thread, i.e. its
+     * owner is this thread, or is waiting for one whose owner is, and so on.
+     */
+    private boolean isCircular( String name, Thread thread )
+    {
+        //Each step is a different thread unless there is a cycle, which may
+        //not include this thread, so give up after as many as could be.
+        for( int steps = waiting.size() + 1; steps >= 0 && name != null; steps-- )
+        {
+            Thread owner = owners.get( name );
+            if ( owner == thread )
+                return true;
+            
+            if ( owner == null ) //worked out since
+                return false;
+            
+            name = waiting.get( owner );
+        }
+        return false;
+    }
+    
+    
+    /**
+     * Work out a value that this thread is first to ask for.
+     */
+    private double resolve( String name, CompletableFuture<Double> value )
+    {
+        owners.put( name, Thread.currentThread() );
+        try {
+            double d = resolver.resolve( name );
+            value.complete( d );
+            return d;
+        } catch ( RuntimeException | Error e ) {
+            values.remove( name, value );
+            value.completeExceptionally( e );
+            throw e;
+        } finally {
+            owners.remove( name );
+        }
+    }
+    
+    
+    /**
+     * @param name
+     * @return whether the variable has been resolved, so won't be asked for again.
+     */
+    public boolean isResolved( String name )
+    {
+        CompletableFuture<Double> value = values.get( name );
+        return value != null && value.isDone() && ! value.isCompletedExceptionally();
+    }
+    
+    
+    /**
+     * @return the number of variables resolved.
+     */
+    public int size()
+    {
+        int size = 0;
+        for( CompletableFuture<Double> value : values.values() )
+            if ( value.isDone() && ! value.isCompletedExceptionally() )
+                size++;
+        
+        return size;
+    }
+    
+    
+    /**
+     * Forget all the values, e.g. once the pattern or measurements change. 
+     * Variables being worked out when this is called may still be remembered.
+     */
+    public void clear()
+    {
+        values.clear();
+    }
+}
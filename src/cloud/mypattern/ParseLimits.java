@@ -0,0 +1,316 @@
+/*
+Limits on the size and cost of parsing a formula.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits on parsing a formula, for formulas from untrusted uploads:
+ * 
+ * <pre>
+ * ParseLimits limits = ParseLimits.NONE.withMaxLength( 10000 ).withMaxDepth( 100 )
+ *                                      .withMaxNodes( 5000 ).withMaxTokens( 2500 )
+ *                                      .withTimeout( 50, TimeUnit.MILLISECONDS );
+ * ParseResult result = FormulaParser.tryParse( formula, limits );
+ * </pre>
+ * 
+ * A formula over a limit fails with a SyntaxException of code LIMIT_EXCEEDED.
+ * The length and depth are checked before parsing starts, the rest as it
+ * goes, so a formula over a limit costs little more than the limit itself.
+ * 
+ * The depth is that of the parentheses, including those of functions, the 
+ * nodes are the parts of the formula, i.e. the variables, numbers, 
+ * operations, functions, parentheses and ternaries, and the tokens are 
+ * just the variables and numbers. The timeout is checked every few hundred
+ * steps of the parser.
+ * 
+ * ParseLimits are immutable, so can be shared.
+ * 
+ * @author Jason Dore
+ */
+public final class ParseLimits
+{
+    /**
+     * No limits.
+     */
+    public static final ParseLimits NONE = new ParseLimits( Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, 0 );
+    
+    private final int maxLength;
+    private final int maxDepth;
+    private final int maxNodes;
+    private final int maxTokens;
+    private final long timeout; //nanoseconds, or 0 for none
+    
+    
+    private ParseLimits( int maxLength, int maxDepth, int maxNodes, int maxTokens, long timeout )
+    {
+        this.maxLength = maxLength;
+        this.maxDepth = maxDepth;
+        this.maxNodes = maxNodes;
+        this.maxTokens = maxTokens;
+        this.timeout = timeout;
+    }
+    
+    
+    /**
+     * @param maxLength the most characters a formula may have.
+     * @return these limits, with that one.
+     */
+    public ParseLimits withMaxLength( int maxLength )
+    {
+        return new ParseLimits( positive( maxLength ), maxDepth, maxNodes, maxTokens, timeout );
+    }
+    
+    
+    /**
+     * @param maxDepth the most parentheses that may be open at once.
+     * @return these limits, with that one.
+     */
+    public ParseLimits withMaxDepth( int maxDepth )
+    {
+        return new ParseLimits( maxLength, positive( maxDepth ), maxNodes, maxTokens, timeout );
+    }
+    
+    
+    /**
+     * @param maxNodes the most parts a formula may have.
+     * @return these limits, with that one.
+     */
+    public ParseLimits withMaxNodes( int maxNodes )
+    {
+        return new ParseLimits( maxLength, maxDepth, positive( maxNodes ), maxTokens, timeout );
+    }
+    
+    
+    /**
+     * @param maxTokens the most variables and numbers a formula may have.
+     * @return these limits, with that one.
+     */
+    public ParseLimits withMaxTokens( int maxTokens )
+    {
+        return new ParseLimits( maxLength, maxDepth, maxNodes, positive( maxTokens ), timeout );
+    }
+    
+    
+    /**
+     * @param timeout the longest parsing a formula may take, or 0 for no limit.
+     * @param unit
+     * @return these limits, with that one.
+     */
+    public ParseLimits withTimeout( long timeout, TimeUnit unit )
+    {
+        if ( timeout < 0 )
+            throw new IllegalArgumentException( "timeout:" + timeout );
+        
+        return new ParseLimits( maxLength, maxDepth, maxNodes, maxTokens, unit.toNanos( timeout ) );
+    }
+    
+    
+    private static int positive( int limit )
+    {
+        if ( limit < 1 )
+            throw new IllegalArgumentException( "limit:" + limit );
+        
+        return limit;
+    }
+    
+    
+    public int getMaxLength()
+    {
+        return maxLength;
+    }
+    
+    
+    public int getMaxDepth()
+    {
+        return maxDepth;
+    }
+    
+    
+    public int getMaxNodes()
+    {
+        return maxNodes;
+    }
+    
+    
+    public int getMaxTokens()
+    {
+        return maxTokens;
+    }
+    
+    
+    /**
+     * @return the timeout in nanoseconds, or 0 for none.
+     */
+    public long getTimeout()
+    {
+        return timeout;
+    }
+    
+    
+    @Override
+    public String toString()
+    {
+        return "length:" + maxLength + " depth:" + maxDepth + " nodes:" + maxNodes + " tokens:" + maxTokens + " timeout:" + timeout + "ns";
+    }
+    
+    
+    /**
+     * Check the length and depth of a formula, before it is parsed.
+     * 
+     * @throws cloud.mypattern.Stream.SyntaxException if over either.
+     */
+    void check( String formula ) throws Stream.SyntaxException
+    {
+        if ( formula.length() > maxLength )
+            throw exceeded( "Formula longer than " + maxLength + " characters", maxLength );
+        
+        if ( maxDepth == Integer.MAX_VALUE )
+            return;
+        
+        int depth = 0;
+        for( int i=0; i<formula.length(); i++ )
+        {
+            char c = formula.charAt( i );
+            if ( c == '(' && ++depth > maxDepth )
+                throw exceeded( "Formula nested deeper than " + maxDepth, i );
+            else if ( c == ')' )
+                depth--;
+        }
+    }
+    
+    
+    /**
+     * @return a handler passing everything on to h, that counts the nodes 
+     * and tokens, or h itself if there are no limits on them or the time.
+     */
+    PostfixHandler guard( PostfixHandler h )
+    {
+        if ( maxNodes == Integer.MAX_VALUE && maxTokens == Integer.MAX_VALUE && timeout == 0 )
+            return h;
+        
+        return new Guard( h );
+    }
+    
+    
+    private static Stream.SyntaxException exceeded( String message, int offset )
+    {
+        return new Stream.SyntaxException( message, Stream.SyntaxException.LIMIT_EXCEEDED, offset, (char)0, (char)0 );
+    }
+    
+    
+    /**
+     * Counts the nodes and tokens as the parser reports them. As a handler 
+     * can't throw a SyntaxException, the parser calls check() at each step.
+     */
+    final class Guard implements PostfixHandler
+    {
+        private final PostfixHandler h;
+        private final long deadline;
+        private int nodes;
+        private int tokens;
+        private int steps;
+        
+        
+        Guard( PostfixHandler h )
+        {
+            this.h = h;
+            this.deadline = timeout == 0 ? 0 : System.nanoTime() + timeout;
+        }
+        
+        
+        void check( Stream s ) throws Stream.SyntaxException
+        {
+            if ( nodes > maxNodes )
+                throw exceeded( "Formula has more than " + maxNodes + " parts", s.index );
+            
+            if ( tokens > maxTokens )
+                throw exceeded( "Formula has more than " + maxTokens + " variables and numbers", s.index );
+            
+            if ( timeout != 0 && ( ++steps & 255 ) == 0 && System.nanoTime() - deadline > 0 )
+                throw exceeded( "Formula took longer than " + timeout + "ns to parse", s.index );
+        }
+        
+        
+        @Override
+        public void integer( int i, int start, int end )
+        {
+            nodes++;
+            tokens++;
+            h.integer( i, start, end );
+        }
+        
+        
+        @Override
+        public void decimal( double d, int start, int end )
+        {
+            nodes++;
+            tokens++;
+            h.decimal( d, start, end );
+        }
+        
+        
+        @Override
+        public void variable( String token, boolean isCustom, boolean isHashToken, int start, int end )
+        {
+            nodes++;
+            tokens++;
+            h.variable( token, isCustom, isHashToken, start, end );
+        }
+        
+        
+        @Override
+        public void function( String function, int parameterCount, int start, int end )
+        {
+            nodes++;
+            h.function( function, parameterCount, start, end );
+        }
+        
+        
+        @Override
+        public void parenthesis( int start, int end )
+        {
+            nodes++;
+            h.parenthesis( start, end );
+        }
+        
+        
+        @Override
+        public void operation( int operator )
+        {
+            nodes++;
+            h.operation( operator );
+        }
+        
+        
+        @Override
+        public void ternary()
+        {
+            nodes++;
+            h.ternary();
+        }
+    }
+}
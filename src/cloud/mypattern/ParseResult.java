@@ -0,0 +1,90 @@
+/*
+The outcome of parsing a formula, without exceptions.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+/**
+ * Either the Expression parsed from a formula, or the error that prevented it.
+ * 
+ * @see FormulaParser#tryParse(java.lang.String) 
+ * @author Jason Dore
+ */
+public final class ParseResult
+{
+    private final FormulaParser.Expression expression;
+    private final long structuralHash;
+    private final Stream.SyntaxException error;
+    
+    
+    ParseResult( FormulaParser.Expression expression, long structuralHash, Stream.SyntaxException error )
+    {
+        this.expression = expression;
+        this.structuralHash = structuralHash;
+        this.error = error;
+    }
+    
+    
+    public boolean isValid()
+    {
+        return error == null;
+    }
+    
+    
+    /**
+     * @return the parsed formula, or null if it was invalid.
+     */
+    public FormulaParser.Expression getExpression()
+    {
+        return expression;
+    }
+    
+    
+    /**
+     * @return the structural hash of the formula, worked out as it was 
+     * parsed, or 0 if it was invalid.
+     * @see FormulaParser.Expression#structuralHash() 
+     */
+    public long getStructuralHash()
+    {
+        return structuralHash;
+    }
+    
+    
+    /**
+     * @return the syntax error, with its code, offset and the expected and
+     * found characters, or null if the formula was valid.
+     */
+    public Stream.SyntaxException getError()
+    {
+        return error;
+    }
+    
+    
+    @Override
+    public String toString()
+    {
+        return isValid() ? expression.toString() : "Error at " + error.getOffset() + ": " + error.getMessage();
+    }
+}
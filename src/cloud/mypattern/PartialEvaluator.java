@@ -0,0 +1,263 @@
+/*
+Specialises formulas for the variables whose values are known.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+import cloud.mypattern.FormulaParser.*;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Specialises formulas for the variables whose values are already known, 
+ * e.g. the increments and measurements of a size chart, leaving a smaller 
+ * formula in the rest, e.g. the customer's own measurements:
+ * 
+ * <pre>
+ * PartialEvaluator sizeChart = new PartialEvaluator( increments );
+ * Expression residual = sizeChart.specialise( expression );
+ * ... new FormulaEvaluator( customer ).evaluate( residual ) ...
+ * </pre>
+ * 
+ * The known variables are replaced by their values, and any part of the 
+ * formula whose operands are then all numbers is replaced by its value, 
+ * worked out as FormulaEvaluator would. A ternary whose condition becomes a
+ * number is replaced by the branch it takes, and the other branch is 
+ * dropped unexamined. Parentheses around a number are dropped, the rest 
+ * kept. Parts that are unchanged are shared with the original formula.
+ * 
+ * A part isn't replaced if its value isn't finite, e.g. a division by 0, or 
+ * if it uses an unknown function, so evaluating the residual formula gives 
+ * the same result, or error, as evaluating the original.
+ * 
+ * @author Jason Dore
+ */
+public class PartialEvaluator
+{
+    private final Map<String,? extends Number> known;
+    
+    //Works out parts whose operands are all numbers, so never resolves a variable.
+    private static final FormulaEvaluator CONSTANTS = new FormulaEvaluator( name -> {
+        throw new IllegalArgumentException( "Unknown variable:" + name );
+    } );
+    
+    
+    /**
+     * @param known the values of the variables that are known.
+     */
+    public PartialEvaluator( Map<String,? extends Number> known )
+    {
+        this.known = known;
+    }
+    
+    
+    /**
+     * @param e
+     * @return the formula with the known variables replaced, and simplified;
+     * just a number if all its variables are known.
+     */
+    public Expression specialise( Expression e )
+    {
+        //The parts being specialised, and how far each has got.
+        Expression[] parts = new Expression[16];
+        int[] states = new int[16];
+        int top = 0;
+        
+        //The specialised operands.
+        Expression[] results = new Expression[16];
+        int count = 0;
+        
+        parts[ top ] = e;
+        states[ top++ ] = 0;
+        
+        while( top > 0 )
+        {
+            e = parts[ top - 1 ];
+            int state = states[ top - 1 ];
+            
+            if ( count == results.length )
+                results = Arrays.copyOf( results, count * 2 );
+            
+            if ( e.getParameterCount() == 0 ) //a token
+            {
+                Number value = e instanceof Token ? known.get( ((Token)e).token ) : null;
+                results[ count++ ] = value != null ? constant( value.doubleValue(), e ) : e;
+                parts[ --top ] = null;
+                continue;
+            }
+            
+            if ( e instanceof TertiaryOperation )
+            {
+                TertiaryOperation t = (TertiaryOperation)e;
+                
+                if ( state == 1 && isConstant( results[ count - 1 ] ) ) 
+                {
+                    //Only the branch taken is specialised, and replaces the ternary.
+                    boolean condition = value( results[ --count ] ) != 0;
+                    results[ count ] = null;
+                    states[ top - 1 ] = 4;
+                    e = condition ? t.ifTrue : t.ifFalse;
+                }
+                else if ( state < 3 )
+                {
+                    states[ top - 1 ] = state + 1;
+                    e = e.getParameter( state );
+                }
+                else
+                {
+                    if ( state == 3 )
+                    {
+                        count -= 2;
+                        Expression condition = results[ count - 1 ];
+                        Expression ifTrue = results[ count ];
+                        Expression ifFalse = results[ count + 1 ];
+                        results[ count ] = results[ count + 1 ] = null;
+                        
+                        if ( condition != t.condition || ifTrue != t.ifTrue || ifFalse != t.ifFalse )
+                            results[ count - 1 ] = new TertiaryOperation( condition, ifTrue, ifFalse );
+                        else
+                            results[ count - 1 ] = t;
+                    }
+                    //else the branch taken is the result
+                    
+                    parts[ --top ] = null;
+                    continue;
+                }
+            }
+            else if ( state < e.getParameterCount() )
+            {
+                states[ top - 1 ] = state + 1;
+                e = e.getParameter( state );
+            }
+            else //all the operands have been specialised
+            {
+                int n = e.getParameterCount();
+                count -= n - 1;
+                results[ count - 1 ] = combine( e, results, count - 1, n );
+                for( int i=0; i<n-1; i++ )
+                    results[ count + i ] = null;
+                
+                parts[ --top ] = null;
+                continue;
+            }
+            
+            if ( top == parts.length )
+            {
+                parts = Arrays.copyOf( parts, top * 2 );
+                states = Arrays.copyOf( states, top * 2 );
+            }
+            
+            parts[ top ] = e;
+            states[ top++ ] = 0;
+        }
+        
+        return results[0];
+    }
+    
+    
+    /**
+     * @return the part with its specialised operands, from results[i], 
+     * worked out if they are all numbers.
+     */
+    private static Expression combine( Expression e, Expression[] results, int i, int n )
+    {
+        boolean changed = false;
+        boolean constant = true;
+        for( int j=0; j<n; j++ )
+        {
+            changed |= results[ i + j ] != e.getParameter( j );
+            constant &= isConstant( results[ i + j ] );
+        }
+        
+        if ( e instanceof BracketPair )
+        {
+            if ( constant )
+                return results[i];
+            
+            return changed ? new BracketPair( results[i] ) : e;
+        }
+        
+        Expression combined = e;
+        if ( changed )
+        {
+            if ( e instanceof Function )
+                combined = new Function( ((Function)e).function, results[i], n > 1 ? results[ i + 1 ] : null );
+            else 
+                combined = new TwoParameterOperation( results[i], ((TwoParameterOperation)e).operator, results[ i + 1 ] );
+        }
+        
+        if ( ! constant || isConstant( combined ) )
+            return combined;
+        
+        try {
+            return constant( CONSTANTS.evaluate( combined ), combined );
+        } catch ( IllegalArgumentException x ) { //an unknown function
+            return combined;
+        }
+    }
+    
+    
+    /**
+     * @return a number, or the unary negative of one, with the value d, or 
+     * otherwise if d isn't finite. 
+     */
+    private static Expression constant( double d, Expression otherwise )
+    {
+        if ( Double.isNaN( d ) || Double.isInfinite( d ) )
+            return otherwise;
+        
+        //As the unary negative of a number, which reads back the same after 
+        //any operator, unlike a negative number, e.g. a--1.
+        if ( d < 0 || ( d == 0 && 1 / d < 0 ) )
+            return new Function( "-", constant( -d, null ), null );
+        
+        if ( d == (int)d )
+            return new IntegerToken( (int)d );
+        
+        return new DoubleToken( d );
+    }
+    
+    
+    private static boolean isConstant( Expression e )
+    {
+        if ( e instanceof IntegerToken || e instanceof DoubleToken )
+            return true;
+        
+        return    e instanceof Function 
+               && ((Function)e).function.equals( "-" )
+               && ( ((Function)e).parameter1 instanceof IntegerToken || ((Function)e).parameter1 instanceof DoubleToken );
+    }
+    
+    
+    private static double value( Expression e )
+    {
+        if ( e instanceof IntegerToken )
+            return ((IntegerToken)e).i;
+        
+        if ( e instanceof DoubleToken )
+            return ((DoubleToken)e).d;
+        
+        return -value( ((Function)e).parameter1 );
+    }
+}
@@ -0,0 +1,319 @@
+/*
+A compact record of a parsed formula that can be replayed to a FormulaHandler.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Records the postfix events from the parser in a few flat arrays.
+ *
+ * The parser only knows an operation once its first operand has been parsed,
+ * so document order events can't be sent as we go. Instead each part is
+ * recorded along with the size of its subtree, which is enough to walk the
+ * record in document order afterwards without building any Expressions.
+ *
+ * A buffer can be cleared and reused for the next formula, and so can the 
+ * bytes it lends for writing the formula out as text.
+ *
+ * @author Jason Dore
+ */
+final class PostfixBuffer implements PostfixHandler
+{
+    private static final int INTEGER         = 0;
+    private static final int DECIMAL         = 1;
+    private static final int VARIABLE        = 2;
+    private static final int CUSTOM_VARIABLE = 3;
+    private static final int HASH_VARIABLE   = 4;
+    private static final int FUNCTION1       = 5;
+    private static final int FUNCTION2       = 6;
+    private static final int PARENTHESIS     = 7;
+    private static final int OPERATION       = 8;
+    private static final int TERNARY         = 9;
+
+    //One entry per part, in postfix order.
+    private int[] kinds = new int[16];
+    private int[] values = new int[16]; //the integer, operator, or index into decimals/names
+    private int[] sizes = new int[16];  //the number of entries in the subtree ending here
+    private int count;
+
+    private double[] decimals = new double[4];
+    private int decimalCount;
+
+    private String[] names = new String[8];
+    private int nameCount;
+
+    //The start of each subtree not yet used as an operand.
+    private int[] starts = new int[16];
+    private int depth;
+
+    private int[] replayStack = new int[32];
+
+    boolean inUse;
+
+    //Lent to FormulaParser.formulaToXML() while this is in use.
+    private byte[] bytes;
+    private Text text;
+    
+    //The most text kept for the next formula, so one huge formula doesn't 
+    //hold on to its memory.
+    private static final int MAX_TEXT_KEPT = 65536;
+
+
+    /**
+     * @return the number of parts.
+     */
+    int size()
+    {
+        return count;
+    }
+
+
+    /**
+     * @return the buffer for a StreamFormulaHandler writing this formula.
+     */
+    byte[] bytes()
+    {
+        if ( bytes == null )
+            bytes = new byte[ StreamFormulaHandler.BUFFER_SIZE ];
+        return bytes;
+    }
+
+
+    /**
+     * @return an empty stream to write this formula to as text.
+     */
+    Text text()
+    {
+        if ( text == null || text.size() > MAX_TEXT_KEPT )
+            text = new Text();
+        else
+            text.reset();
+        return text;
+    }
+
+
+    /**
+     * The bytes written, as a String without first copying them.
+     */
+    static final class Text extends ByteArrayOutputStream
+    {
+        Text()
+        {
+            super( 256 );
+        }
+        
+        
+        @Override
+        public String toString()
+        {
+            return new String( buf, 0, count, StandardCharsets.UTF_8 );
+        }
+    }
+
+
+    void clear()
+    {
+        Arrays.fill( names, 0, nameCount, null );
+        count = 0;
+        decimalCount = 0;
+        nameCount = 0;
+        depth = 0;
+    }
+
+
+    @Override
+    public void integer( int i, int start, int end )
+    {
+        add( INTEGER, i, 0 );
+    }
+
+
+    @Override
+    public void decimal( double d, int start, int end )
+    {
+        if ( decimalCount == decimals.length )
+            decimals = Arrays.copyOf( decimals, decimalCount * 2 );
+
+        decimals[ decimalCount ] = d;
+        add( DECIMAL, decimalCount++, 0 );
+    }
+
+
+    @Override
+    public void variable( String token, boolean isCustom, boolean isHashToken, int start, int end )
+    {
+        add( isCustom ? CUSTOM_VARIABLE : isHashToken ? HASH_VARIABLE : VARIABLE, addName( token ), 0 );
+    }
+
+
+    @Override
+    public void function( String function, int parameterCount, int start, int end )
+    {
+        add( parameterCount == 2 ? FUNCTION2 : FUNCTION1, addName( function ), parameterCount );
+    }
+
+
+    @Override
+    public void parenthesis( int start, int end )
+    {
+        add( PARENTHESIS, 0, 1 );
+    }
+
+
+    @Override
+    public void operation( int operator )
+    {
+        add( OPERATION, operator, 2 );
+    }
+
+
+    @Override
+    public void ternary()
+    {
+        add( TERNARY, 0, 3 );
+    }
+
+
+    private int addName( String name )
+    {
+        if ( nameCount == names.length )
+            names = Arrays.copyOf( names, nameCount * 2 );
+
+        names[ nameCount ] = name;
+        return nameCount++;
+    }
+
+
+    /**
+     * Record one part whose operands are the last parameterCount subtrees.
+     */
+    private void add( int kind, int value, int parameterCount )
+    {
+        if ( count == kinds.length )
+        {
+            kinds = Arrays.copyOf( kinds, count * 2 );
+            values = Arrays.copyOf( values, count * 2 );
+            sizes = Arrays.copyOf( sizes, count * 2 );
+        }
+
+        int start = count;
+        for( int i=0; i<parameterCount; i++ )
+            start = starts[ --depth ];
+
+        kinds[ count ] = kind;
+        values[ count ] = value;
+        sizes[ count ] = count - start + 1;
+
+        if ( depth == starts.length )
+            starts = Arrays.copyOf( starts, depth * 2 );
+
+        starts[ depth++ ] = start;
+        count++;
+    }
+
+
+    /**
+     * Send the recorded formula to the handler in document order.
+     *
+     * This walks the record with its own stack rather than recursing, so
+     * deeply nested formulas are fine.
+     *
+     * @param h
+     * @throws Exception whatever the handler throws.
+     */
+    void replay( FormulaHandler h ) throws Exception
+    {
+        if ( count == 0 )
+            return;
+
+        if ( replayStack.length < count * 2 )
+            replayStack = new int[ count * 2 ];
+
+        int[] stack = replayStack;
+        int top = 0;
+        stack[ top++ ] = count - 1;
+
+        while( top > 0 )
+        {
+            int p = stack[ --top ];
+
+            if ( p < 0 ) //the end of a part whose operands have all been sent
+            {
+                switch( kinds[ ~p ] )
+                {
+                    case FUNCTION1:
+                    case FUNCTION2:   h.endFunction(); break;
+                    case PARENTHESIS: h.endParenthesis(); break;
+                    default:          h.endOperation();
+                }
+                continue;
+            }
+
+            int parameterCount;
+            switch( kinds[ p ] )
+            {
+                case INTEGER:         h.integer( values[p] ); continue;
+                case DECIMAL:         h.decimal( decimals[ values[p] ] ); continue;
+                case VARIABLE:        h.variable( names[ values[p] ], false, false ); continue;
+                case CUSTOM_VARIABLE: h.variable( names[ values[p] ], true, false ); continue;
+                case HASH_VARIABLE:   h.variable( names[ values[p] ], false, true ); continue;
+
+                case FUNCTION1:
+                case FUNCTION2:
+                    h.startFunction( names[ values[p] ] );
+                    parameterCount = kinds[p] == FUNCTION2 ? 2 : 1;
+                    break;
+
+                case PARENTHESIS:
+                    h.startParenthesis();
+                    parameterCount = 1;
+                    break;
+
+                case OPERATION:
+                    h.startOperation( FormulaParser.getOperatorName( values[p] ) );
+                    parameterCount = 2;
+                    break;
+
+                default: //TERNARY
+                    h.startOperation( "ternary" );
+                    parameterCount = 3;
+            }
+
+            stack[ top++ ] = ~p;
+
+            //Operands are found last first, so pushing them in that order
+            //means the first operand is the next one off the stack.
+            int operand = p - 1;
+            for( int i=0; i<parameterCount; i++ )
+            {
+                stack[ top++ ] = operand;
+                operand -= sizes[ operand ];
+            }
+        }
+    }
+}
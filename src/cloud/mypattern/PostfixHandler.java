@@ -0,0 +1,62 @@
+/*
+Receives the parts of a formula from the parser as they are recognised.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+/**
+ * The parser's view of a formula, in postfix order.
+ *
+ * Each part is reported once all of its operands have been reported, so
+ * "a + 5" arrives as: variable a, integer 5, operation add. A handler that
+ * keeps a stack of operands can therefore build whatever it likes without the
+ * parser knowing about it.
+ *
+ * Parts that begin and end with a character of their own (names, numbers,
+ * parentheses and functions) also give where they were found: start is the
+ * offset of their first character and end the offset after their last.
+ * An operation spans its operands.
+ *
+ * @author Jason Dore
+ */
+interface PostfixHandler
+{
+    void integer( int i, int start, int end );
+
+    void decimal( double d, int start, int end );
+
+    void variable( String token, boolean isCustom, boolean isHashToken, int start, int end );
+
+    /**
+     * A function applied to the last one or two operands. A unary negative
+     * is reported as the function "-" with one parameter.
+     */
+    void function( String function, int parameterCount, int start, int end );
+
+    void parenthesis( int start, int end );
+
+    void operation( int operator );
+
+    void ternary();
+}
@@ -0,0 +1,656 @@
+/*
+An index of which formulas refer to each variable and function name.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Which formulas refer to each variable and function name, so that a library
+ * of formulas can be searched without parsing them again.
+ *
+ * Formulas are identified by a number chosen by the caller, e.g. a row id.
+ * Variables and functions share one set of names, so "atan" finds formulas
+ * that call atan() as well as any that use a variable called atan.
+ *
+ * The index is immutable and made of segments. Adding formulas adds a new
+ * segment; formulas added again or removed are masked out of the older
+ * segments. Once there are more than a few segments they are merged.
+ *
+ * A segment is a sorted table of names, each with a list of formula numbers
+ * stored as the differences between them in a variable number of bytes, all
+ * in one buffer. write() merges the index into a file of exactly that form,
+ * and map() memory maps such a file so queries read it in place.
+ *
+ * <pre>
+ * ReferenceIndex index = ReferenceIndex.EMPTY.with( formulasById );
+ * int[] ids = index.findAny( Arrays.asList( "#NegativeHipEase", "atan" ) );
+ * </pre>
+ *
+ * @author Jason Dore
+ */
+public final class ReferenceIndex
+{
+    private static final int MAGIC = 0x46505249; //FPRI
+    private static final int VERSION = 1;
+    private static final int HEADER = 16;  //magic, version, name count, formula count
+    private static final int ENTRY = 16;   //name offset and length, postings offset and count
+
+    private static final int MAX_SEGMENTS = 8;
+
+    private static final int[] NONE = new int[0];
+
+    public static final ReferenceIndex EMPTY = new ReferenceIndex( new Segment[0], new int[0][] );
+
+
+    /**
+     * One buffer holding:
+     *
+     * the header,
+     * the sorted numbers of the formulas in the segment, 4 bytes each,
+     * an entry for each name, in the order of their UTF-8 bytes,
+     * the UTF-8 bytes of the names,
+     * the postings.
+     */
+    static final class Segment
+    {
+        private final ByteBuffer buffer;
+        private final int nameCount;
+        private final int formulaCount;
+        private final int entries;
+
+        Segment( ByteBuffer buffer ) throws IOException
+        {
+            if (   buffer.limit() < HEADER
+                || buffer.getInt( 0 ) != MAGIC
+                || buffer.getInt( 4 ) != VERSION )
+                throw new IOException( "Not a reference index" );
+
+            this.buffer = buffer;
+            this.nameCount = buffer.getInt( 8 );
+            this.formulaCount = buffer.getInt( 12 );
+            this.entries = HEADER + formulaCount * 4;
+        }
+
+
+        int formula( int i )
+        {
+            return buffer.getInt( HEADER + i * 4 );
+        }
+
+
+        boolean contains( int formula )
+        {
+            int low = 0;
+            int high = formulaCount - 1;
+            while( low <= high )
+            {
+                int mid = ( low + high ) >>> 1;
+                int f = formula( mid );
+
+                if ( f < formula )
+                    low = mid + 1;
+                else if ( f > formula )
+                    high = mid - 1;
+                else
+                    return true;
+            }
+            return false;
+        }
+
+
+        String name( int n )
+        {
+            int entry = entries + n * ENTRY;
+            byte[] bytes = new byte[ buffer.getInt( entry + 4 ) ];
+            for( int i=0; i<bytes.length; i++ )
+                bytes[i] = buffer.get( buffer.getInt( entry ) + i );
+            return new String( bytes, StandardCharsets.UTF_8 );
+        }
+
+
+        /**
+         * @return the entry for the name, or -1.
+         */
+        int find( byte[] name )
+        {
+            int low = 0;
+            int high = nameCount - 1;
+            while( low <= high )
+            {
+                int mid = ( low + high ) >>> 1;
+                int c = compare( mid, name );
+
+                if ( c < 0 )
+                    low = mid + 1;
+                else if ( c > 0 )
+                    high = mid - 1;
+                else
+                    return mid;
+            }
+            return -1;
+        }
+
+
+        private int compare( int n, byte[] name )
+        {
+            int entry = entries + n * ENTRY;
+            int offset = buffer.getInt( entry );
+            int length = buffer.getInt( entry + 4 );
+
+            for( int i=0; i<length && i<name.length; i++ )
+            {
+                int c = ( buffer.get( offset + i ) & 0xff ) - ( name[i] & 0xff );
+                if ( c != 0 )
+                    return c;
+            }
+            return length - name.length;
+        }
+
+
+        /**
+         * Add the formulas that refer to the name, less any masked out.
+         */
+        void postings( int n, int[] masked, Ints into )
+        {
+            int entry = entries + n * ENTRY;
+            int p = buffer.getInt( entry + 8 );
+            int count = buffer.getInt( entry + 12 );
+            int formula = 0;
+
+            for( int i=0; i<count; i++ )
+            {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = buffer.get( p++ );
+                    delta |= ( b & 0x7f ) << shift;
+                    shift += 7;
+                } while ( b < 0 );
+
+                formula += delta;
+
+                if ( Arrays.binarySearch( masked, formula ) < 0 )
+                    into.add( formula );
+            }
+        }
+
+
+        /**
+         * Make a segment from the postings of each name.
+         */
+        static Segment build( Map<String,Ints> postings, int[] formulas )
+        {
+            byte[][] names = new byte[ postings.size() ][];
+            Ints[] lists = new Ints[ names.length ];
+            int n = 0;
+            for( Map.Entry<String,Ints> e : postings.entrySet() )
+            {
+                names[n] = e.getKey().getBytes( StandardCharsets.UTF_8 );
+                lists[n++] = e.getValue();
+            }
+
+            //Sort by the UTF-8 bytes, which is the order find() searches in.
+            Integer[] order = new Integer[ names.length ];
+            for( int i=0; i<order.length; i++ )
+                order[i] = i;
+            Arrays.sort( order, ( a, b ) -> compareBytes( names[a], names[b] ) );
+
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            int[] postingOffsets = new int[ names.length ];
+            for( int i=0; i<order.length; i++ )
+            {
+                postingOffsets[i] = encoded.size();
+                int previous = 0;
+                Ints list = lists[ order[i] ];
+                for( int j=0; j<list.size; j++ )
+                {
+                    int delta = list.values[j] - previous;
+                    previous = list.values[j];
+                    while( ( delta & ~0x7f ) != 0 )
+                    {
+                        encoded.write( ( delta & 0x7f ) | 0x80 );
+                        delta >>>= 7;
+                    }
+                    encoded.write( delta );
+                }
+            }
+
+            int nameBytes = 0;
+            for( byte[] name : names )
+                nameBytes += name.length;
+
+            int entries = HEADER + formulas.length * 4;
+            int nameStart = entries + names.length * ENTRY;
+            int postingStart = nameStart + nameBytes;
+
+            ByteBuffer buffer = ByteBuffer.allocate( postingStart + encoded.size() );
+            buffer.putInt( MAGIC ).putInt( VERSION ).putInt( names.length ).putInt( formulas.length );
+            for( int formula : formulas )
+                buffer.putInt( formula );
+
+            int nameOffset = nameStart;
+            for( int i=0; i<order.length; i++ )
+            {
+                byte[] name = names[ order[i] ];
+                buffer.putInt( nameOffset ).putInt( name.length );
+                buffer.putInt( postingStart + postingOffsets[i] ).putInt( lists[ order[i] ].size );
+                nameOffset += name.length;
+            }
+
+            for( int i=0; i<order.length; i++ )
+                buffer.put( names[ order[i] ] );
+
+            buffer.put( encoded.toByteArray() );
+            ((Buffer)buffer).flip(); //as Java 8 has no ByteBuffer.flip()
+
+            try {
+                return new Segment( buffer );
+            } catch ( IOException e ) {
+                throw new IllegalStateException( e );
+            }
+        }
+    }
+
+
+    /**
+     * A growable list of ints.
+     */
+    static final class Ints
+    {
+        int[] values = new int[4];
+        int size;
+
+        void add( int i )
+        {
+            if ( size == values.length )
+                values = Arrays.copyOf( values, size * 2 );
+
+            values[ size++ ] = i;
+        }
+
+        int[] toSortedArray()
+        {
+            int[] a = Arrays.copyOf( values, size );
+            Arrays.sort( a );
+            return a;
+        }
+    }
+
+
+    private final Segment[] segments;
+    private final int[][] masked; //for each segment, the sorted formulas no longer in it
+
+
+    private ReferenceIndex( Segment[] segments, int[][] masked )
+    {
+        this.segments = segments;
+        this.masked = masked;
+    }
+
+
+    /**
+     * Add formulas to the index, replacing any with the same numbers.
+     *
+     * @param formulas  The parsed formulas by number, which must not be negative.
+     * @return the new index.
+     */
+    public ReferenceIndex with( Map<Integer,FormulaParser.Expression> formulas )
+    {
+        TreeMap<String,Ints> postings = new TreeMap<>();
+        int[] numbers = new int[ formulas.size() ];
+        int n = 0;
+        Set<String> names = new HashSet<>();
+
+        //In order of number, so that each list of postings comes out sorted.
+        for( Map.Entry<Integer,FormulaParser.Expression> e : new TreeMap<>( formulas ).entrySet() )
+        {
+            int formula = e.getKey();
+            if ( formula < 0 )
+                throw new IllegalArgumentException( "Negative formula number:" + formula );
+
+            numbers[ n++ ] = formula;
+            names.clear();
+            FormulaParser.collectNames( e.getValue(), names, names );
+
+            for( String name : names )
+            {
+                Ints list = postings.get( name );
+                if ( list == null )
+                    postings.put( name, list = new Ints() );
+                list.add( formula );
+            }
+        }
+
+        ReferenceIndex index = mask( numbers );
+        Segment[] more = Arrays.copyOf( index.segments, index.segments.length + 1 );
+        int[][] moreMasked = Arrays.copyOf( index.masked, index.masked.length + 1 );
+        more[ more.length - 1 ] = Segment.build( postings, numbers );
+        moreMasked[ more.length - 1 ] = NONE;
+
+        index = new ReferenceIndex( more, moreMasked );
+        if ( more.length <= MAX_SEGMENTS )
+            return index;
+
+        //Merge the two smallest segments, and the next smallest while each
+        //is no more than twice the size of those so far, so that a formula
+        //is only merged a few times however many are added.
+        Integer[] bySize = new Integer[ more.length ];
+        for( int s=0; s<bySize.length; s++ )
+            bySize[s] = s;
+        Arrays.sort( bySize, ( a, b ) -> more[a].formulaCount - more[b].formulaCount );
+
+        boolean[] merging = new boolean[ more.length ];
+        int size = 0;
+        for( int i=0; i<bySize.length; i++ )
+        {
+            int count = more[ bySize[i] ].formulaCount;
+            if ( i >= 2 && count > size * 2 )
+                break;
+
+            merging[ bySize[i] ] = true;
+            size += count;
+        }
+
+        return index.merge( merging );
+    }
+
+
+    /**
+     * @param formulas  The numbers of formulas to remove.
+     * @return the new index.
+     */
+    public ReferenceIndex without( Collection<Integer> formulas )
+    {
+        int[] numbers = new int[ formulas.size() ];
+        int n = 0;
+        for( int formula : formulas )
+            numbers[ n++ ] = formula;
+
+        Arrays.sort( numbers );
+        return mask( numbers );
+    }
+
+
+    /**
+     * Mask the formulas out of the segments that hold them.
+     */
+    private ReferenceIndex mask( int[] sortedFormulas )
+    {
+        int[][] newMasked = masked.clone();
+
+        for( int s=0; s<segments.length; s++ )
+        {
+            Ints more = null;
+            for( int formula : sortedFormulas )
+            {
+                if (   segments[s].contains( formula )
+                    && Arrays.binarySearch( masked[s], formula ) < 0 )
+                {
+                    if ( more == null )
+                        more = new Ints();
+                    more.add( formula );
+                }
+            }
+
+            if ( more != null )
+            {
+                for( int formula : masked[s] )
+                    more.add( formula );
+                newMasked[s] = more.toSortedArray();
+            }
+        }
+
+        return new ReferenceIndex( segments, newMasked );
+    }
+
+
+    /**
+     * Merge all the segments into one, dropping the formulas masked out.
+     *
+     * @return the new index.
+     */
+    public ReferenceIndex compact()
+    {
+        boolean[] merging = new boolean[ segments.length ];
+        Arrays.fill( merging, true );
+        return merge( merging );
+    }
+
+
+    /**
+     * Merge the segments flagged into one, which goes after the rest.
+     */
+    private ReferenceIndex merge( boolean[] merging )
+    {
+        TreeMap<String,Ints> postings = new TreeMap<>();
+        Ints formulas = new Ints();
+        Segment[] merged = new Segment[ segments.length + 1 ];
+        int[][] mergedMasked = new int[ segments.length + 1 ][];
+        int kept = 0;
+
+        for( int s=0; s<segments.length; s++ )
+        {
+            if ( ! merging[s] )
+            {
+                merged[ kept ] = segments[s];
+                mergedMasked[ kept++ ] = masked[s];
+                continue;
+            }
+
+            Segment segment = segments[s];
+
+            for( int i=0; i<segment.formulaCount; i++ )
+            {
+                int formula = segment.formula( i );
+                if ( Arrays.binarySearch( masked[s], formula ) < 0 )
+                    formulas.add( formula );
+            }
+
+            for( int n=0; n<segment.nameCount; n++ )
+            {
+                String name = segment.name( n );
+                Ints list = postings.get( name );
+                if ( list == null )
+                    postings.put( name, list = new Ints() );
+                segment.postings( n, masked[s], list );
+            }
+        }
+
+        //A formula is in at most one segment, but the segments are in the
+        //order they were added rather than by number.
+        TreeMap<String,Ints> sorted = new TreeMap<>();
+        for( Map.Entry<String,Ints> e : postings.entrySet() )
+        {
+            if ( e.getValue().size == 0 )
+                continue;
+
+            Ints list = new Ints();
+            list.values = e.getValue().toSortedArray();
+            list.size = list.values.length;
+            sorted.put( e.getKey(), list );
+        }
+
+        merged[ kept ] = Segment.build( sorted, formulas.toSortedArray() );
+        mergedMasked[ kept++ ] = NONE;
+        return new ReferenceIndex( Arrays.copyOf( merged, kept ), Arrays.copyOf( mergedMasked, kept ) );
+    }
+
+
+    /**
+     * @param name  A variable name, as it appears in the formula, or a function name.
+     * @return the sorted numbers of the formulas that refer to it.
+     */
+    public int[] find( String name )
+    {
+        byte[] bytes = name.getBytes( StandardCharsets.UTF_8 );
+        Ints found = new Ints();
+
+        for( int s=0; s<segments.length; s++ )
+        {
+            int n = segments[s].find( bytes );
+            if ( n >= 0 )
+                segments[s].postings( n, masked[s], found );
+        }
+
+        return found.toSortedArray();
+    }
+
+
+    /**
+     * @param names
+     * @return the sorted numbers of the formulas that refer to all of the names.
+     */
+    public int[] findAll( Collection<String> names )
+    {
+        int[] result = null;
+        for( String name : names )
+        {
+            int[] found = find( name );
+            result = result == null ? found : intersect( result, found );
+
+            if ( result.length == 0 )
+                break;
+        }
+        return result == null ? NONE : result;
+    }
+
+
+    /**
+     * @param names
+     * @return the sorted numbers of the formulas that refer to any of the names.
+     */
+    public int[] findAny( Collection<String> names )
+    {
+        int[] result = NONE;
+        for( String name : names )
+            result = union( result, find( name ) );
+        return result;
+    }
+
+
+    /**
+     * Write the index, merged into one segment, to a file that map() can read.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void write( Path file ) throws IOException
+    {
+        ReferenceIndex index = segments.length == 1 && masked[0].length == 0 ? this : compact();
+        ByteBuffer buffer = index.segments[0].buffer.duplicate();
+
+        try ( FileChannel channel = FileChannel.open( file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE ) )
+        {
+            while( buffer.hasRemaining() )
+                channel.write( buffer );
+        }
+    }
+
+
+    /**
+     * Memory map an index written by write(). Queries read the file in place,
+     * and the index can be added to as usual.
+     *
+     * @param file
+     * @return the index.
+     * @throws IOException if the file can't be read or is not an index.
+     */
+    public static ReferenceIndex map( Path file ) throws IOException
+    {
+        try ( FileChannel channel = FileChannel.open( file, StandardOpenOption.READ ) )
+        {
+            ByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+            return new ReferenceIndex( new Segment[]{ new Segment( buffer ) }, new int[][]{ NONE } );
+        }
+    }
+
+
+    private static int compareBytes( byte[] a, byte[] b )
+    {
+        for( int i=0; i<a.length && i<b.length; i++ )
+        {
+            int c = ( a[i] & 0xff ) - ( b[i] & 0xff );
+            if ( c != 0 )
+                return c;
+        }
+        return a.length - b.length;
+    }
+
+
+    private static int[] intersect( int[] a, int[] b )
+    {
+        int[] result = new int[ Math.min( a.length, b.length ) ];
+        int i = 0, j = 0, n = 0;
+        while( i < a.length && j < b.length )
+        {
+            if ( a[i] < b[j] )
+                i++;
+            else if ( a[i] > b[j] )
+                j++;
+            else
+            {
+                result[ n++ ] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf( result, n );
+    }
+
+
+    private static int[] union( int[] a, int[] b )
+    {
+        int[] result = new int[ a.length + b.length ];
+        int i = 0, j = 0, n = 0;
+        while( i < a.length || j < b.length )
+        {
+            if ( j == b.length || ( i < a.length && a[i] < b[j] ) )
+                result[ n++ ] = a[ i++ ];
+            else if ( i == a.length || a[i] > b[j] )
+                result[ n++ ] = b[ j++ ];
+            else
+            {
+                result[ n++ ] = a[ i++ ];
+                j++;
+            }
+        }
+        return Arrays.copyOf( result, n );
+    }
+}
@@ -0,0 +1,160 @@
+/*
+Writes the events of a parsed formula as an S-expression.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A FormulaHandler that writes the formula as a compact S-expression, e.g.
+ * "(a + 5) / -sin(@width)" is written as:
+ *
+ * <pre>
+ * (/ (+ a 5) (- (sin @width)))
+ * </pre>
+ *
+ * Operations are written with their operator, the ternary as ?, and the
+ * unary negative as - with one operand. Parentheses are implied by the
+ * nesting so are left out. Names are written as they are, which is safe as
+ * they can't contain spaces or parentheses, and decimals always have a point
+ * or exponent, e.g. 2.0, so they can be told from integers.
+ *
+ * @author Jason Dore
+ */
+public class SExpressionFormulaHandler extends StreamFormulaHandler
+{
+    private int depth;
+    private boolean started;
+
+
+    public SExpressionFormulaHandler( OutputStream out )
+    {
+        super( out );
+    }
+
+
+    public SExpressionFormulaHandler( WritableByteChannel channel )
+    {
+        super( channel );
+    }
+
+
+    @Override
+    public void startOperation( String type ) throws IOException
+    {
+        String operator = type.equals( "ternary" ) ? "?" : FormulaParser.getOperatorSymbol( FormulaParser.getOperator( type ) );
+        open( operator != null ? operator : type );
+    }
+
+
+    @Override
+    public void endOperation() throws IOException
+    {
+        close();
+    }
+
+
+    @Override
+    public void startFunction( String function ) throws IOException
+    {
+        open( function );
+    }
+
+
+    @Override
+    public void endFunction() throws IOException
+    {
+        close();
+    }
+
+
+    @Override
+    public void startParenthesis()
+    {
+    }
+
+
+    @Override
+    public void endParenthesis()
+    {
+    }
+
+
+    @Override
+    public void variable( String name, boolean isCustom, boolean isHashToken ) throws IOException
+    {
+        separate();
+        write( name );
+    }
+
+
+    @Override
+    public void integer( int i ) throws IOException
+    {
+        separate();
+        write( i );
+    }
+
+
+    @Override
+    public void decimal( double d ) throws IOException
+    {
+        separate();
+        write( Double.toString( d ) );
+    }
+
+
+    private void open( String head ) throws IOException
+    {
+        separate();
+        write( '(' );
+        write( head );
+        depth++;
+    }
+
+
+    private void close() throws IOException
+    {
+        write( ')' );
+        depth--;
+    }
+
+
+    /**
+     * Separate this part from the one before: by a space within a list, or a
+     * new line between formulas.
+     */
+    private void separate() throws IOException
+    {
+        if ( depth > 0 )
+            write( ' ' );
+        else if ( started )
+            write( '\n' );
+
+        started = true;
+    }
+}
@@ -0,0 +1,337 @@
+/*
+A cache of parsed formulas shared between many nodes.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+import cloud.mypattern.FormulaParser.*;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One node's part of a cache of parsed formulas shared by many nodes, so that
+ * a formula parsed by one node needn't be parsed by the others.
+ *
+ * Each formula is owned by one node, found by consistent hashing of the hash
+ * of its text: each node has many points on a ring of 64 bit hashes, and a
+ * formula belongs to the node with the next point on from its own hash. So 
+ * formulas are spread evenly, and adding or removing a node only moves the
+ * formulas of its share. The owner holds the formula's entry, its compact
+ * form, and every other node asks the owner for it through a 
+ * FormulaCacheTransport, parsing it and giving the owner the entry if the 
+ * owner hasn't got it.
+ *
+ * In front of that each node keeps a small near-cache of the Expressions it 
+ * has used most recently. As an Expression is immutable and a formula's text
+ * always gives the same one, nothing ever needs to be invalidated.
+ *
+ * <pre>
+ * ShardedFormulaCache cache = new ShardedFormulaCache( "node1", nodes, transport );
+ * Expression e = cache.get( "(a + 5) / 2" );
+ * </pre>
+ *
+ * A node that can't be reached is counted and worked around by parsing the 
+ * formula here. The cache is thread safe.
+ *
+ * @author Jason Dore
+ */
+public final class ShardedFormulaCache
+{
+    //The points each node has on the ring.
+    private static final int VIRTUAL_NODES = 128;
+
+    private final String node;
+    private final FormulaCacheTransport transport;
+    private final TreeMap<Long,String> ring = new TreeMap<>();
+
+    private final Lru<Expression> near;
+    private final Lru<byte[]> shard; //the entries this node owns
+
+    private final ThreadLocal<FormulaCodec> encoders = ThreadLocal.withInitial( FormulaCodec::new );
+
+    private final AtomicLong nearHits = new AtomicLong();
+    private final AtomicLong shardHits = new AtomicLong();
+    private final AtomicLong parses = new AtomicLong();
+    private final AtomicLong transportErrors = new AtomicLong();
+
+
+    /**
+     * Make a node with a near-cache of 1024 formulas and a share of up to 
+     * 65536 entries.
+     *
+     * @param node this node's name.
+     * @param nodes the names of all the nodes, including this one, which 
+     * must be the same on every node.
+     * @param transport
+     */
+    public ShardedFormulaCache( String node, Collection<String> nodes, FormulaCacheTransport transport )
+    {
+        this( node, nodes, transport, 1024, 65536 );
+    }
+
+
+    /**
+     * @param node this node's name.
+     * @param nodes the names of all the nodes, including this one, which 
+     * must be the same on every node.
+     * @param transport
+     * @param nearCacheSize the most Expressions to keep in the near-cache.
+     * @param shardSize the most entries to keep of the formulas this node 
+     * owns, after which the least recently used are dropped.
+     */
+    public ShardedFormulaCache( String node, Collection<String> nodes, FormulaCacheTransport transport, int nearCacheSize, int shardSize )
+    {
+        if ( ! nodes.contains( node ) )
+            throw new IllegalArgumentException( "Not one of the nodes:" + node );
+
+        this.node = node;
+        this.transport = transport;
+        this.near = new Lru<>( nearCacheSize );
+        this.shard = new Lru<>( shardSize );
+
+        for( String n : nodes )
+        {
+            long hash = StructuralHash.text( n );
+            for( int i=0; i<VIRTUAL_NODES; i++ )
+                ring.put( StructuralHash.combine( hash, i ), n );
+        }
+    }
+
+
+    public String getNode()
+    {
+        return node;
+    }
+
+
+    /**
+     * @param formula
+     * @return the name of the node that owns the formula.
+     */
+    public String getOwner( String formula )
+    {
+        Map.Entry<Long,String> point = ring.ceilingEntry( StructuralHash.text( formula ) );
+        return ( point != null ? point : ring.firstEntry() ).getValue();
+    }
+
+
+    /**
+     * Get a formula from the near-cache, or its owner, or else parse it.
+     *
+     * @param formula
+     * @return the parsed formula.
+     * @throws cloud.mypattern.FormulaParser.FormulaSyntaxException if the
+     * formula is invalid, which isn't cached.
+     */
+    public Expression get( String formula ) throws FormulaSyntaxException
+    {
+        Expression e = near.get( formula );
+        if ( e != null )
+        {
+            nearHits.incrementAndGet();
+            return e;
+        }
+
+        String owner = getOwner( formula );
+        byte[] entry = null;
+
+        if ( owner.equals( node ) )
+        {
+            entry = shard.get( formula );
+        }
+        else
+        {
+            try {
+                entry = transport.get( owner, formula );
+            } catch ( IOException ex ) {
+                transportErrors.incrementAndGet();
+                owner = null; //so don't try to give it the entry either
+            }
+        }
+
+        if ( entry != null )
+        {
+            try {
+                e = FormulaCodec.decode( entry );
+                shardHits.incrementAndGet();
+            } catch ( IllegalArgumentException damaged ) {
+                entry = null; //so parse it and replace the entry
+            }
+        }
+
+        if ( entry == null )
+        {
+            entry = encode( formula );
+            e = FormulaCodec.decode( entry );
+            parses.incrementAndGet();
+
+            if ( node.equals( owner ) )
+            {
+                shard.put( formula, entry );
+            }
+            else if ( owner != null )
+            {
+                try {
+                    transport.put( owner, formula, entry );
+                } catch ( IOException ex ) {
+                    transportErrors.incrementAndGet();
+                }
+            }
+        }
+
+        near.put( formula, e );
+        return e;
+    }
+
+
+    /**
+     * Answer another node's request for the entry of a formula this node 
+     * owns. For use by a FormulaCacheTransport.
+     *
+     * @param formula
+     * @return the entry, or null if this node hasn't got it.
+     */
+    public byte[] getEntry( String formula )
+    {
+        return shard.get( formula );
+    }
+
+
+    /**
+     * Take the entry of a formula this node owns from the node that parsed
+     * it. For use by a FormulaCacheTransport.
+     *
+     * @param formula
+     * @param entry
+     */
+    public void putEntry( String formula, byte[] entry )
+    {
+        shard.put( formula, entry );
+    }
+
+
+    /**
+     * @return the number of entries held of the formulas this node owns.
+     */
+    public int getShardSize()
+    {
+        return shard.size();
+    }
+
+
+    /**
+     * @return the number of formulas found in the near-cache.
+     */
+    public long getNearHits()
+    {
+        return nearHits.get();
+    }
+
+
+    /**
+     * @return the number of formulas found at their owner, here or 
+     * elsewhere, having not been in the near-cache.
+     */
+    public long getShardHits()
+    {
+        return shardHits.get();
+    }
+
+
+    /**
+     * @return the number of formulas this node has parsed.
+     */
+    public long getParses()
+    {
+        return parses.get();
+    }
+
+
+    /**
+     * @return the number of requests to other nodes that failed.
+     */
+    public long getTransportErrors()
+    {
+        return transportErrors.get();
+    }
+
+
+    private byte[] encode( String formula ) throws FormulaSyntaxException
+    {
+        FormulaCodec codec = encoders.get();
+        codec.clear();
+
+        try {
+            FormulaParser.parse( new Stream( formula ), codec );
+        } catch ( Stream.SyntaxException e ) {
+            throw new FormulaSyntaxException( e );
+        }
+
+        return codec.toByteArray();
+    }
+
+
+    /**
+     * A map that drops its least recently used entry once full.
+     */
+    private static final class Lru<V>
+    {
+        private final Map<String,V> map;
+
+
+        Lru( final int capacity )
+        {
+            map = new LinkedHashMap<String,V>( 16, 0.75f, true )
+            {
+                @Override
+                protected boolean removeEldestEntry( Map.Entry<String,V> eldest )
+                {
+                    return size() > capacity;
+                }
+            };
+        }
+
+
+        synchronized V get( String key )
+        {
+            return map.get( key );
+        }
+
+
+        synchronized void put( String key, V value )
+        {
+            map.put( key, value );
+        }
+
+
+        synchronized int size()
+        {
+            return map.size();
+        }
+    }
+}
@@ -33,22 +33,110 @@ package cloud.mypattern;
 public class Stream
 {
     
-    class SyntaxException extends Exception
+    /**
+     * A syntax error in a formula, recording where it is and what went wrong.
+     * 
+     * These are cheap to create; they don't capture a stack trace, and the
+     * message is only made if it is asked for.
+     */
+    public static class SyntaxException extends Exception
     {
+        //Error codes
+        public static final int OTHER                 = 0;
+        public static final int EXPECTED_CHARACTER    = 1; //see getExpected() and getFound()
+        public static final int UNEXPECTED_END        = 2;
+        public static final int UNEXPECTED_OPERATOR   = 3; //see getFound()
+        public static final int UNEXPECTED_WHITESPACE = 4;
+        public static final int LIMIT_EXCEEDED        = 5; //see ParseLimits
+        
+        private final int code;
+        private final int offset;
+        private final char expected;
+        private final char found;
+        
         public SyntaxException(String msg)
         {
-            super(msg);
+            this( msg, OTHER, -1, (char)0, (char)0 );
+        }
+        
+        SyntaxException( String msg, int code, int offset, char expected, char found )
+        {
+            super( msg, null, false, false );
+            this.code = code;
+            this.offset = offset;
+            this.expected = expected;
+            this.found = found;
+        }
+        
+        /**
+         * @return one of the error codes above.
+         */
+        public int getCode()
+        {
+            return code;
+        }
+        
+        /**
+         * @return the offset of the character at which the error was found,
+         * or -1 if not known.
+         */
+        public int getOffset()
+        {
+            return offset;
+        }
+        
+        /**
+         * @return for EXPECTED_CHARACTER the character that was expected.
+         */
+        public char getExpected()
+        {
+            return expected;
+        }
+        
+        /**
+         * @return the character that was found instead, or 0 at the end of 
+         * the formula.
+         */
+        public char getFound()
+        {
+            return found;
+        }
+        
+        @Override
+        public String getMessage()
+        {
+            String msg = super.getMessage();
+            
+            if ( msg != null )
+                return msg;
+            
+            switch( code )
+            {
+                case EXPECTED_CHARACTER:  return "Expected " + expected + " found " + found;
+                case UNEXPECTED_OPERATOR: return "Unexpected token (operator not expected here):" + found;
+                default:                  return null;
+            }
         }
     };
 
 
     SyntaxException throwException( String msg )
     {
-        return new SyntaxException(msg);
+        return new SyntaxException( msg, SyntaxException.OTHER, index, (char)0, lookahead() );
+    }
+    
+    
+    /**
+     * Create an exception for the error code at the current position.
+     */
+    SyntaxException throwException( int code )
+    {
+        return new SyntaxException( null, code, index, (char)0, lookahead() );
     }
     
     
     char[] chars;
+    int length;
     int index;
 
     
@@ -61,15 +149,38 @@ public class Stream
     {
         //this.s = s;
         chars = s.toCharArray();
+        length = chars.length;
+        index = 0;
+    }
+
+
+    /**
+     * Start again with a new String, reusing this stream's buffer if it is
+     * big enough.
+     * 
+     * @param s 
+     */
+    void reset( String s )
+    {
+        if ( chars.length < s.length() )
+            chars = new char[ s.length() ];
+        
+        s.getChars( 0, s.length(), chars, 0 );
+        length = s.length();
         index = 0;
     }
 
 
     /** 
      * Returns the character at the current index position, whilst consuming it and moving the index forward. 
+     * 
+     * @throws cloud.mypattern.Stream.SyntaxException at the end of the stream.
      */
-    char consumeChar()
+    char consumeChar() throws SyntaxException
     {
+        if ( index >= length )
+            throw new SyntaxException( "Unexpected end of formula", SyntaxException.UNEXPECTED_END, index, (char)0, (char)0 );
+        
         return chars[ index++ ];
     }
 
@@ -81,7 +192,7 @@ public class Stream
      */
     boolean isEOF()
     {
-        return index >= chars.length;
+        return index >= length;
     }
 
     
@@ -98,7 +209,7 @@ public class Stream
         if ( lookahead() == expectedChar )
             return consumeChar();
 
-        throw new SyntaxException( "Expected " + expectedChar + " found " + lookahead() );
+        throw new SyntaxException( null, SyntaxException.EXPECTED_CHARACTER, index, expectedChar, lookahead() );
     }
 
 
@@ -107,7 +218,7 @@ public class Stream
      */
     char lookahead()
     {
-        if ( index >= chars.length )
+        if ( index >= length )
             return 0;
 
         return chars[ index ];
@@ -125,26 +236,226 @@ public class Stream
      */    
     String getToken( char[] delimiters ) throws SyntaxException
     {
-        StringBuilder token = new StringBuilder();
+        int start = index;
+        skipToken( delimiters );
+        return getString( start, index );
+    }
+
 
+    /**
+     * Consume the next token from the stream, as getToken() does, but without
+     * making a String of it. 
+     * 
+     * @return the index of the end of the token.
+     * @throws cloud.mypattern.Stream.SyntaxException 
+     */    
+    int skipToken( char[] delimiters ) throws SyntaxException
+    {
         if ( isEOF() )
-            throw new SyntaxException( "getToken() EOF. " );
+            throw new SyntaxException( "getToken() EOF. ", SyntaxException.UNEXPECTED_END, index, (char)0, (char)0 );
         
         char c = consumeChar();
 
         if ( isWhiteSpace( c ) )
-            throw new SyntaxException("getToken() found whitespace. " );
+            throw new SyntaxException( "getToken() found whitespace. ", SyntaxException.UNEXPECTED_WHITESPACE, index - 1, (char)0, c );
 
-        token.append( c );
+        //As a bit mask, the delimiters can be tested in one step per character.
+        long lowMask = 0;  //characters 0-63
+        long highMask = 0; //characters 64-127
+        for( char d : delimiters )
+        {
+            if ( d < 64 )
+                lowMask |= 1L << d;
+            else if ( d < 128 )
+                highMask |= 1L << ( d - 64 );
+        }
+        
+        int i = index;
+        while( i < length )
+        {
+            char l = chars[i];
+            boolean delimiter = ( l < 64 )  ? ( lowMask & ( 1L << l ) ) != 0 
+                              : ( l < 128 ) ? ( highMask & ( 1L << ( l - 64 ) ) ) != 0
+                              : isTokenDelimeter( l, delimiters );
+            if ( delimiter )
+                break;
+            i++;
+        }
+        index = i;
+        return index;
+    }
 
-        char l = lookahead();
 
-        while( (!isTokenDelimeter(l, delimiters)) && (!isEOF()) )
+    /**
+     * @return the characters from start up to, but not including, end. 
+     */
+    String getString( int start, int end )
+    {
+        return new String( chars, start, end - start );
+    }
+
+
+    /**
+     * Test whether the characters from start to end are an integer that
+     * Integer.parseInt() would accept, without the cost of it throwing an 
+     * exception when they are not.
+     * 
+     * @param start
+     * @param end
+     * @return 
+     */
+    boolean isInteger( int start, int end )
+    {
+        int i = start;
+        boolean negative = false;
+        
+        if ( ( i < end ) && ( ( chars[i] == '-' ) || ( chars[i] == '+' ) ) )
+            negative = chars[i++] == '-';
+        
+        if ( i == end )
+            return false;
+        
+        //Accumulate negatively, as Integer.parseInt() does, to spot overflow.
+        int limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+        int result = 0;
+        for( ; i<end; i++ )
+        {
+            int digit = Character.digit( chars[i], 10 );
+            
+            if (   ( digit < 0 )
+                || ( result < limit / 10 ) )
+                return false;
+            
+            result *= 10;
+            
+            if ( result < limit + digit )
+                return false;
+            
+            result -= digit;
+        }
+        return true;
+    }
+
+
+    /**
+     * Return the integer from start to end, which must be one for which
+     * isInteger() is true.
+     */
+    int parseInteger( int start, int end )
+    {
+        int i = start;
+        boolean negative = false;
+        
+        if ( ( chars[i] == '-' ) || ( chars[i] == '+' ) )
+            negative = chars[i++] == '-';
+        
+        int result = 0;
+        for( ; i<end; i++ )
+            result = result * 10 - Character.digit( chars[i], 10 );
+        
+        return negative ? result : -result;
+    }
+
+
+    /**
+     * Test whether the characters from start to end are a number that
+     * Double.parseDouble() would accept, without the cost of it throwing an 
+     * exception when they are not.
+     * 
+     * This follows the Java grammar for a floating point literal, so 
+     * accepts, for example, 1e5, 2f, NaN and 0x1p3 as well as 3.1415.
+     * 
+     * @param start
+     * @param end
+     * @return 
+     */
+    boolean isDecimal( int start, int end )
+    {
+        //Double.parseDouble() trims first
+        while( ( start < end ) && ( chars[start] <= ' ' ) )
+            start++;
+        
+        while( ( end > start ) && ( chars[end-1] <= ' ' ) )
+            end--;
+        
+        int i = start;
+        
+        if ( ( i < end ) && ( ( chars[i] == '-' ) || ( chars[i] == '+' ) ) )
+            i++;
+        
+        if ( i == end )
+            return false;
+        
+        if ( ( chars[i] == 'N' ) || ( chars[i] == 'I' ) )
+            return matches( i, end, "NaN" ) || matches( i, end, "Infinity" );
+        
+        boolean hex = ( chars[i] == '0' ) && ( i + 1 < end ) && ( ( chars[i+1] == 'x' ) || ( chars[i+1] == 'X' ) );
+        
+        if ( hex )
+            i += 2;
+        
+        //The mantissa, at least one digit and no more than one point.
+        boolean digitSeen = false;
+        boolean pointSeen = false;
+        for( ; i<end; i++ )
         {
-            token.append( consumeChar() );
-            l = lookahead();
+            char c = chars[i];
+            if ( hex ? isHexDigit( c ) : ( c >= '0' && c <= '9' ) )
+                digitSeen = true;
+            else if ( ( c == '.' ) && ( ! pointSeen ) )
+                pointSeen = true;
+            else 
+                break;
         }
-        return token.toString();
+        
+        if ( ! digitSeen )
+            return false;
+        
+        //The exponent, which is required for hex.
+        if ( ( i < end ) && ( hex ? ( chars[i] == 'p' || chars[i] == 'P' ) : ( chars[i] == 'e' || chars[i] == 'E' ) ) )
+        {
+            i++;
+            
+            if ( ( i < end ) && ( ( chars[i] == '-' ) || ( chars[i] == '+' ) ) )
+                i++;
+            
+            int exponentStart = i;
+            while( ( i < end ) && ( chars[i] >= '0' ) && ( chars[i] <= '9' ) )
+                i++;
+            
+            if ( i == exponentStart )
+                return false;
+        }
+        else if ( hex )
+        {
+            return false;
+        }
+        
+        //An optional type suffix.
+        if ( ( i == end - 1 ) && ( "fFdD".indexOf( chars[i] ) >= 0 ) )
+            i++;
+        
+        return i == end;
+    }
+
+
+    private boolean matches( int start, int end, String word )
+    {
+        if ( end - start != word.length() )
+            return false;
+        
+        for( int i=0; i<word.length(); i++ )
+        {
+            if ( chars[ start + i ] != word.charAt(i) )
+                return false;
+        }
+        return true;
+    }
+
+
+    private static boolean isHexDigit( char c )
+    {
+        return ( c >= '0' && c <= '9' ) || ( c >= 'a' && c <= 'f' ) || ( c >= 'A' && c <= 'F' );
     }
 
 
@@ -154,7 +465,7 @@ public class Stream
      * @param c
      * @return 
      */
-    private boolean isWhiteSpace( char c )
+    static boolean isWhiteSpace( char c )
     {
         return (( c == ' ' ) || ( c == '\n' ) || ( c == '\t') );
     }
@@ -189,7 +500,7 @@ public class Stream
         {
             if ( isWhiteSpace( lookahead() ) )
             {
-                consumeChar();
+                index++;
                 whiteSpaceFound = true;
             }
             else //not whiteSpace, or EOF
@@ -203,11 +514,11 @@ public class Stream
     @Override
     public String toString()
     {
-        if ( index >= chars.length )
-            return String.copyValueOf(chars) + "[]";
+        if ( index >= length )
+            return String.copyValueOf(chars, 0, length) + "[]";
         
         return ( index > 0 ? String.copyValueOf(chars, 0, index) : "" )
                 + "[" + chars[index] + "]"
-                + ( (index+1) < (chars.length-1) ? String.copyValueOf(chars, index+1, chars.length - index -1 ) : "" );
+                + ( (index+1) < (length-1) ? String.copyValueOf(chars, index+1, length - index -1 ) : "" );
     }
 }
@@ -0,0 +1,212 @@
+/*
+The base of the FormulaHandlers that write text straight to a stream.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A FormulaHandler that writes text, encoded as UTF-8, to an OutputStream or
+ * a WritableByteChannel.
+ *
+ * Text is encoded into a buffer that is reused for as long as the handler is,
+ * and only written out when the buffer is full or flush() is called. So one
+ * handler can write many formulas, e.g. a whole batch response, without
+ * making a String of any of them. Each formula after the first starts on a
+ * new line.
+ *
+ * A handler is not thread safe, and flush() must be called once done.
+ *
+ * @author Jason Dore
+ */
+public abstract class StreamFormulaHandler implements FormulaHandler
+{
+    private final OutputStream out;
+    private final WritableByteChannel channel;
+    static final int BUFFER_SIZE = 8192;
+    
+    private final byte[] buffer;
+    private final ByteBuffer wrapped;
+    private int count;
+
+
+    protected StreamFormulaHandler( OutputStream out )
+    {
+        this( out, new byte[ BUFFER_SIZE ] );
+    }
+
+
+    /**
+     * Write to the stream through the buffer given, e.g. one reused from
+     * formula to formula, rather than a new one.
+     */
+    StreamFormulaHandler( OutputStream out, byte[] buffer )
+    {
+        this.out = out;
+        this.channel = null;
+        this.buffer = buffer;
+        this.wrapped = null;
+    }
+
+
+    protected StreamFormulaHandler( WritableByteChannel channel )
+    {
+        this.out = null;
+        this.channel = channel;
+        this.buffer = new byte[ BUFFER_SIZE ];
+        this.wrapped = ByteBuffer.wrap( buffer );
+    }
+
+
+    /**
+     * Write a character, which must not be half of a surrogate pair.
+     */
+    protected final void write( char c ) throws IOException
+    {
+        if ( count + 3 > buffer.length )
+            drain();
+
+        if ( c < 0x80 )
+        {
+            buffer[ count++ ] = (byte)c;
+        }
+        else if ( c < 0x800 )
+        {
+            buffer[ count++ ] = (byte)( 0xc0 | ( c >> 6 ) );
+            buffer[ count++ ] = (byte)( 0x80 | ( c & 0x3f ) );
+        }
+        else
+        {
+            buffer[ count++ ] = (byte)( 0xe0 | ( c >> 12 ) );
+            buffer[ count++ ] = (byte)( 0x80 | ( ( c >> 6 ) & 0x3f ) );
+            buffer[ count++ ] = (byte)( 0x80 | ( c & 0x3f ) );
+        }
+    }
+
+
+    protected final void write( String s ) throws IOException
+    {
+        write( s, 0, s.length() );
+    }
+
+
+    /**
+     * Write the characters of s from start to end.
+     */
+    protected final void write( String s, int start, int end ) throws IOException
+    {
+        for( int i=start; i<end; i++ )
+        {
+            char c = s.charAt( i );
+
+            if ( ! Character.isSurrogate( c ) )
+            {
+                write( c );
+            }
+            else if (   Character.isHighSurrogate( c )
+                     && i + 1 < end
+                     && Character.isLowSurrogate( s.charAt( i + 1 ) ) )
+            {
+                int codePoint = Character.toCodePoint( c, s.charAt( ++i ) );
+
+                if ( count + 4 > buffer.length )
+                    drain();
+
+                buffer[ count++ ] = (byte)( 0xf0 | ( codePoint >> 18 ) );
+                buffer[ count++ ] = (byte)( 0x80 | ( ( codePoint >> 12 ) & 0x3f ) );
+                buffer[ count++ ] = (byte)( 0x80 | ( ( codePoint >> 6 ) & 0x3f ) );
+                buffer[ count++ ] = (byte)( 0x80 | ( codePoint & 0x3f ) );
+            }
+            else //a lone surrogate, which String.getBytes() would also replace
+            {
+                write( '?' );
+            }
+        }
+    }
+
+
+    /**
+     * Write an integer in decimal without making a String of it.
+     */
+    protected final void write( int i ) throws IOException
+    {
+        if ( count + 11 > buffer.length )
+            drain();
+
+        long l = i;
+        if ( l < 0 )
+        {
+            buffer[ count++ ] = '-';
+            l = -l;
+        }
+
+        int digits = 1;
+        for( long d = l; d >= 10; d /= 10 )
+            digits++;
+
+        for( int p = count + digits - 1; p >= count; p-- )
+        {
+            buffer[p] = (byte)( '0' + l % 10 );
+            l /= 10;
+        }
+        count += digits;
+    }
+
+
+    /**
+     * Write out anything buffered, and flush the stream or channel.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException
+    {
+        drain();
+
+        if ( out != null )
+            out.flush();
+    }
+
+
+    private void drain() throws IOException
+    {
+        if ( out != null )
+        {
+            out.write( buffer, 0, count );
+        }
+        else
+        {
+            Buffer b = wrapped; //as Java 8 has no ByteBuffer.clear()
+            b.clear();
+            b.limit( count );
+            while( wrapped.hasRemaining() )
+                channel.write( wrapped );
+        }
+        count = 0;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+A stable 64 bit hash of the structure of a formula.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+import cloud.mypattern.FormulaParser.*;
+import java.util.Arrays;
+
+/**
+ * Works out the structural hash of a formula, from the parser's events or
+ * from an Expression, which give the same answer.
+ * 
+ * Each part's hash is made from its kind, its value or name, and the hashes 
+ * of its operands in order. Parentheses are left out. Names are hashed from 
+ * their characters rather than String.hashCode() so that 64 bits are used,
+ * and nothing depends on the JVM, so a hash can be stored and compared with
+ * one worked out later.
+ * 
+ * @author Jason Dore
+ */
+final class StructuralHash
+{
+    private static final long INTEGER   = 1;
+    private static final long DECIMAL   = 2;
+    private static final long VARIABLE  = 3;
+    private static final long FUNCTION  = 4;
+    private static final long OPERATION = 5;
+    private static final long TERNARY   = 6;
+    private static final long TEXT      = 7;
+    
+    
+    private StructuralHash()
+    {
+    }
+    
+    
+    static long integer( int i )
+    {
+        return combine( INTEGER, i );
+    }
+    
+    
+    static long decimal( double d )
+    {
+        return combine( DECIMAL, Double.doubleToLongBits( d ) );
+    }
+    
+    
+    /**
+     * A custom variable, or an increment, isn't the same as a variable of
+     * the same name that isn't, e.g. -(@a) and -@a, so the flags count too.
+     */
+    static long variable( String name, boolean isCustom, boolean isHashToken )
+    {
+        return combine( combine( VARIABLE, name( name ) ), ( isCustom ? 1 : 0 ) | ( isHashToken ? 2 : 0 ) );
+    }
+    
+    
+    static long function( String function, long parameter1 )
+    {
+        return combine( combine( combine( FUNCTION, name( function ) ), parameter1 ), 1 );
+    }
+    
+    
+    static long function( String function, long parameter1, long parameter2 )
+    {
+        return combine( combine( combine( combine( FUNCTION, name( function ) ), parameter1 ), parameter2 ), 2 );
+    }
+    
+    
+    static long operation( int operator, long parameter1, long parameter2 )
+    {
+        return combine( combine( combine( OPERATION, operator ), parameter1 ), parameter2 );
+    }
+    
+    
+    static long ternary( long condition, long ifTrue, long ifFalse )
+    {
+        return combine( combine( combine( TERNARY, condition ), ifTrue ), ifFalse );
+    }
+    
+    
+    /**
+     * Work out the hash of an expression, walking it with its own stack so 
+     * that deeply nested expressions are fine.
+     */
+    static long of( Expression e )
+    {
+        //Each part is pushed twice: first to push its operands, then once 
+        //they have been hashed, to hash it.
+        Expression[] stack = new Expression[16];
+        boolean[] ready = new boolean[16];
+        int size = 0;
+        long[] hashes = new long[16];
+        int count = 0;
+        
+        stack[ size++ ] = e;
+        
+        while( size > 0 )
+        {
+            e = stack[ --size ];
+            stack[ size ] = null;
+            
+            if ( e instanceof BracketPair )
+            {
+                e = FormulaParser.unwrap( e );
+            }
+            else if ( ready[ size ] )
+            {
+                long hash;
+                if ( e instanceof TwoParameterOperation )
+                {
+                    hash = operation( ((TwoParameterOperation)e).operator, hashes[ count - 2 ], hashes[ count - 1 ] );
+                    count -= 2;
+                }
+                else if ( e instanceof TertiaryOperation )
+                {
+                    hash = ternary( hashes[ count - 3 ], hashes[ count - 2 ], hashes[ count - 1 ] );
+                    count -= 3;
+                }
+                else if ( ((Function)e).parameter2 != null )
+                {
+                    hash = function( ((Function)e).function, hashes[ count - 2 ], hashes[ count - 1 ] );
+                    count -= 2;
+                }
+                else
+                {
+                    hash = function( ((Function)e).function, hashes[ count - 1 ] );
+                    count -= 1;
+                }
+                hashes[ count++ ] = hash;
+                continue;
+            }
+            
+            if ( size + 4 > stack.length )
+            {
+                stack = Arrays.copyOf( stack, stack.length * 2 );
+                ready = Arrays.copyOf( ready, stack.length );
+            }
+            
+            if ( count + 1 > hashes.length )
+                hashes = Arrays.copyOf( hashes, hashes.length * 2 );
+            
+            if ( e instanceof Token )
+                hashes[ count++ ] = variable( ((Token)e).token, ((Token)e).isCustom, ((Token)e).isHashToken );
+            else if ( e instanceof IntegerToken )
+                hashes[ count++ ] = integer( ((IntegerToken)e).i );
+            else if ( e instanceof DoubleToken )
+                hashes[ count++ ] = decimal( ((DoubleToken)e).d );
+            else
+            {
+                ready[ size ] = true;
+                stack[ size++ ] = e;
+                
+                for( int i=e.getParameterCount()-1; i>=0; i-- )
+                {
+                    ready[ size ] = false;
+                    stack[ size++ ] = e.getParameter( i );
+                }
+            }
+        }
+        
+        return hashes[ 0 ];
+    }
+    
+    
+    /**
+     * Hash the text of a formula as it is, whitespace and all, e.g. to key a
+     * cache that mustn't need to parse the formula to look it up.
+     */
+    static long text( String formula )
+    {
+        return combine( TEXT, name( formula ) );
+    }
+    
+    
+    /**
+     * A 64 bit FNV-1a hash of the characters of a name.
+     */
+    private static long name( String name )
+    {
+        long h = 0xcbf29ce484222325L;
+        for( int i=0; i<name.length(); i++ )
+        {
+            h ^= name.charAt( i );
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+    
+    
+    static long combine( long h, long v )
+    {
+        //The finalizer of SplitMix64, so every bit of h and v affects every
+        //bit of the result.
+        h = h * 0x9e3779b97f4a7c15L + v;
+        h = ( h ^ ( h >>> 30 ) ) * 0xbf58476d1ce4e5b9L;
+        h = ( h ^ ( h >>> 27 ) ) * 0x94d049bb133111ebL;
+        return h ^ ( h >>> 31 );
+    }
+}
@@ -0,0 +1,269 @@
+/*
+An immutable index of variable names that can be searched by prefix.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * The variable names used by a pattern, for autocompleting references.
+ *
+ * Names are kept exactly as they appear in formulas, so custom measurements
+ * are found with the prefix "@" and increments with "#".
+ *
+ * The names are held in a sorted array, so the names with a given prefix are
+ * found by a binary search. An index is immutable; adding or removing names
+ * returns a new index. So that this is cheap, changes are kept in two small
+ * sorted arrays alongside the main one, which is only rebuilt once there are
+ * more than a few hundred of them.
+ *
+ * <pre>
+ * VariableIndex index = VariableIndex.of( measurementNames ).withFormula( parser.getExpression() );
+ * List&lt;String&gt; completions = index.find( "Line_A", 20 );
+ * </pre>
+ *
+ * @author Jason Dore
+ */
+public final class VariableIndex
+{
+    private static final String[] NONE = new String[0];
+
+    //How many changes are kept apart from the names before they are merged.
+    private static final int MAX_CHANGES = 256;
+
+    public static final VariableIndex EMPTY = new VariableIndex( NONE, NONE, NONE );
+
+    private final String[] names;   //sorted, no duplicates
+    private final String[] added;   //sorted, none of which are in names
+    private final String[] removed; //sorted, all of which are in names
+
+
+    private VariableIndex( String[] names, String[] added, String[] removed )
+    {
+        this.names = names;
+        this.added = added;
+        this.removed = removed;
+    }
+
+
+    /**
+     * @param names
+     * @return an index of the names given.
+     */
+    public static VariableIndex of( Collection<String> names )
+    {
+        return new VariableIndex( new TreeSet<>( names ).toArray( NONE ), NONE, NONE );
+    }
+
+
+    /**
+     * @param e a parsed formula.
+     * @return an index that also holds the variables the formula refers to.
+     */
+    public VariableIndex withFormula( FormulaParser.Expression e )
+    {
+        List<String> variables = new ArrayList<>();
+        FormulaParser.collectNames( e, variables, null );
+        return with( variables );
+    }
+
+
+    /**
+     * @param names
+     * @return an index that also holds the names given.
+     */
+    public VariableIndex with( Collection<String> names )
+    {
+        TreeSet<String> add = new TreeSet<>();
+        TreeSet<String> unremove = new TreeSet<>();
+
+        for( String name : names )
+        {
+            if ( contains( this.names, name ) )
+            {
+                if ( contains( removed, name ) )
+                    unremove.add( name );
+            }
+            else if ( ! contains( added, name ) )
+                add.add( name );
+        }
+
+        if ( add.isEmpty() && unremove.isEmpty() )
+            return this;
+
+        return changed( merge( added, add ), remove( removed, unremove ) );
+    }
+
+
+    /**
+     * @param names
+     * @return an index that no longer holds the names given.
+     */
+    public VariableIndex without( Collection<String> names )
+    {
+        TreeSet<String> unadd = new TreeSet<>();
+        TreeSet<String> remove = new TreeSet<>();
+
+        for( String name : names )
+        {
+            if ( contains( added, name ) )
+                unadd.add( name );
+            else if ( contains( this.names, name ) && ! contains( removed, name ) )
+                remove.add( name );
+        }
+
+        if ( unadd.isEmpty() && remove.isEmpty() )
+            return this;
+
+        return changed( remove( added, unadd ), merge( removed, remove ) );
+    }
+
+
+    private VariableIndex changed( String[] added, String[] removed )
+    {
+        if ( added.length + removed.length <= MAX_CHANGES )
+            return new VariableIndex( names, added, removed );
+
+        //Rebuild the names with the changes applied.
+        String[] merged = new String[ names.length + added.length - removed.length ];
+        int i = 0, j = 0, r = 0, m = 0;
+        while( i < names.length || j < added.length )
+        {
+            if ( j == added.length || ( i < names.length && names[i].compareTo( added[j] ) < 0 ) )
+            {
+                if ( r < removed.length && removed[r].equals( names[i] ) )
+                    r++;
+                else
+                    merged[ m++ ] = names[i];
+                i++;
+            }
+            else
+                merged[ m++ ] = added[ j++ ];
+        }
+        return new VariableIndex( merged, NONE, NONE );
+    }
+
+
+    /**
+     * Find the names that start with a prefix.
+     *
+     * @param prefix
+     * @param limit  The most names to return.
+     * @return the names found, in order.
+     */
+    public List<String> find( String prefix, int limit )
+    {
+        List<String> found = new ArrayList<>( Math.min( limit, 16 ) );
+
+        int i = start( names, prefix );
+        int j = start( added, prefix );
+        int r = start( removed, prefix );
+
+        while( found.size() < limit )
+        {
+            String name = i < names.length && names[i].startsWith( prefix ) ? names[i] : null;
+            String addedName = j < added.length && added[j].startsWith( prefix ) ? added[j] : null;
+
+            if ( name == null && addedName == null )
+                break;
+
+            if ( addedName == null || ( name != null && name.compareTo( addedName ) < 0 ) )
+            {
+                i++;
+
+                if ( r < removed.length && removed[r].equals( name ) )
+                    r++;
+                else
+                    found.add( name );
+            }
+            else
+            {
+                j++;
+                found.add( addedName );
+            }
+        }
+
+        return found;
+    }
+
+
+    public boolean contains( String name )
+    {
+        if ( contains( added, name ) )
+            return true;
+
+        return contains( names, name ) && ! contains( removed, name );
+    }
+
+
+    public int size()
+    {
+        return names.length + added.length - removed.length;
+    }
+
+
+    private static int start( String[] sorted, String prefix )
+    {
+        int i = Arrays.binarySearch( sorted, prefix );
+        return i < 0 ? -i - 1 : i;
+    }
+
+
+    private static boolean contains( String[] sorted, String name )
+    {
+        return Arrays.binarySearch( sorted, name ) >= 0;
+    }
+
+
+    private static String[] merge( String[] sorted, TreeSet<String> more )
+    {
+        if ( more.isEmpty() )
+            return sorted;
+
+        TreeSet<String> all = new TreeSet<>( more );
+        all.addAll( Arrays.asList( sorted ) );
+        return all.toArray( NONE );
+    }
+
+
+    private static String[] remove( String[] sorted, TreeSet<String> less )
+    {
+        if ( less.isEmpty() )
+            return sorted;
+
+        String[] result = new String[ sorted.length - less.size() ];
+        int n = 0;
+        for( String name : sorted )
+        {
+            if ( ! less.contains( name ) )
+                result[ n++ ] = name;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+Supplies the values of the variables a formula refers to.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+import java.util.Map;
+
+/**
+ * Supplies the value of each variable a formula refers to when it is 
+ * evaluated: measurements, custom measurements (@), increments (#) and 
+ * references to the geometry of the pattern, e.g. Line_A1_A2.
+ * 
+ * A resolver is only asked for the variables the evaluation reaches, so not 
+ * for those in a branch of a ternary that isn't taken.
+ * 
+ * @author Jason Dore
+ */
+public interface VariableResolver
+{
+    /**
+     * @param name the variable as written, e.g. @width.
+     * @return its value.
+     * @throws IllegalArgumentException if there is no such variable.
+     */
+    double resolve( String name );
+    
+    
+    /**
+     * @param values
+     * @return a resolver that looks variables up in the map.
+     */
+    static VariableResolver of( Map<String,? extends Number> values )
+    {
+        return name -> {
+            Number value = values.get( name );
+            
+            if ( value == null )
+                throw new IllegalArgumentException( "Unknown variable:" + name );
+            
+            return value.doubleValue();
+        };
+    }
+}
@@ -0,0 +1,141 @@
+/*
+Exercises the library, so its classes are loaded and compiled before use.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayWriter;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Exercises the parser, the XML, JSON and S-expression output, validation
+ * and evaluation, so that the classes they need are loaded and, with enough
+ * iterations, compiled.
+ * 
+ * Short-lived jobs can call run() while they start up, or a class data 
+ * sharing archive of the classes loaded can be made with "ant cds", which 
+ * runs this class with -XX:ArchiveClassesAtExit.
+ * 
+ * Run as a program this is also a startup benchmark, reporting the time from 
+ * the JVM starting to the first formula being converted to XML:
+ * 
+ * <pre>
+ * java -cp FormulaParser.jar cloud.mypattern.WarmUp [iterations]
+ * java -XX:SharedArchiveFile=FormulaParser.jsa -cp FormulaParser.jar cloud.mypattern.WarmUp
+ * </pre>
+ * 
+ * @author Jason Dore
+ */
+public final class WarmUp
+{
+    private static final String[] FORMULAS = {
+        "a + 5 / 2",
+        "(@width - 2.5) * -sin(#angle)",
+        "max( bust_circ / 4, waist_circ / 4 + 1.5 ) ^ 2",
+        "Line_A1_A2 > 10 ? sqrt( a*a + b*b ) : abs( c )",
+        "a >= b",
+        "a +",
+    };
+    
+    
+    private WarmUp()
+    {
+    }
+    
+    
+    /**
+     * @param args the number of iterations of run(), by default 1.
+     * @throws Exception 
+     */
+    public static void main( String[] args ) throws Exception
+    {
+        long start = System.nanoTime();
+        FormulaParser.formulaToXML( FORMULAS[0] );
+        long first = System.nanoTime() - start;
+        long firstAt = System.currentTimeMillis();
+        
+        int iterations = args.length > 0 ? Integer.parseInt( args[0] ) : 1;
+        start = System.nanoTime();
+        run( iterations );
+        long warm = System.nanoTime() - start;
+        
+        //Asked after the first result, as loading the management classes is slow.
+        long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+        
+        System.out.printf( "First result %d ms after the JVM started, taking %.2f ms%n", firstAt - jvmStart, first / 1e6 );
+        System.out.printf( "%d iterations of run() took %.2f ms%n", iterations, warm / 1e6 );
+    }
+    
+    
+    /**
+     * Exercise the library.
+     * 
+     * @param iterations the number of times to go through the sample formulas, 
+     * 1 to load the classes, or thousands to have them compiled too.
+     */
+    public static void run( int iterations )
+    {
+        Map<String,Double> variables = new HashMap<>();
+        for( String name : new String[]{ "a", "b", "c", "@width", "#angle", "bust_circ", "waist_circ", "Line_A1_A2" } )
+            variables.put( name, 1.0 );
+        
+        FormulaEvaluator evaluator = new FormulaEvaluator( VariableResolver.of( variables ) );
+        FormulaValidator validator = new FormulaValidator();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JSONFormulaHandler json = new JSONFormulaHandler( out );
+        SExpressionFormulaHandler sExpression = new SExpressionFormulaHandler( out );
+        
+        try {
+            for( int i=0; i<iterations; i++ )
+            {
+                for( String formula : FORMULAS )
+                {
+                    validator.validate( formula );
+                    
+                    ParseResult result = FormulaParser.tryParse( formula );
+                    if ( ! result.isValid() )
+                        continue;
+                    
+                    evaluator.evaluate( result.getExpression() );
+                    result.getExpression().toCanonicalString();
+                    
+                    FormulaParser.formulaToXML( formula );
+                    FormulaParser.parse( formula, json );
+                    FormulaParser.parse( formula, sExpression );
+                    
+                    //The StAX path too, for those who pass their own XMLStreamWriter.
+                    FormulaParser.formulaToXML( formula, FormulaParser.getXMLOutputFactory().createXMLStreamWriter( new CharArrayWriter() ) );
+                }
+                json.flush();
+                sExpression.flush();
+                out.reset();
+            }
+        } catch ( Exception e ) {
+            throw new IllegalStateException( "Warm up failed", e );
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+Writes the events of a parsed formula as XML.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * A FormulaHandler that writes the same XML as FormulaParser.marshall().
+ *
+ * Only the elements are written, the caller is responsible for starting and
+ * ending the document.
+ *
+ * @author Jason Dore
+ */
+public class XMLFormulaHandler implements FormulaHandler
+{
+    private final XMLStreamWriter xmlStream;
+
+
+    public XMLFormulaHandler( XMLStreamWriter xmlStream )
+    {
+        this.xmlStream = xmlStream;
+    }
+
+
+    @Override
+    public void startOperation( String type ) throws XMLStreamException
+    {
+        xmlStream.writeStartElement( "operation" );
+        xmlStream.writeAttribute( "type", type );
+    }
+
+
+    @Override
+    public void endOperation() throws XMLStreamException
+    {
+        xmlStream.writeEndElement();
+    }
+
+
+    @Override
+    public void startFunction( String function ) throws XMLStreamException
+    {
+        xmlStream.writeStartElement( "function" );
+        xmlStream.writeAttribute( "type", function );
+    }
+
+
+    @Override
+    public void endFunction() throws XMLStreamException
+    {
+        xmlStream.writeEndElement();
+    }
+
+
+    @Override
+    public void startParenthesis() throws XMLStreamException
+    {
+        xmlStream.writeStartElement( "parenthesis" );
+    }
+
+
+    @Override
+    public void endParenthesis() throws XMLStreamException
+    {
+        xmlStream.writeEndElement();
+    }
+
+
+    @Override
+    public void variable( String name, boolean isCustom, boolean isHashToken ) throws XMLStreamException
+    {
+        xmlStream.writeStartElement( "variable" );
+
+        if ( isCustom )
+            xmlStream.writeAttribute( "custom", "true" );
+
+        if ( isHashToken )
+            xmlStream.writeAttribute( "hash", "true" );
+
+        xmlStream.writeCharacters( name );
+        xmlStream.writeEndElement();
+    }
+
+
+    @Override
+    public void integer( int i ) throws XMLStreamException
+    {
+        xmlStream.writeStartElement( "integer" );
+        xmlStream.writeCharacters( Integer.toString(i) );
+        xmlStream.writeEndElement();
+    }
+
+
+    @Override
+    public void decimal( double d ) throws XMLStreamException
+    {
+        xmlStream.writeStartElement( "decimal" );
+        xmlStream.writeCharacters( Double.toString(d) );
+        xmlStream.writeEndElement();
+    }
+}
@@ -0,0 +1,243 @@
+/*
+Writes the events of a parsed formula as XML, without StAX.
+
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package cloud.mypattern;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A FormulaHandler that writes the same XML as XMLFormulaHandler, byte for 
+ * byte, but straight to a stream rather than through an XMLStreamWriter. 
+ * 
+ * So no XMLOutputFactory has to be found, which is what takes the time the 
+ * first time XML is written, and which a native image would need configuring
+ * for. This is what FormulaParser.formulaToXML() uses.
+ * 
+ * Only the elements are written, unless startDocument() is called first.
+ * Each formula after the first starts on a new line.
+ *
+ * @author Jason Dore
+ */
+public class XMLTextFormulaHandler extends StreamFormulaHandler
+{
+    private int depth;
+    private boolean started;
+    
+    //Whether the declaration has just been written, so the formula is on 
+    //the same line.
+    private boolean declared;
+
+
+    public XMLTextFormulaHandler( OutputStream out )
+    {
+        super( out );
+    }
+
+
+    XMLTextFormulaHandler( OutputStream out, byte[] buffer )
+    {
+        super( out, buffer );
+    }
+
+
+    public XMLTextFormulaHandler( WritableByteChannel channel )
+    {
+        super( channel );
+    }
+    
+    
+    /**
+     * Write the XML declaration that XMLStreamWriter.writeStartDocument() does,
+     * before the next formula.
+     * 
+     * @throws IOException 
+     */
+    public void startDocument() throws IOException
+    {
+        separate();
+        write( "<?xml version=\"1.0\" ?>" );
+        declared = true;
+    }
+
+
+    /**
+     * End the line, so the next formula starts the next line, or write a 
+     * blank line, e.g. in place of an invalid formula.
+     * 
+     * @throws IOException 
+     */
+    public void newLine() throws IOException
+    {
+        write( '\n' );
+        started = false;
+    }
+
+
+    @Override
+    public void startOperation( String type ) throws IOException
+    {
+        start( "<operation type=\"" );
+        escape( type, true );
+        write( "\">" );
+    }
+
+
+    @Override
+    public void endOperation() throws IOException
+    {
+        end( "</operation>" );
+    }
+
+
+    @Override
+    public void startFunction( String function ) throws IOException
+    {
+        start( "<function type=\"" );
+        escape( function, true );
+        write( "\">" );
+    }
+
+
+    @Override
+    public void endFunction() throws IOException
+    {
+        end( "</function>" );
+    }
+
+
+    @Override
+    public void startParenthesis() throws IOException
+    {
+        start( "<parenthesis>" );
+    }
+
+
+    @Override
+    public void endParenthesis() throws IOException
+    {
+        end( "</parenthesis>" );
+    }
+
+
+    @Override
+    public void variable( String name, boolean isCustom, boolean isHashToken ) throws IOException
+    {
+        start( "<variable" );
+
+        if ( isCustom )
+            write( " custom=\"true\"" );
+
+        if ( isHashToken )
+            write( " hash=\"true\"" );
+
+        write( '>' );
+        escape( name, false );
+        end( "</variable>" );
+    }
+
+
+    @Override
+    public void integer( int i ) throws IOException
+    {
+        start( "<integer>" );
+        write( i );
+        end( "</integer>" );
+    }
+
+
+    @Override
+    public void decimal( double d ) throws IOException
+    {
+        start( "<decimal>" );
+        write( Double.toString( d ) );
+        end( "</decimal>" );
+    }
+    
+    
+    /**
+     * Write the start of an element, on a new line if it starts a formula
+     * other than the first.
+     */
+    private void start( String tag ) throws IOException
+    {
+        if ( depth == 0 && ! declared )
+            separate();
+        
+        declared = false;
+        depth++;
+        write( tag );
+    }
+    
+    
+    private void end( String tag ) throws IOException
+    {
+        depth--;
+        write( tag );
+    }
+    
+    
+    private void separate() throws IOException
+    {
+        if ( started )
+            write( '\n' );
+        
+        started = true;
+    }
+
+
+    /**
+     * Write text or an attribute value escaped as XMLStreamWriter does.
+     */
+    private void escape( String s, boolean isAttribute ) throws IOException
+    {
+        int length = s.length();
+        int start = 0;
+        for( int i=0; i<length; i++ )
+        {
+            String entity;
+            switch( s.charAt( i ) )
+            {
+                case '<': entity = "&lt;"; break;
+                case '>': entity = "&gt;"; break;
+                case '&': entity = "&amp;"; break;
+                case '"': 
+                    if ( ! isAttribute )
+                        continue;
+                    entity = "&quot;"; 
+                    break;
+                default: 
+                    continue;
+            }
+            
+            write( s, start, i );
+            write( entity );
+            start = i + 1;
+        }
+        
+        write( s, start, length );
+    }
+}
@@ -0,0 +1,188 @@
+/*
+MIT License
+
+Copyright (c) 2018 MrDoo71 Jason Dore
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package cloud.mypattern;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.*;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Allocation budgets for the hot paths: parsing, writing the XML and
+ * evaluating. Each kind of formula is run until the JIT has done its work,
+ * then the bytes allocated by this thread per formula are measured and
+ * checked against the budget for that kind of formula and operation.
+ *
+ * The budgets are around twice what was measured, so they catch an added
+ * copy or boxing in a loop, not noise. A report of every measurement is
+ * printed either way. Skipped where the JVM can't count the bytes a thread
+ * allocates.
+ *
+ * @author Jason Dore
+ */
+public class AllocationTests
+{
+    private static final int WARM_UP = 20000;
+    private static final int ITERATIONS = 5000;
+
+    private static final String[] OPERATIONS = { "parse", "marshall", "formulaToXML", "xmlString", "evaluate" };
+
+    //Each kind of formula, an example and its budget in bytes per formula for
+    //each of the OPERATIONS.
+    private static final Object[][] FORMULAS = {
+        { "simple",    "a + 5 / 2",                                      new long[] { 2000, 8000, 1500, 1800, 1000 } },
+        { "decimals",  "3.14159 * @width - 0.5 * #inc",                  new long[] { 2500, 11000, 2500, 2700, 1000 } },
+        { "functions", "sqrt( a^2 + b^2 ) * sin( 30 ) + max( a, b )",  new long[] { 3000, 12000, 2500, 3000, 1000 } },
+        { "ternary",   "a > b ? ( a - b ) / 2 : -( b - a ) / 2",         new long[] { 3000, 12000, 2000, 3000, 1000 } },
+        { "nested",    "((((((a + 1) * 2) - 3) / 4) + 5) * 6) - (b)",    new long[] { 3000, 18000, 1600, 3000, 1000 } },
+        { "long",      chain( 40 ),                                      new long[] { 12000, 66000, 6500, 13500, 2500 } },
+    };
+
+    private static final OutputStream DISCARD = new OutputStream()
+    {
+        @Override
+        public void write( int b )
+        {
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len )
+        {
+        }
+    };
+
+
+    @Test
+    public void testAllocationBudgets() throws Exception
+    {
+        com.sun.management.ThreadMXBean threads = threadMXBean();
+        Assume.assumeTrue( threads != null );
+
+        Map<String,Double> values = new HashMap<>();
+        for( String v : new String[] { "a", "b", "@width", "#inc" } )
+            values.put( v, 3.0 );
+        for( int i=0; i<40; i++ )
+            values.put( "v" + i, (double)i );
+        FormulaEvaluator evaluator = new FormulaEvaluator( VariableResolver.of( values ) );
+
+        StringBuilder report = new StringBuilder();
+        report.append( String.format( "%-10s", "bytes" ) );
+        for( String operation : OPERATIONS )
+            report.append( String.format( "%14s", operation ) );
+        report.append( '\n' );
+
+        StringBuilder exceeded = new StringBuilder();
+        long id = Thread.currentThread().getId();
+
+        for( Object[] row : FORMULAS )
+        {
+            String kind = (String)row[0];
+            String formula = (String)row[1];
+            long[] budgets = (long[])row[2];
+            FormulaParser.Expression expression = new FormulaParser( new Stream( formula ) ).getExpression();
+
+            report.append( String.format( "%-10s", kind ) );
+            for( int o=0; o<OPERATIONS.length; o++ )
+            {
+                run( o, formula, expression, evaluator, WARM_UP );
+
+                long before = threads.getThreadAllocatedBytes( id );
+                run( o, formula, expression, evaluator, ITERATIONS );
+                long perFormula = ( threads.getThreadAllocatedBytes( id ) - before ) / ITERATIONS;
+
+                report.append( String.format( "%14d", perFormula ) );
+                if ( perFormula > budgets[o] )
+                    exceeded.append( kind ).append( ' ' ).append( OPERATIONS[o] ).append( ": " )
+                            .append( perFormula ).append( " bytes > " ).append( budgets[o] ).append( '\n' );
+            }
+            report.append( '\n' );
+        }
+
+        System.out.print( report );
+        assertTrue( "Allocation budget exceeded:\n" + exceeded, exceeded.length() == 0 );
+    }
+
+
+    private static void run( int operation, String formula, FormulaParser.Expression expression, FormulaEvaluator evaluator, int iterations ) throws Exception
+    {
+        double sum = 0;
+        for( int i=0; i<iterations; i++ )
+        {
+            switch( operation )
+            {
+                case 0:
+                    sum += new FormulaParser( new Stream( formula ) ).getExpression().getParameterCount();
+                    break;
+                case 1:
+                    sum += new FormulaParser( new Stream( formula ) ).marshall().length();
+                    break;
+                case 2:
+                    FormulaParser.formulaToXML( formula, DISCARD );
+                    break;
+                case 3:
+                    sum += FormulaParser.formulaToXML( formula ).length();
+                    break;
+                default:
+                    sum += evaluator.evaluate( expression );
+            }
+        }
+        assertFalse( Double.isNaN( sum ) );
+    }
+
+
+    /**
+     * The ThreadMXBean, if it can count the bytes each thread allocates.
+     */
+    private static com.sun.management.ThreadMXBean threadMXBean()
+    {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if ( ! ( bean instanceof com.sun.management.ThreadMXBean ) )
+            return null;
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)bean;
+        if ( ! threads.isThreadAllocatedMemorySupported() )
+            return null;
+
+        if ( ! threads.isThreadAllocatedMemoryEnabled() )
+            threads.setThreadAllocatedMemoryEnabled( true );
+
+        return threads;
+    }
+
+
+    /**
+     * A formula adding up n variables, e.g. v0 + v1 * 2 + v2 ...
+     */
+    private static String chain( int n )
+    {
+        StringBuilder s = new StringBuilder( "v0" );
+        for( int i=1; i<n; i++ )
+            s.append( i % 2 == 0 ? " + v" : " * 2 - v" ).append( i );
+        return s.toString();
+    }
+}
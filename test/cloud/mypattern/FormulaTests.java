@@ -23,10 +23,39 @@ SOFTWARE.
  */
 package cloud.mypattern;
 
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.invoke.MethodHandles;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import static java.util.Arrays.asList;
 import static org.junit.Assert.*;
 
+import org.junit.Assume;
 import org.junit.Test;
 
 /**
@@ -165,6 +194,9 @@ public class FormulaTests {
               "<operation type=\"add\"><integer>-3</integer><decimal>-3.1415</decimal></operation>");
             
         test( "-3", "-3", " -3I ", "<integer>-3</integer>" );
+        
+        //Anything Double.parseDouble() accepts is a decimal
+        test( "1e5 + 2f", "100000.0+2.0", " [ 100000.0D  +  2.0D ] ", "<operation type=\"add\"><decimal>100000.0</decimal><decimal>2.0</decimal></operation>" );
     }
     
     
@@ -390,12 +422,1461 @@ public class FormulaTests {
     
     
     
+    @Test
+    public void testStreamingHandler() throws FormulaParser.FormulaSyntaxException
+    {
+        final StringBuilder sb = new StringBuilder();
+        
+        FormulaParser.parse( "-sin(a) > atan(b+c/2) ? 2.41 * #length : (@width)", new FormulaHandler() {
+            @Override public void startOperation( String type ) { sb.append( type ).append( "[" ); }
+            @Override public void endOperation() { sb.append( "]" ); }
+            @Override public void startFunction( String function ) { sb.append( function ).append( "(" ); }
+            @Override public void endFunction() { sb.append( ")" ); }
+            @Override public void startParenthesis() { sb.append( "{" ); }
+            @Override public void endParenthesis() { sb.append( "}" ); }
+            @Override public void variable( String name, boolean isCustom, boolean isHashToken ) { sb.append( name ).append( isCustom ? "C" : "" ).append( isHashToken ? "H" : "" ).append( " " ); }
+            @Override public void integer( int i ) { sb.append( i ).append( " " ); }
+            @Override public void decimal( double d ) { sb.append( d ).append( " " ); }
+        });
+        
+        assertEquals( "ternary[greaterThan[-(sin(a ))atan(add[b divide[c 2 ]])]multiply[2.41 #lengthH ]{@widthC }]", sb.toString() );
+    }
+    
+    
+    @Test
+    public void testStreamingXML() throws Exception
+    {
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        FormulaParser.formulaToXML( "(a + 5) / 2", out );
+        assertEquals( FormulaParser.formulaToXML( "(a + 5) / 2" ), out.toString( "UTF-8" ) );
+        
+        out.reset();
+        try {
+            FormulaParser.formulaToXML( "(a + 5", out );
+            fail( "Expected a syntax error" );
+        } catch ( FormulaParser.FormulaSyntaxException e ) {
+            assertEquals( "Nothing should be written for an invalid formula", 0, out.size() );
+        }
+        
+        //The bytes written through are reused, so a stream that writes another
+        //formula while being written to must still get its own.
+        out.reset();
+        java.io.ByteArrayOutputStream inner = out;
+        FormulaParser.formulaToXML( "(a + 5) / 2", new java.io.OutputStream() {
+            @Override
+            public void write( int b )
+            {
+                inner.write( b );
+            }
+            
+            @Override
+            public void write( byte[] b, int off, int len ) throws java.io.IOException
+            {
+                try {
+                    assertEquals( "<?xml version=\"1.0\" ?><variable>b</variable>", FormulaParser.formulaToXML( "b" ) );
+                } catch ( FormulaParser.FormulaSyntaxException e ) {
+                    throw new java.io.IOException( e );
+                }
+                inner.write( b, off, len );
+            }
+        } );
+        assertEquals( FormulaParser.formulaToXML( "(a + 5) / 2" ), out.toString( "UTF-8" ) );
+        
+        //Bigger than the bytes written through at once, and than the text kept
+        StringBuilder big = new StringBuilder( "v0" );
+        for( int i=1; i<2000; i++ )
+            big.append( " + v" ).append( i );
+        java.io.StringWriter stax = new java.io.StringWriter();
+        FormulaParser.formulaToXML( big.toString(), FormulaParser.getXMLOutputFactory().createXMLStreamWriter( stax ) );
+        assertEquals( stax.toString(), FormulaParser.formulaToXML( big.toString() ) );
+        assertEquals( "<?xml version=\"1.0\" ?><variable>b</variable>", FormulaParser.formulaToXML( "b" ) );
+    }
+    
+    
+    @Test
+    public void testConstructedExpression() throws Exception
+    {
+        FormulaParser.Expression e = new FormulaParser.TwoParameterOperation(
+                new FormulaParser.BracketPair( 
+                        new FormulaParser.TwoParameterOperation( new FormulaParser.Token( "a", false, false ), "add", new FormulaParser.IntegerToken( 5 ) ) ),
+                "divide",
+                new FormulaParser.IntegerToken( 2 ) );
+        
+        FormulaParser u = new FormulaParser( new Stream( "(a + 5) / 2" ) );
+        assertEquals( u.toString(), e.toString() );
+        assertEquals( u.getExpression().toNormativeString(), e.toNormativeString() );
+        
+        java.io.StringWriter out = new java.io.StringWriter();
+        javax.xml.stream.XMLStreamWriter xmlStream = javax.xml.stream.XMLOutputFactory.newInstance().createXMLStreamWriter( out );
+        xmlStream.writeStartDocument();
+        e.emit( new XMLFormulaHandler( xmlStream ) );
+        xmlStream.flush();
+        assertEquals( u.marshall(), out.toString() );
+    }
+    
+    
+    @Test
+    public void testDeeplyNested() throws Exception
+    {
+        final int depth = 100000;
+        
+        StringBuilder nested = new StringBuilder();
+        for( int i=0; i<depth; i++ )
+            nested.append( '(' );
+        nested.append( "a" );
+        for( int i=0; i<depth; i++ )
+            nested.append( ')' );
+        
+        StringBuilder ternaries = new StringBuilder();
+        for( int i=0; i<depth; i++ )
+            ternaries.append( "a == " ).append( i ).append( " ? " ).append( i ).append( " : " );
+        ternaries.append( "-1" );
+        
+        final int[] parts = new int[1];
+        FormulaHandler counter = new FormulaHandler() {
+            @Override public void startOperation( String type ) { parts[0]++; }
+            @Override public void endOperation() { }
+            @Override public void startFunction( String function ) { parts[0]++; }
+            @Override public void endFunction() { }
+            @Override public void startParenthesis() { parts[0]++; }
+            @Override public void endParenthesis() { }
+            @Override public void variable( String name, boolean isCustom, boolean isHashToken ) { parts[0]++; }
+            @Override public void integer( int i ) { parts[0]++; }
+            @Override public void decimal( double d ) { parts[0]++; }
+        };
+        
+        FormulaParser.parse( nested.toString(), counter );
+        assertEquals( depth + 1, parts[0] );
+        
+        parts[0] = 0;
+        FormulaParser.parse( ternaries.toString(), counter );
+        assertEquals( depth * 5 + 1, parts[0] );
+        
+        FormulaParser u = new FormulaParser( new Stream( ternaries.toString() ) );
+        assertTrue( u.getExpression() instanceof FormulaParser.TertiaryOperation );
+    }
+    
+    
+    @Test
+    public void testValidator() throws Exception
+    {
+        FormulaValidator v = new FormulaValidator();
+        
+        assertTrue( v.validate( "sin(a) > atan(b+c/2) ? 2.41 * #length : Line_A1_A2" ) );
+        assertEquals( -1, v.getErrorOffset() );
+        assertNull( v.getErrorMessage() );
+        
+        assertTrue( v.validate( "1e5 * 0x1p3 + 2f" ) );
+        
+        assertFalse( v.validate( "(a + 5" ) );
+        assertEquals( 6, v.getErrorOffset() );
+        
+        assertFalse( v.validate( "a + * 2" ) );
+        assertEquals( 4, v.getErrorOffset() );
+        assertEquals( "Unexpected token (operator not expected here):*", v.getErrorMessage() );
+        
+        assertFalse( v.validate( "max( a; b" ) );
+        assertEquals( 9, v.getErrorOffset() );
+        
+        assertFalse( v.validate( "a * b ==" ) );
+        assertEquals( 8, v.getErrorOffset() );
+        assertEquals( "getToken() EOF. ", v.getErrorMessage() ); //as for any other missing operand
+        
+        assertTrue( "a validator can be reused after a failure", v.validate( "(a + 5) / 2" ) );
+        
+        //Anything the validator accepts the parser accepts, and vice versa.
+        String[] formulas = { "a", "-(a)", "- 5", "--5", "1 >= 2", "3 ? 4", "f(", "@", "#a#b", "1d(2)", "x(2)" };
+        for( String formula : formulas )
+        {
+            boolean parsed;
+            try {
+                new FormulaParser( new Stream( formula ) );
+                parsed = true;
+            } catch ( Stream.SyntaxException e ) {
+                parsed = false;
+            }
+            assertEquals( "Validator disagrees with parser for " + formula, parsed, v.validate( formula ) );
+        }
+    }
+    
+    
+    @Test
+    public void testTryParse()
+    {
+        ParseResult result = FormulaParser.tryParse( "(a + 5) / 2" );
+        assertTrue( result.isValid() );
+        assertNull( result.getError() );
+        assertEquals( " [( [a +  5I ] ) /  2I ] ", result.getExpression().toString() );
+        
+        result = FormulaParser.tryParse( "max( a; b c" );
+        assertFalse( result.isValid() );
+        assertNull( result.getExpression() );
+        
+        Stream.SyntaxException error = result.getError();
+        assertEquals( Stream.SyntaxException.EXPECTED_CHARACTER, error.getCode() );
+        assertEquals( 10, error.getOffset() );
+        assertEquals( ')', error.getExpected() );
+        assertEquals( 'c', error.getFound() );
+        assertEquals( "Expected ) found c", error.getMessage() );
+        assertEquals( "Errors should not pay for a stack trace", 0, error.getStackTrace().length );
+        
+        error = FormulaParser.tryParse( "a + ^ 2" ).getError();
+        assertEquals( Stream.SyntaxException.UNEXPECTED_OPERATOR, error.getCode() );
+        assertEquals( 4, error.getOffset() );
+        assertEquals( '^', error.getFound() );
+        
+        error = FormulaParser.tryParse( "@ width" ).getError();
+        assertEquals( Stream.SyntaxException.UNEXPECTED_WHITESPACE, error.getCode() );
+        assertEquals( 1, error.getOffset() );
+        
+        error = FormulaParser.tryParse( "sin(" ).getError();
+        assertEquals( Stream.SyntaxException.UNEXPECTED_END, error.getCode() );
+        assertEquals( 4, error.getOffset() );
+        
+        try {
+            new FormulaParser( new Stream( "sin(" ) );
+            fail( "Expected a syntax error" );
+        } catch ( Stream.SyntaxException e ) {
+            assertEquals( Stream.SyntaxException.UNEXPECTED_END, e.getCode() );
+        }
+    }
+
+
+    @Test
+    public void testIncremental() throws Stream.SyntaxException
+    {
+        IncrementalFormula f = IncrementalFormula.parse( "sqrt( a^2 + b^2 ) * max( c; d ? e : g )" );
+        FormulaParser.Expression before = f.getExpression();
+
+        //Only the function parameter is reparsed, the rest is reused.
+        IncrementalFormula g = f.edit( 15, 0, " + c^2" );
+        assertEquals( "sqrt( a^2 + b^2 + c^2 ) * max( c; d ? e : g )", g.getText() );
+        assertEquals( new FormulaParser( new Stream( g.getText() ) ).toString(), g.getExpression().toString() );
+        assertEquals( " a^2 + b^2 + c^2 ".length(), g.reparsedLength );
+        FormulaParser.TwoParameterOperation multiply = (FormulaParser.TwoParameterOperation)g.getExpression();
+        assertSame( ((FormulaParser.TwoParameterOperation)before).getParameter2(), multiply.getParameter2() );
+
+        //A ternary branch.
+        g = g.edit( 38, 1, "e + 1" );
+        assertEquals( "sqrt( a^2 + b^2 + c^2 ) * max( c; d ? e + 1 : g )", g.getText() );
+        assertEquals( new FormulaParser( new Stream( g.getText() ) ).toString(), g.getExpression().toString() );
+        assertEquals( " e + 1 ".length(), g.reparsedLength );
+
+        //Deleting a parenthesis changes the structure, so needs more reparsing.
+        g = f.edit( 4, 1, " " );
+        assertEquals( g.getText().length(), g.reparsedLength );
+        assertEquals( new FormulaParser( new Stream( g.getText() ) ).toString(), g.getExpression().toString() );
+
+        try {
+            f.edit( 16, 1, "" );
+            fail( "Expected a syntax error" );
+        } catch ( Stream.SyntaxException e ) {
+            assertEquals( Stream.SyntaxException.EXPECTED_CHARACTER, e.getCode() );
+        }
+
+        assertEquals( "b", f.getExpressionAt( 12 ).toString() );
+        assertEquals( "sqrt( a^2 + b^2 ) * max( c; d ? e : g )", f.getText() );
+        assertNull( f.getExpressionAt( 100 ) );
+    }
+
+
+    @Test
+    public void testVariableIndex() throws Stream.SyntaxException
+    {
+        VariableIndex index = VariableIndex.of( asList( "height", "@width", "hip", "Line_A1_A2" ) );
+        index = index.withFormula( new FormulaParser( new Stream( "max( #ease; Line_A1_A3 ) + height * sin( @width2 )" ) ).getExpression() );
+
+        assertEquals( 7, index.size() );
+        assertEquals( asList( "height", "hip" ), index.find( "h", 10 ) );
+        assertEquals( asList( "@width", "@width2" ), index.find( "@", 10 ) );
+        assertEquals( asList( "Line_A1_A2" ), index.find( "Line_A", 1 ) );
+        assertEquals( asList( "#ease" ), index.find( "#", 10 ) );
+        assertFalse( index.contains( "max" ) );
+
+        VariableIndex changed = index.without( asList( "hip", "@width2" ) );
+        assertEquals( asList( "height" ), changed.find( "h", 10 ) );
+        assertEquals( asList( "@width" ), changed.find( "@w", 10 ) );
+        assertTrue( index.contains( "hip" ) );
+
+        changed = changed.with( asList( "hip", "hips" ) );
+        assertEquals( asList( "height", "hip", "hips" ), changed.find( "h", 10 ) );
+
+        //Enough changes that they are merged into the sorted names.
+        List<String> many = new ArrayList<>();
+        for( int i=0; i<1000; i++ )
+            many.add( "m" + i );
+        changed = changed.with( many ).without( asList( "m5", "height" ) );
+        assertEquals( 1005, changed.size() );
+        assertEquals( asList( "m4", "m40", "m400" ), changed.find( "m4", 3 ) );
+        assertEquals( asList( "hip", "hips" ), changed.find( "h", 10 ) );
+        assertFalse( changed.contains( "m5" ) );
+    }
+
+
+    @Test
+    public void testReferenceIndex() throws Exception
+    {
+        Map<Integer,FormulaParser.Expression> formulas = new HashMap<>();
+        formulas.put( 1, new FormulaParser( new Stream( "atan( #NegativeHipEase / height )" ) ).getExpression() );
+        formulas.put( 2, new FormulaParser( new Stream( "#NegativeHipEase + @waist" ) ).getExpression() );
+        formulas.put( 300, new FormulaParser( new Stream( "-atan( height ) * 2" ) ).getExpression() );
+
+        ReferenceIndex index = ReferenceIndex.EMPTY.with( formulas );
+        assertArrayEquals( new int[]{ 1, 2 }, index.find( "#NegativeHipEase" ) );
+        assertArrayEquals( new int[]{ 1, 300 }, index.find( "atan" ) );
+        assertArrayEquals( new int[]{ 1 }, index.findAll( asList( "atan", "#NegativeHipEase" ) ) );
+        assertArrayEquals( new int[]{ 1, 2, 300 }, index.findAny( asList( "@waist", "height" ) ) );
+        assertArrayEquals( new int[0], index.find( "-" ) );
+        assertArrayEquals( new int[0], index.find( "nothing" ) );
+
+        //Replacing and removing formulas.
+        formulas.clear();
+        formulas.put( 2, new FormulaParser( new Stream( "atan( @waist )" ) ).getExpression() );
+        index = index.with( formulas ).without( asList( 1 ) );
+        assertArrayEquals( new int[]{ 2, 300 }, index.find( "atan" ) );
+        assertArrayEquals( new int[0], index.find( "#NegativeHipEase" ) );
+
+        Path file = Files.createTempFile( "references", ".idx" );
+        try {
+            index.write( file );
+            ReferenceIndex mapped = ReferenceIndex.map( file );
+            assertArrayEquals( new int[]{ 2, 300 }, mapped.find( "atan" ) );
+            assertArrayEquals( new int[]{ 2 }, mapped.find( "@waist" ) );
+
+            formulas.clear();
+            formulas.put( 1000, new FormulaParser( new Stream( "atan( a )" ) ).getExpression() );
+            assertArrayEquals( new int[]{ 2, 300, 1000 }, mapped.with( formulas ).find( "atan" ) );
+        } finally {
+            Files.delete( file );
+        }
+
+        //Many additions are merged as they go.
+        for( int i=0; i<100; i++ )
+        {
+            formulas.clear();
+            formulas.put( 10000 + i * 1000, new FormulaParser( new Stream( "sin( x" + i + " ) + height" ) ).getExpression() );
+            index = index.with( formulas );
+        }
+        assertEquals( 101, index.find( "height" ).length );
+        assertArrayEquals( new int[]{ 55000 }, index.find( "x45" ) );
+    }
+
+
+    @Test
+    public void testJSONAndSExpression() throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JSONFormulaHandler json = new JSONFormulaHandler( out );
+        FormulaParser.parse( "(a + 5) / -sin(@width)", json );
+        FormulaParser.parse( "b ? 1.5 : max( #xé; 2147483647 )", json );
+        json.flush();
+        assertEquals( "{\"operation\":\"divide\",\"operands\":["
+                        + "{\"parenthesis\":{\"operation\":\"add\",\"operands\":[{\"variable\":\"a\"},{\"integer\":5}]}},"
+                        + "{\"function\":\"-\",\"operands\":[{\"function\":\"sin\",\"operands\":[{\"variable\":\"@width\",\"custom\":true}]}]}]}\n"
+                    + "{\"operation\":\"ternary\",\"operands\":[{\"variable\":\"b\"},{\"decimal\":1.5},"
+                        + "{\"function\":\"max\",\"operands\":[{\"variable\":\"#xé\",\"hash\":true},{\"integer\":2147483647}]}]}",
+                      new String( out.toByteArray(), StandardCharsets.UTF_8 ) );
+
+        out.reset();
+        SExpressionFormulaHandler sexpr = new SExpressionFormulaHandler( Channels.newChannel( out ) );
+        FormulaParser.parse( "(a + 5) / -sin(@width)", sexpr );
+        FormulaParser.parse( "b >= -2 ? NaN : \"q\\", sexpr );
+        sexpr.flush();
+        assertEquals( "(/ (+ a 5) (- (sin @width)))\n(? (>= b -2) NaN \"q\\)",
+                      new String( out.toByteArray(), StandardCharsets.UTF_8 ) );
+
+        //Names that need escaping in JSON, and more than fills the buffer.
+        out.reset();
+        json = new JSONFormulaHandler( out );
+        StringBuilder formula = new StringBuilder( "\"q\\" );
+        for( int i=0; i<2000; i++ )
+            formula.append( "+😀" );
+        FormulaParser.parse( formula.toString(), json );
+        json.flush();
+        String written = new String( out.toByteArray(), StandardCharsets.UTF_8 );
+        assertTrue( written.contains( "{\"variable\":\"\\\"q\\\\\"}" ) );
+        assertTrue( written.endsWith( "{\"variable\":\"😀\"}]}" ) );
+    }
+
+
+    @Test
+    public void testParseLimits() throws Exception
+    {
+        ParseLimits limits = ParseLimits.NONE.withMaxLength( 20 ).withMaxDepth( 2 ).withMaxNodes( 7 ).withMaxTokens( 3 );
+        assertTrue( FormulaParser.tryParse( "sin( (a + b) ) * 2", limits ).isValid() );
+        
+        String[] over = { "a + b + c + d + e + f", "sin( ((a)) )", "((a) + (b)) * 2", "a + b + c + d" };
+        int[] offsets = { 20, 6, -1, -1 };
+        for( int i=0; i<over.length; i++ )
+        {
+            ParseResult result = FormulaParser.tryParse( over[i], limits );
+            assertFalse( over[i], result.isValid() );
+            assertEquals( over[i], Stream.SyntaxException.LIMIT_EXCEEDED, result.getError().getCode() );
+            if ( offsets[i] >= 0 )
+                assertEquals( over[i], offsets[i], result.getError().getOffset() );
+        }
+        assertTrue( FormulaParser.tryParse( "a + b + c + d" ).isValid() );
+        
+        try {
+            FormulaParser.parse( "(((a)))", new JSONFormulaHandler( new ByteArrayOutputStream() ), limits );
+            fail( "Expected the depth to be over the limit" );
+        } catch ( FormulaParser.FormulaSyntaxException e ) {
+            assertEquals( "Formula nested deeper than 2", e.getCause().getMessage() );
+        }
+        
+        //The timeout is checked as parsing goes.
+        StringBuilder sb = new StringBuilder( "a" );
+        for( int i=0; i<100000; i++ )
+            sb.append( "+a" );
+        ParseResult result = FormulaParser.tryParse( sb.toString(), ParseLimits.NONE.withTimeout( 1, TimeUnit.NANOSECONDS ) );
+        assertEquals( Stream.SyntaxException.LIMIT_EXCEEDED, result.getError().getCode() );
+        assertTrue( result.getError().getOffset() < 2000 );
+        assertTrue( FormulaParser.tryParse( sb.toString(), ParseLimits.NONE.withTimeout( 1, TimeUnit.MINUTES ) ).isValid() );
+    }
+
+
+    @Test
+    public void testCanonicalForm() throws Exception
+    {
+        FormulaParser u = new FormulaParser( new Stream( "(a+5)/2" ) );
+        assertEquals( "(a+5)/2", u.getExpression().toCanonicalString() );
+        assertEquals( u.getStructuralHash(), u.getExpression().structuralHash() );
+
+        for( String formula : asList( "( a + 5 ) / 2", "((a+5))/(2)", "(((a)+(5))/2)" ) )
+        {
+            FormulaParser v = new FormulaParser( new Stream( formula ) );
+            assertEquals( formula, "(a+5)/2", v.getExpression().toCanonicalString() );
+            assertEquals( formula, u.getStructuralHash(), v.getStructuralHash() );
+            assertEquals( formula, u.getStructuralHash(), v.getExpression().structuralHash() );
+        }
+
+        assertTrue( u.getStructuralHash() != new FormulaParser( new Stream( "a+5/2" ) ).getStructuralHash() );
+        assertTrue( u.getStructuralHash() != new FormulaParser( new Stream( "(a+5)/2.0" ) ).getStructuralHash() );
+        assertTrue( u.getStructuralHash() != new FormulaParser( new Stream( "(b+5)/2" ) ).getStructuralHash() );
+
+        //Only the parentheses that are needed are kept, and each canonical
+        //form parses back to the same structure.
+        String[][] expected = {
+            { "a + (b * c)",             "a+b*c" },
+            { "(a - b) - c",             "a-b-c" },
+            { "a - (b - c)",             "a-(b-c)" },
+            { "a / (b * c)",             "a/(b*c)" },
+            { "(a ^ 2) ^ 3",             "a^2^3" },
+            { "a ^ (2 ^ 3)",             "a^(2^3)" },
+            { "-(a + b)",                "-(a+b)" },
+            { "-(a) * b",                "-a*b" },
+            { "-(-5)",                   "-(-5)" },
+            { "a - (-5)",                "a--5" },
+            { "(a >= b) ? (c) : (d)",    "a>=b?c:d" },
+            { "(a <= 1) + 2",            "(a<=1)+2" },
+            { "(a ? b : c) * 2",         "(a?b:c)*2" },
+            { "sin( (a + b) )",          "sin(a+b)" },
+            { "max( (a); (b ? 1 : 2) )", "max(a,b?1:2)" },
+            { "(a + b) <= c",            "(a+b)<=c" },
+            { "(a * b) >= (c)",          "(a*b)>=c" },
+            { "(a - b) == c",            "(a-b)==c" },
+            { "((a < b)) != c",          "(a<b) != c" },
+            { "a <= (b + c)",            "a<=b+c" },
+            { "-(@c)",                   "-(@c)" },
+            { "-(#d) * 2",               "-(#d)*2" },
+            { "a+b<=c",                  "(a+b)<=c" },
+            { "a+b>=c",                  "(a+b)>=c" },
+            { "a*b<=c",                  "(a*b)<=c" },
+        };
+        for( String[] pair : expected )
+        {
+            FormulaParser v = new FormulaParser( new Stream( pair[0] ) );
+            assertEquals( pair[0], pair[1], v.getExpression().toCanonicalString() );
+            assertCanonicalRoundTrip( v );
+
+            FormulaParser w = new FormulaParser( new Stream( pair[1] ) );
+            assertEquals( pair[0], v.getStructuralHash(), w.getStructuralHash() );
+        }
+
+        assertTrue( new FormulaParser( new Stream( "-(@c)" ) ).getStructuralHash() != new FormulaParser( new Stream( "-@c" ) ).getStructuralHash() );
+        
+        //<= straight after an operation is one operator, not < and a variable =c
+        assertEquals( "<?xml version=\"1.0\" ?><operation type=\"lessThanOrEqual\"><operation type=\"add\"><variable>a</variable><variable>b</variable></operation><variable>c</variable></operation>",
+                      FormulaParser.formulaToXML( "a+b<=c" ) );
+
+        //The normative form keeps the parentheses, and now >= and <=.
+        assertEquals( "(a>=b)?c:(d<=1)", new FormulaParser( new Stream( "( a >= b ) ? c : ( d <= 1 )" ) ).getExpression().toNormativeString() );
+
+        //Nesting that would overflow the stack if printed recursively.
+        StringBuilder deep = new StringBuilder();
+        for( int i=0; i<100000; i++ )
+            deep.append( "(a+" );
+        deep.append( "1" );
+        for( int i=0; i<100000; i++ )
+            deep.append( ")" );
+        FormulaParser d = new FormulaParser( new Stream( deep.toString() ) );
+        assertEquals( 4 * 100000 - 1, d.getExpression().toCanonicalString().length() );
+        assertEquals( d.getStructuralHash(), d.getExpression().structuralHash() );
+    }
+
+
+    @Test
+    public void testCompactFormulas() throws Exception
+    {
+        String[] formulas = { "(a + 5) / 2", "b ? 1.5 : max( #x; -2147483648 )", "-sin(@width) >= 3.1415 * a", "a" };
+
+        CompactFormulas compact = new CompactFormulas();
+        for( int i=0; i<formulas.length; i++ )
+            assertEquals( i, compact.add( formulas[i] ) );
+
+        //Nothing is kept of an invalid formula.
+        try {
+            compact.add( "c + max( d; )" );
+            fail( "Expected a syntax error" );
+        } catch ( FormulaParser.FormulaSyntaxException e ) {
+            assertEquals( formulas.length, compact.size() );
+            assertEquals( 20, compact.getPartCount() );
+        }
+
+        compact.trimToSize();
+        assertEquals( 7, compact.nameCount ); //a, b, max, #x, sin, @width and -
+
+        for( int i=0; i<formulas.length; i++ )
+        {
+            FormulaParser u = new FormulaParser( new Stream( formulas[i] ) );
+            assertEquals( FormulaParser.formulaToXML( formulas[i] ), compact.toXML( i ) );
+            assertEquals( u.getExpression().toNormativeString(), compact.getExpression( i ).toNormativeString() );
+        }
+
+        assertEquals( 4, compact.add( "a + c" ) );
+        assertEquals( "a+c", compact.getExpression( 4 ).toNormativeString() );
+        
+        //An index that wouldn't fit above the kind is refused, not wrapped.
+        int parts = compact.getPartCount();
+        compact.decimalCount = CompactFormulas.MAX_INDEX + 1;
+        try {
+            compact.add( "a + 0.5" );
+            fail( "Expected it to be full" );
+        } catch ( IllegalStateException e ) {
+            assertEquals( "CompactFormulas full", e.getMessage() );
+            assertEquals( 5, compact.size() );
+            assertEquals( parts, compact.getPartCount() );
+            assertEquals( CompactFormulas.MAX_INDEX + 1, compact.decimalCount );
+        }
+        
+        compact.nameCount = CompactFormulas.MAX_INDEX + 1;
+        try {
+            compact.add( "a + e" );
+            fail( "Expected it to be full" );
+        } catch ( IllegalStateException e ) {
+            assertEquals( 5, compact.size() );
+            assertEquals( parts, compact.getPartCount() );
+        }
+    }
+
+
+    @Test
+    public void testEvaluator() throws Stream.SyntaxException
+    {
+        Map<String,Double> values = new HashMap<>();
+        values.put( "a", 3.0 );
+        values.put( "@b", 0.5 );
+        values.put( "#c", 2.0 );
+        FormulaEvaluator evaluator = new FormulaEvaluator( VariableResolver.of( values ) );
+
+        assertEquals( 1.5, evaluator.evaluate( parse( "(a + @b * 2 ) / #c - 0.5" ) ), 0 );
+        assertEquals( 9, evaluator.evaluate( parse( "a ^ #c" ) ), 0 );
+        assertEquals( 0.5, evaluator.evaluate( parse( "sinD( 90 ) * max( -a; @b ) + min( 1; 2 ) - 1" ) ), 1e-12 );
+        assertEquals( 1, evaluator.evaluate( parse( "a >= 3" ) ), 0 );
+        assertEquals( 0, evaluator.evaluate( parse( "a != 3" ) ), 0 );
+        assertEquals( 1, evaluator.evaluate( parse( "fmod( 7; a )" ) ), 0 );
+        assertEquals( Math.log( 3 ), evaluator.evaluate( parse( "ln( a )" ) ), 1e-15 );
+
+        //The branch not taken isn't evaluated, so its unknown variable is fine.
+        assertEquals( 2, evaluator.evaluate( parse( "a > 1 ? #c : unknown" ) ), 0 );
+        try {
+            evaluator.evaluate( parse( "a < 1 ? #c : unknown" ) );
+            fail( "Expected unknown variable" );
+        } catch ( IllegalArgumentException e ) {
+            assertEquals( "Unknown variable:unknown", e.getMessage() );
+        }
+
+        //Every operator and function, differentiated in one pass, against
+        //finite differences.
+        String[] formulas = {
+            "(a + @b) * (a - #c) / (@b + 1) ^ #c",
+            "a > #c ? a * a : @b",
+            "sin( a * @b ) + cos( @b ) - tan( @b ) + asin( @b ) - acos( @b / 2 ) + atan( a )",
+            "sinD( a * 10 ) + cosD( a ) + tanD( a ) + asinD( @b ) + acosD( @b ) + atanD( a )",
+            "sinh( @b ) + cosh( @b ) + tanh( @b ) + asinh( a ) + acosh( a ) + atanh( @b )",
+            "log2( a ) + log10( a * #c ) + log( a ) + ln( @b ) + exp( @b ) + sqrt( a )",
+            "sign( a ) * abs( @b - a ) + rint( 2.4 ) + degTorad( a ) + radTodeg( @b )",
+            "min( a; #c * @b ) + max( a; #c ) * sum( a; @b ) - avg( a; #c ) + fmod( a * 3; #c )",
+            "-( a * a ) + -@b + (a < #c) + (a <= #c) + (a == #c) + (a >= #c)",
+        };
+        String[] variables = { "a", "@b", "#c" };
+        for( String formula : formulas )
+        {
+            FormulaParser.Expression e = parse( formula );
+            FormulaEvaluator.Derivatives d = evaluator.differentiate( e, variables );
+            assertEquals( formula, evaluator.evaluate( e ), d.getValue(), 0 );
+
+            for( String variable : variables )
+            {
+                double h = 1e-6;
+                Map<String,Double> moved = new HashMap<>( values );
+                moved.put( variable, values.get( variable ) + h );
+                double up = new FormulaEvaluator( VariableResolver.of( moved ) ).evaluate( e );
+                moved.put( variable, values.get( variable ) - h );
+                double down = new FormulaEvaluator( VariableResolver.of( moved ) ).evaluate( e );
+                assertEquals( formula + " d/d" + variable, ( up - down ) / ( 2 * h ), d.getPartial( variable ), 1e-5 );
+            }
+        }
+
+        FormulaEvaluator.Derivatives d = evaluator.differentiate( parse( "a * a * @b" ), "a" );
+        assertEquals( 4.5, d.getValue(), 0 );
+        assertEquals( 1, d.getPartials().length );
+        assertEquals( 3, d.getPartials()[0], 0 );
+    }
+
+
+    @Test
+    public void testPartialEvaluator() throws Exception
+    {
+        Map<String,Double> sizeChart = new HashMap<>();
+        sizeChart.put( "#ease", 2.0 );
+        sizeChart.put( "a", 3.0 );
+        PartialEvaluator p = new PartialEvaluator( sizeChart );
+        
+        assertEquals( "5*x+(y)", p.specialise( parse( "(a + #ease) * x + (#ease > 1 ? y : z / 0)" ) ).toNormativeString() );
+        assertEquals( "(x+3)/4", p.specialise( parse( "(x + a) / (#ease * 2)" ) ).toNormativeString() );
+        assertEquals( "x?1.5:-1", p.specialise( parse( "x ? a / #ease : #ease - a" ) ).toNormativeString() );
+        assertEquals( "sqrt(-1)+foo(5)", p.specialise( parse( "sqrt(#ease - a) + foo(a + 2)" ) ).toNormativeString() );
+        assertEquals( "12", p.specialise( parse( "max( a; #ease ) * 4" ) ).toNormativeString() );
+        
+        //Unchanged parts are shared.
+        FormulaParser.Expression e = parse( "x * (y + 1) + a" );
+        FormulaParser.Expression residual = p.specialise( e );
+        assertSame( e.getParameter( 0 ), residual.getParameter( 0 ) );
+        FormulaParser.Expression unchanged = parse( "x + y" );
+        assertSame( unchanged, p.specialise( unchanged ) );
+        
+        //The residual evaluates the same as the original.
+        Map<String,Double> customer = new HashMap<>( sizeChart );
+        customer.put( "x", 7.0 );
+        customer.put( "y", -2.5 );
+        FormulaEvaluator evaluator = new FormulaEvaluator( VariableResolver.of( customer ) );
+        for( String formula : new String[]{ "(a + #ease) * x + (#ease > 1 ? y : z / 0)", "x ? a / #ease : #ease - a", "sinD( a * 30 ) * x ^ #ease", "-(a) * -(x)" } )
+            assertEquals( formula, evaluator.evaluate( parse( formula ) ), evaluator.evaluate( p.specialise( parse( formula ) ) ), 1e-12 );
+    }
+
+
+    @Test
+    public void testEvaluationProfiler() throws Exception
+    {
+        Map<String,Double> values = new HashMap<>();
+        values.put( "a", 3.0 );
+        values.put( "b", 4.0 );
+        FormulaEvaluator evaluator = new FormulaEvaluator( VariableResolver.of( values ) );
+        EvaluationProfiler profiler = new EvaluationProfiler();
+        evaluator.setProfiler( profiler );
+        
+        FormulaParser.Expression ternary = parse( "a > 1 ? b : c + d" );
+        assertEquals( 4, evaluator.evaluate( "A1,length", ternary ), 0 );
+        assertTrue( profiler.getEntries().isEmpty() );
+        
+        profiler.setEnabled( true );
+        for( int i=0; i<3; i++ )
+            assertEquals( 4, evaluator.evaluate( "A1,length", ternary ), 0 );
+        assertEquals( 3, evaluator.evaluate( "A2", parse( "(a)" ) ), 0 );
+        assertEquals( 4, evaluator.evaluate( null, parse( "b" ) ), 0 ); //not recorded
+        try {
+            evaluator.evaluate( null, parse( "c" ) );
+            fail( "Expected c to be unknown" );
+        } catch ( IllegalArgumentException x ) { //rather than a NullPointerException from the profiler
+        }
+        
+        List<EvaluationProfiler.Entry> entries = profiler.getEntries();
+        assertEquals( 2, entries.size() );
+        EvaluationProfiler.Entry e = entries.get( 0 ).getId().equals( "A2" ) ? entries.get( 1 ) : entries.get( 0 );
+        assertEquals( "A1,length", e.getId() );
+        assertEquals( 3, e.getCount() );
+        assertEquals( 15, e.getParts() ); //a 1 > b ?, three times
+        assertEquals( 6, e.getVariables() );
+        assertTrue( e.getNanos() > 0 );
+        assertEquals( 1, profiler.getTop( 1 ).size() );
+        assertTrue( entries.get( 0 ).getNanos() >= entries.get( 1 ).getNanos() );
+        
+        StringBuilder csv = new StringBuilder();
+        profiler.writeCSV( csv );
+        assertTrue( csv.toString(), csv.toString().startsWith( "id,count,nanos,parts,variables\n" ) );
+        assertTrue( csv.toString(), csv.toString().contains( "\"A1,length\",3," ) );
+        assertTrue( csv.toString(), csv.toString().contains( "\nA2,1," ) );
+        
+        StringBuilder json = new StringBuilder();
+        profiler.writeJSON( json );
+        assertTrue( json.toString(), json.toString().contains( "{\"id\":\"A2\",\"count\":1,\"nanos\":" ) );
+        assertTrue( json.toString(), json.toString().contains( ",\"parts\":2,\"variables\":1}" ) );
+        
+        profiler.reset();
+        assertTrue( profiler.getEntries().isEmpty() );
+    }
+
+
+    @Test
+    public void testFlightRecorderEvents() throws Exception
+    {
+        //By reflection, so that the tests still compile on a Java 8 without jdk.jfr.
+        Class<?> recordingClass;
+        try {
+            recordingClass = Class.forName( "jdk.jfr.Recording" );
+        } catch ( ClassNotFoundException e ) {
+            recordingClass = null;
+        }
+        Assume.assumeTrue( "No Flight Recorder", recordingClass != null );
+        
+        Class<?> settingsClass = Class.forName( "jdk.jfr.EventSettings" );
+        Class<?> recordedClass = Class.forName( "jdk.jfr.consumer.RecordedEvent" );
+        Class<?> typeClass = Class.forName( "jdk.jfr.EventType" );
+        Path file = Files.createTempFile( "formulas", ".jfr" );
+        try ( AutoCloseable recording = (AutoCloseable)recordingClass.getConstructor().newInstance() ) {
+            for( String name : new String[]{ "cloud.mypattern.Parse", "cloud.mypattern.Marshal", "cloud.mypattern.Evaluate" } )
+            {
+                Object settings = recordingClass.getMethod( "enable", String.class ).invoke( recording, name );
+                settingsClass.getMethod( "withThreshold", java.time.Duration.class ).invoke( settings, java.time.Duration.ZERO );
+            }
+            
+            recordingClass.getMethod( "start" ).invoke( recording );
+            FormulaParser.tryParse( "a +" );
+            FormulaParser.formulaToXML( "b * 2" );
+            new FormulaEvaluator( VariableResolver.of( new HashMap<String,Double>() ) ).evaluate( parse( "2 * 3" ) );
+            recordingClass.getMethod( "stop" ).invoke( recording );
+            recordingClass.getMethod( "dump", Path.class ).invoke( recording, file );
+            
+            Map<String,String> events = new HashMap<>();
+            for( Object event : (List<?>)Class.forName( "jdk.jfr.consumer.RecordingFile" ).getMethod( "readAllEvents", Path.class ).invoke( null, file ) )
+            {
+                Object type = recordedClass.getMethod( "getEventType" ).invoke( event );
+                events.merge( (String)typeClass.getMethod( "getName" ).invoke( type ), 
+                              recordedClass.getMethod( "getInt", String.class ).invoke( event, "length" ) + " " 
+                              + recordedClass.getMethod( "getInt", String.class ).invoke( event, "nodes" ) + " " 
+                              + recordedClass.getMethod( "getString", String.class ).invoke( event, "outcome" ),
+                              ( a, b ) -> a + ", " + b );
+            }
+            assertEquals( "3 1 getToken() EOF., 5 3 OK, 5 3 OK", events.get( "cloud.mypattern.Parse" ) );
+            assertEquals( "5 3 OK", events.get( "cloud.mypattern.Marshal" ) );
+            assertEquals( "3 3 OK", events.get( "cloud.mypattern.Evaluate" ) ); //2*3
+        } finally {
+            Files.delete( file );
+        }
+    }
+
+
+    @Test
+    public void testFlightRecorderStartup() throws Exception
+    {
+        boolean hasFlightRecorder;
+        try {
+            Class.forName( "jdk.jfr.FlightRecorder" );
+            hasFlightRecorder = true;
+        } catch ( ClassNotFoundException e ) {
+            hasFlightRecorder = false;
+        }
+        Assume.assumeTrue( "No Flight Recorder", hasFlightRecorder );
+        
+        //With no recording, the first formula should take about as long as
+        //with the events turned off, not the third of a second or more it 
+        //takes to register them. The best of a few runs, as each is a new JVM.
+        double on = Double.MAX_VALUE, off = Double.MAX_VALUE;
+        for( int i=0; i<3; i++ )
+        {
+            on = Math.min( on, firstResultMillis( "-Dcloud.mypattern.jfr=true" ) );
+            off = Math.min( off, firstResultMillis( "-Dcloud.mypattern.jfr=false" ) );
+        }
+        assertTrue( on + " ms with the events, " + off + " ms without", on < off * 2 + 50 );
+    }
+    
+    
+    /**
+     * @return how long WarmUp, in a new JVM, says its first formula took.
+     */
+    private static double firstResultMillis( String property ) throws Exception
+    {
+        Process p = new ProcessBuilder( System.getProperty( "java.home" ) + "/bin/java", property, 
+                                        "-cp", System.getProperty( "java.class.path" ), "cloud.mypattern.WarmUp" )
+                .redirectErrorStream( true ).start();
+        String output;
+        try ( InputStream in = p.getInputStream() ) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            for( int n; ( n = in.read( buffer ) ) > 0; )
+                bytes.write( buffer, 0, n );
+            output = new String( bytes.toByteArray(), StandardCharsets.UTF_8 );
+        }
+        assertEquals( output, 0, p.waitFor() );
+        
+        java.util.regex.Matcher m = java.util.regex.Pattern.compile( "taking ([0-9.,]+) ms" ).matcher( output );
+        assertTrue( output, m.find() );
+        return Double.parseDouble( m.group( 1 ).replace( ',', '.' ) );
+    }
+
+
+    @Test
+    public void testMeasurements() throws Exception
+    {
+        Measurements empty = Measurements.empty();
+        Measurements m = empty.with( "a", 1 );
+        for( int i=0; i<200; i++ )
+            m = m.with( "m" + i, i );
+        Measurements before = m;
+        m = m.with( "m150", -1 ).without( "a" );
+        
+        assertEquals( 0, empty.size() );
+        assertEquals( 201, before.size() );
+        assertEquals( 200, m.size() );
+        assertEquals( before.getVersion() + 2, m.getVersion() );
+        assertEquals( 150, before.resolve( "m150" ), 0 );
+        assertEquals( -1, m.resolve( "m150" ), 0 );
+        assertEquals( 149, m.resolve( "m149" ), 0 );
+        assertTrue( before.contains( "a" ) );
+        assertFalse( m.contains( "a" ) );
+        assertSame( m, m.without( "a" ) );
+        try {
+            m.resolve( "a" );
+            fail( "Expected an unknown variable" );
+        } catch ( IllegalArgumentException e ) {
+            assertEquals( "Unknown variable:a", e.getMessage() );
+        }
+        
+        //Readers see each change whole.
+        MeasurementStore store = new MeasurementStore();
+        store.set( "#ease", 2 );
+        Map<String,Double> zero = new HashMap<>();
+        zero.put( "a", 0.0 );
+        zero.put( "b", 0.0 );
+        store.setAll( zero );
+        FormulaParser.Expression difference = parse( "a - b + #ease" );
+        ExecutorService pool = Executors.newFixedThreadPool( 3 );
+        List<Future<Integer>> readers = new ArrayList<>();
+        for( int r=0; r<2; r++ )
+        {
+            readers.add( pool.submit( () -> {
+                int inconsistent = 0;
+                for( int i=0; i<20000; i++ )
+                    if ( store.evaluator().evaluate( difference ) != 2 )
+                        inconsistent++;
+                return inconsistent;
+            } ) );
+        }
+        Future<?> writer = pool.submit( () -> {
+            for( int i=1; i<=20000; i++ )
+            {
+                Map<String,Double> values = new HashMap<>();
+                values.put( "a", (double)i );
+                values.put( "b", (double)i );
+                store.setAll( values );
+            }
+        } );
+        writer.get();
+        for( Future<Integer> reader : readers )
+            assertEquals( Integer.valueOf( 0 ), reader.get() );
+        pool.shutdown();
+        assertEquals( 20000, store.snapshot().resolve( "a" ), 0 );
+        assertEquals( 20002, store.snapshot().getVersion() );
+    }
+
+
+    @Test
+    public void testJavaScriptEmitter() throws Exception
+    {
+        String js = JavaScriptEmitter.toJavaScript( parse( "a + 5 / 2" ) );
+        assertTrue( js, js.startsWith( "(function(){\"use strict\";function value(o,n){" ) );
+        assertTrue( js, js.endsWith( "return function(values){return (value(values,\"a\")+(5/2));};})()" ) );
+        assertFalse( js, JavaScriptEmitter.toJavaScript( parse( "sinD( 30 )" ) ).contains( "function value" ) );
+        try {
+            JavaScriptEmitter.toJavaScript( parse( "foo( a )" ) );
+            fail( "Expected an unknown function" );
+        } catch ( IllegalArgumentException e ) {
+            assertEquals( "Unknown function:foo", e.getMessage() );
+        }
+        
+        Assume.assumeTrue( hasJavaScript() );
+        
+        //Every function, where FormulaEvaluator's results are awkward too.
+        String[] functions = { "-", "sin", "cos", "tan", "asin", "acos", "atan", "sinD", "cosD", "tanD", "asinD", 
+                               "acosD", "atanD", "sinh", "cosh", "tanh", "asinh", "acosh", "atanh", "log2", "log10", 
+                               "log", "ln", "exp", "sqrt", "sign", "rint", "abs", "degTorad", "radTodeg" };
+        double[] xs = { -1000, -3.5, -2.5, -0.5, -0.0, 0, 0.3, 0.5, 1, 1.5, 2.5, 30, 1000, Double.NaN, Double.POSITIVE_INFINITY };
+        Map<String,Double> values = new HashMap<>();
+        for( double x : xs )
+        {
+            values.put( "x", x );
+            values.put( "y", 2.0 );
+            for( String f : functions )
+                assertJavaScriptAgrees( parse( f + "( x )" ), values );
+            for( String f : new String[] { "min", "max", "sum", "avg", "fmod" } )
+            {
+                assertJavaScriptAgrees( parse( f + "( x, y )" ), values );
+                assertJavaScriptAgrees( parse( f + "( y, x )" ), values );
+            }
+            assertJavaScriptAgrees( parse( "x ? 1 : x^y > -x == 1 ? 2 : 3" ), values );
+            assertJavaScriptAgrees( parse( "(y^x - x/y*-0.0015) != (x <= y)" ), values );
+        }
+        
+        try {
+            JAVASCRIPT.eval( JavaScriptEmitter.toJavaScript( parse( "a + b" ) ) + "({a:1})" );
+            fail( "Expected an unknown variable" );
+        } catch ( ScriptException e ) {
+            assertTrue( e.getMessage(), e.getMessage().contains( "Unknown variable:b" ) );
+        }
+        
+        //A whole pattern's formulas in one.
+        Map<String,FormulaParser.Expression> pattern = new java.util.LinkedHashMap<>();
+        pattern.put( "A1.length", parse( "@width / 2 + #ease" ) );
+        pattern.put( "A2\"angle", parse( "atanD( @width / 3 )" ) );
+        JAVASCRIPT.put( "pattern", JAVASCRIPT.eval( JavaScriptEmitter.toJavaScript( pattern ) ) );
+        assertEquals( 22, ((Number)JAVASCRIPT.eval( "pattern['A1.length']({'@width':40,'#ease':2})" )).doubleValue(), 0 );
+        assertEquals( 45, ((Number)JAVASCRIPT.eval( "pattern['A2\"angle']({'@width':3})" )).doubleValue(), 1e-12 );
+    }
+
+
+    @Test
+    public void testShardedFormulaCache() throws Exception
+    {
+        //The compact form gives back the same formula.
+        String[] formulas = { "(a + 5) / a", "-3 * 2147483647 + -2147483648", "3.5e-7 * @width - #inc",
+                              "max( a, -b ) ? sin( (((c))) ) : 0.1", "a > b ? a : b ? c : d" };
+        FormulaCodec codec = new FormulaCodec();
+        for( String formula : formulas )
+        {
+            codec.clear();
+            FormulaParser.parse( new Stream( formula ), codec );
+            FormulaParser.Expression e = FormulaCodec.decode( codec.toByteArray() );
+            assertEquals( parse( formula ).toNormativeString(), e.toNormativeString() );
+        }
+        codec.clear();
+        FormulaParser.parse( new Stream( formulas[0] ), codec );
+        byte[] entry = codec.toByteArray();
+        assertEquals( 14, entry.length );
+        try {
+            FormulaCodec.decode( java.util.Arrays.copyOf( entry, 12 ) );
+            fail( "Expected a damaged entry" );
+        } catch ( IllegalArgumentException e ) {
+        }
+        
+        //Each formula is parsed once by the whole fleet, and held by its owner.
+        LoopbackTransport transport = new LoopbackTransport();
+        List<String> names = asList( "a", "b", "c" );
+        Map<String,ShardedFormulaCache> nodes = new HashMap<>();
+        for( String name : names )
+        {
+            ShardedFormulaCache node = new ShardedFormulaCache( name, names, transport );
+            transport.register( node );
+            nodes.put( name, node );
+        }
+        for( int i=0; i<300; i++ )
+            for( String name : names )
+                assertEquals( "a+" + i, nodes.get( name ).get( "a + " + i ).toNormativeString() );
+        long parses = 0;
+        for( ShardedFormulaCache node : nodes.values() )
+        {
+            assertTrue( node.getShardSize() > 50 );
+            parses += node.getParses();
+        }
+        assertEquals( 300, parses );
+        assertEquals( 300, nodes.get( "a" ).getShardSize() + nodes.get( "b" ).getShardSize() + nodes.get( "c" ).getShardSize() );
+        assertEquals( 600, nodes.get( "a" ).getShardHits() + nodes.get( "b" ).getShardHits() + nodes.get( "c" ).getShardHits() );
+        ShardedFormulaCache a = nodes.get( "a" );
+        FormulaParser.Expression e = a.get( "a + 7" );
+        assertSame( e, a.get( "a + 7" ) );
+        assertEquals( 2, a.getNearHits() );
+        
+        //A node that has gone is worked around.
+        transport.unregister( "c" );
+        String formula = "b * 1";
+        for( int i=2; ! a.getOwner( formula ).equals( "c" ); i++ )
+            formula = "b * " + i;
+        assertEquals( formula.replace( " ", "" ), a.get( formula ).toNormativeString() );
+        assertEquals( 1, a.getTransportErrors() );
+        
+        try {
+            a.get( "a +" );
+            fail( "Expected a syntax error" );
+        } catch ( FormulaParser.FormulaSyntaxException ex ) {
+        }
+    }
+
+
+    @Test
+    public void testMemoizingResolver() throws Exception
+    {
+        //Line_ lengths are worked out from other formulas, as the geometry would be.
+        Map<String,String> lines = new HashMap<>();
+        lines.put( "Line_A1_A2", "a * 2" );
+        lines.put( "Line_A2_A3", "Line_A1_A2 + 1" );
+        lines.put( "Line_A3_A4", "Line_A3_A4 + 1" );
+        Map<String,Integer> calls = new ConcurrentHashMap<>();
+        MemoizingResolver[] resolver = new MemoizingResolver[1];
+        resolver[0] = new MemoizingResolver( name -> {
+            calls.merge( name, 1, Integer::sum );
+            if ( name.equals( "a" ) )
+                return 5;
+            if ( ! lines.containsKey( name ) )
+                throw new IllegalArgumentException( "Unknown variable:" + name );
+            try {
+                return new FormulaEvaluator( resolver[0] ).evaluate( parse( lines.get( name ) ) );
+            } catch ( Stream.SyntaxException e ) {
+                throw new IllegalArgumentException( e );
+            }
+        } );
+        FormulaEvaluator evaluator = new FormulaEvaluator( resolver[0] );
+        
+        assertEquals( 10, evaluator.evaluate( parse( "a > 1 ? Line_A1_A2 : Line_A2_A3" ) ), 0 );
+        assertFalse( resolver[0].isResolved( "Line_A2_A3" ) );
+        assertEquals( 2, resolver[0].size() );
+        
+        //Shared across formulas and threads, each worked out once.
+        ExecutorService pool = Executors.newFixedThreadPool( 4 );
+        List<Future<Double>> results = new ArrayList<>();
+        for( int i=0; i<100; i++ )
+            results.add( pool.submit( () -> evaluator.evaluate( parse( "Line_A2_A3 + Line_A1_A2" ) ) ) );
+        for( Future<Double> result : results )
+            assertEquals( 21, result.get(), 0 );
+        pool.shutdown();
+        assertEquals( Integer.valueOf( 1 ), calls.get( "a" ) );
+        assertEquals( Integer.valueOf( 1 ), calls.get( "Line_A1_A2" ) );
+        assertEquals( Integer.valueOf( 1 ), calls.get( "Line_A2_A3" ) );
+        
+        try {
+            evaluator.evaluate( parse( "Line_A3_A4" ) );
+            fail( "Expected a circular reference" );
+        } catch ( IllegalArgumentException e ) {
+            assertEquals( "Circular reference:Line_A3_A4", e.getMessage() );
+        }
+        try {
+            evaluator.evaluate( parse( "b" ) );
+            fail( "Expected an unknown variable" );
+        } catch ( IllegalArgumentException e ) {
+            assertEquals( "Unknown variable:b", e.getMessage() );
+        }
+        assertFalse( resolver[0].isResolved( "b" ) );
+        
+        resolver[0].clear();
+        assertEquals( 0, resolver[0].size() );
+        
+        //A needs B and B needs A, each started by a different thread.
+        java.util.concurrent.CyclicBarrier barrier = new java.util.concurrent.CyclicBarrier( 2 );
+        MemoizingResolver[] crossed = new MemoizingResolver[1];
+        crossed[0] = new MemoizingResolver( name -> {
+            try {
+                barrier.await( 5, TimeUnit.SECONDS );
+            } catch ( Exception e ) {
+                throw new IllegalStateException( e );
+            }
+            return crossed[0].resolve( name.equals( "A" ) ? "B" : "A" ) + 1;
+        } );
+        ExecutorService two = Executors.newFixedThreadPool( 2 );
+        List<Future<Double>> cycle = asList( two.submit( () -> crossed[0].resolve( "A" ) ), 
+                                             two.submit( () -> crossed[0].resolve( "B" ) ) );
+        for( Future<Double> result : cycle )
+        {
+            try {
+                result.get( 10, TimeUnit.SECONDS );
+                fail( "Expected a circular reference" );
+            } catch ( ExecutionException e ) {
+                assertTrue( e.getCause().getMessage(), e.getCause().getMessage().startsWith( "Circular reference:" ) );
+            }
+        }
+        two.shutdown();
+        assertEquals( 0, crossed[0].size() );
+    }
+
+
+    @Test
+    public void testAsyncFormulaParser() throws Exception
+    {
+        AsyncFormulaParser parser = new AsyncFormulaParser();
+        assertEquals( FormulaParser.formulaToXML( "a + 5 / 2" ), parser.formulaToXML( "a + 5 / 2" ).get() );
+        assertFalse( parser.tryParse( "a +" ).get().isValid() );
+        assertEquals( 3.5, parser.evaluate( "a + 1", new FormulaEvaluator( name -> 2.5 ) ).get(), 0 );
+
+        try {
+            parser.formulaToXML( "a +" ).get();
+            fail( "Expected a syntax error" );
+        } catch ( ExecutionException e ) {
+            assertTrue( e.getCause() instanceof FormulaParser.FormulaSyntaxException );
+        }
+
+        //Once the most allowed are in flight more are turned away until one
+        //is done.
+        List<Runnable> queued = new ArrayList<>();
+        parser = new AsyncFormulaParser( queued::add, 2 );
+        CompletableFuture<String> first = parser.formulaToXML( "a" );
+        parser.formulaToXML( "b" );
+        assertEquals( 2, parser.getInFlight() );
+        try {
+            parser.formulaToXML( "c" ).join();
+            fail( "Expected too many in flight" );
+        } catch ( CompletionException e ) {
+            assertTrue( e.getCause() instanceof RejectedExecutionException );
+        }
+        queued.remove( 0 ).run();
+        assertTrue( first.isDone() );
+        assertEquals( 1, parser.getInFlight() );
+        parser.formulaToXML( "c" );
+        assertEquals( 2, parser.getInFlight() );
+
+        //A stream only takes as many as there's room for, and waits for room
+        //when there is none.
+        ExecutorService pool = Executors.newFixedThreadPool( 4 );
+        parser = new AsyncFormulaParser( pool, 3 );
+        AsyncFormulaParser p = parser;
+        List<String> formulas = new ArrayList<>();
+        for( int i=0; i<1000; i++ )
+            formulas.add( i % 10 == 0 ? "x" + i + " +" : "x" + i + " + 1" );
+        int[] counts = new int[3];
+        CompletableFuture<String> blocking = parser.formulaToXML( "a" );
+        CompletableFuture<Void> all = parser.tryParseAll( formulas.iterator(), ( formula, result ) -> {
+            counts[0]++;
+            if ( ! result.isValid() )
+                counts[1]++;
+            counts[2] = Math.max( counts[2], p.getInFlight() );
+        } );
+        all.get( 10, TimeUnit.SECONDS );
+        blocking.get();
+        assertEquals( 1000, counts[0] );
+        assertEquals( 100, counts[1] );
+        assertTrue( counts[2] <= 3 );
+        assertEquals( 0, parser.getInFlight() );
+        pool.shutdown();
+        
+        //An executor that runs each formula there and then mustn't recurse 
+        //once per formula.
+        parser = new AsyncFormulaParser( Runnable::run, 4 );
+        int[] parsed = new int[1];
+        parser.tryParseAll( new java.util.Iterator<String>() {
+            int i;
+            @Override public boolean hasNext() { return i < 200000; }
+            @Override public String next() { return "a + " + i++; }
+        }, ( formula, result ) -> parsed[0]++ ).get( 60, TimeUnit.SECONDS );
+        assertEquals( 200000, parsed[0] );
+        assertEquals( 0, parser.getInFlight() );
+    }
+
+
+    @Test
+    public void testFormulaServer() throws Exception
+    {
+        FormulaServer server = new FormulaServer( new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ), 2 );
+        server.start();
+        try {
+            String base = "http://localhost:" + server.getPort();
+            assertEquals( "<?xml version=\"1.0\" ?><operation type=\"add\"><variable>a</variable><integer>1</integer></operation>\n", 
+                          post( base + "/parse", "a+1" ) );
+            assertEquals( "OK\nERROR 3 getToken() EOF. \nOK\n", post( base + "/validate", "a+1\nb*(\r\nc" ) );
+            assertEquals( "10.0\n42.0\nERROR -1 Unknown variable:c\n", post( base + "/evaluate?a=2&%40width=40", "a*5\n@width+a\nc" ) );
+            
+            String status = get( base + "/status" );
+            assertTrue( status, status.contains( "\"requests\":3," ) );
+            assertTrue( status, status.contains( "\"formulas\":7," ) );
+            assertTrue( status, status.contains( "\"queueDepth\":0," ) );
+            
+            HttpURLConnection connection = (HttpURLConnection)new URL( base + "/parse" ).openConnection();
+            assertEquals( 405, connection.getResponseCode() );
+        } finally {
+            server.stop();
+        }
+    }
+
+
+    @Test
+    public void testFormulaServerOverload() throws Exception
+    {
+        //No workers, so nothing queued is done: room for 4 formulas, bodies of up to 100 bytes.
+        FormulaServer server = new FormulaServer( new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ), 0, 4, 100, 200 );
+        server.start();
+        try {
+            String base = "http://localhost:" + server.getPort();
+            assertEquals( 503, postStatus( base + "/validate", "a\nb\nc" ) ); //timed out
+            assertEquals( 503, postStatus( base + "/validate", "d\ne" ) );    //busy, at once
+            assertEquals( 413, postStatus( base + "/validate", String.join( "\n", java.util.Collections.nCopies( 60, "a" ) ) ) );
+            
+            String status = get( base + "/status" );
+            assertTrue( status, status.contains( "\"queueDepth\":4," ) ); //a, b, c and d
+            assertTrue( status, status.contains( "\"rejected\":1," ) );
+        } finally {
+            server.stop();
+        }
+        
+        //The formulas of a request that has timed out are skipped.
+        server = new FormulaServer( new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ), 1, 1000, 16 << 20, 1 );
+        server.start();
+        try {
+            String base = "http://localhost:" + server.getPort();
+            StringBuilder deep = new StringBuilder();
+            for( int i=0; i<20000; i++ )
+                deep.append( "(a+" );
+            deep.append( "1" );
+            for( int i=0; i<20000; i++ )
+                deep.append( ")" );
+            assertEquals( 503, postStatus( base + "/parse", String.join( "\n", java.util.Collections.nCopies( 100, deep ) ) ) );
+            
+            long formulas = 0, abandoned = 0;
+            for( long until = System.currentTimeMillis() + 10000; formulas + abandoned < 100 && System.currentTimeMillis() < until; )
+            {
+                Thread.sleep( 10 );
+                String status = get( base + "/status" );
+                formulas = Long.parseLong( status.replaceAll( ".*\"formulas\":([0-9]+).*\n?", "$1" ) );
+                abandoned = Long.parseLong( status.replaceAll( ".*\"abandoned\":([0-9]+).*\n?", "$1" ) );
+            }
+            assertEquals( 100, formulas + abandoned );
+            assertTrue( formulas + " done", abandoned > 0 );
+        } finally {
+            server.stop();
+        }
+    }
+
+
+    @Test
+    public void testFormulaConverter() throws Exception
+    {
+        //Enough lines for several chunks, to check they are written in order.
+        StringBuilder sb = new StringBuilder( "a+1\r\n\nb*(\n" );
+        for( int i=0; i<200000; i++ )
+            sb.append( i == 150000 ? "x +" : "x" + i + " + 2" ).append( '\n' );
+        sb.append( "c" );
+        
+        Path input = Files.createTempFile( "formulas", ".txt" );
+        Path output = Files.createTempFile( "formulas", ".xml" );
+        Path errors = Files.createTempFile( "errors", ".txt" );
+        try {
+            Files.write( input, sb.toString().getBytes( StandardCharsets.UTF_8 ) );
+            FormulaConverter converter = new FormulaConverter( 4 );
+            converter.convert( input, output, errors );
+            assertEquals( 200003, converter.getFormulaCount() );
+            assertEquals( 2, converter.getErrorCount() );
+            
+            List<String> lines = Files.readAllLines( output, StandardCharsets.UTF_8 );
+            assertEquals( 200004, lines.size() );
+            assertEquals( "<operation type=\"add\"><variable>a</variable><integer>1</integer></operation>", lines.get( 0 ) );
+            assertEquals( "", lines.get( 1 ) );
+            assertEquals( "", lines.get( 2 ) );
+            assertEquals( "<operation type=\"add\"><variable>x123456</variable><integer>2</integer></operation>", lines.get( 3 + 123456 ) );
+            assertEquals( "<variable>c</variable>", lines.get( 200003 ) );
+            
+            List<String> errorLines = Files.readAllLines( errors, StandardCharsets.UTF_8 );
+            assertEquals( 2, errorLines.size() );
+            assertTrue( errorLines.get( 0 ), errorLines.get( 0 ).startsWith( "3\t3\t" ) && errorLines.get( 0 ).endsWith( "\tb*(" ) );
+            assertTrue( errorLines.get( 1 ), errorLines.get( 1 ).startsWith( "150004\t3\t" ) && errorLines.get( 1 ).endsWith( "\tx +" ) );
+        } finally {
+            Files.delete( input );
+            Files.delete( output );
+            Files.delete( errors );
+        }
+    }
+
+
+    @Test
+    public void testXMLWithoutStAX() throws Exception
+    {
+        //The same, byte for byte, as through an XMLStreamWriter.
+        String[] formulas = { "a + 5 / 2", "(@width - 2.5e3) * -sin(#angle)", "a>b?c:d", "max( a&b, c<d )", "a\"b", "\u00e9t\u00e9 + \ud83d\ude00" };
+        for( String formula : formulas )
+            assertEquals( formula, new FormulaParser( new Stream( formula ) ).marshall(), FormulaParser.formulaToXML( formula ) );
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XMLTextFormulaHandler handler = new XMLTextFormulaHandler( out );
+        FormulaParser.parse( "a", handler );
+        FormulaParser.parse( "2", handler );
+        handler.newLine();
+        handler.newLine();
+        FormulaParser.parse( "b", handler );
+        handler.flush();
+        assertEquals( "<variable>a</variable>\n<integer>2</integer>\n\n<variable>b</variable>", out.toString( "UTF-8" ) );
+        
+        WarmUp.run( 1 );
+    }
+
+
+    private static String post( String url, String body ) throws Exception
+    {
+        HttpURLConnection connection = (HttpURLConnection)new URL( url ).openConnection();
+        connection.setRequestMethod( "POST" );
+        connection.setDoOutput( true );
+        try ( OutputStream out = connection.getOutputStream() ) {
+            out.write( body.getBytes( StandardCharsets.UTF_8 ) );
+        }
+        return read( connection );
+    }
+
+
+    /**
+     * @return the status code of the response.
+     */
+    private static int postStatus( String url, String body ) throws Exception
+    {
+        HttpURLConnection connection = (HttpURLConnection)new URL( url ).openConnection();
+        connection.setRequestMethod( "POST" );
+        connection.setDoOutput( true );
+        try ( OutputStream out = connection.getOutputStream() ) {
+            out.write( body.getBytes( StandardCharsets.UTF_8 ) );
+        } catch ( java.io.IOException e ) { //the server may answer before reading all of it
+        }
+        return connection.getResponseCode();
+    }
+
+
+    private static String get( String url ) throws Exception
+    {
+        return read( (HttpURLConnection)new URL( url ).openConnection() );
+    }
+
+
+    private static String read( HttpURLConnection connection ) throws Exception
+    {
+        assertEquals( 200, connection.getResponseCode() );
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try ( InputStream in = connection.getInputStream() ) {
+            byte[] buffer = new byte[4096];
+            for( int n; ( n = in.read( buffer ) ) > 0; )
+                bytes.write( buffer, 0, n );
+        }
+        return new String( bytes.toByteArray(), StandardCharsets.UTF_8 );
+    }
+
+
+    private static FormulaParser.Expression parse( String formula ) throws Stream.SyntaxException
+    {
+        return new FormulaParser( new Stream( formula ) ).getExpression();
+    }
+
+
+    //Null where there is no JavaScript engine, e.g. after Java 14.
+    private static final ScriptEngine JAVASCRIPT = new ScriptEngineManager().getEngineByName( "javascript" );
+    
+    
+    /**
+     * @return whether there is a JavaScript engine to check the JavaScript 
+     * with. If there isn't, but -Djs.conformance=required, as for ant test-js,
+     * this fails rather than letting the checks be skipped.
+     */
+    private static boolean hasJavaScript()
+    {
+        if ( JAVASCRIPT == null && "required".equals( System.getProperty( "js.conformance" ) ) )
+            fail( "No JavaScript engine, but js.conformance is required" );
+        
+        return JAVASCRIPT != null;
+    }
+    
+    
+    /**
+     * Check that the JavaScript of a formula gives what FormulaEvaluator does,
+     * each variable having a value made from its name, where there is a 
+     * JavaScript engine.
+     */
+    private static void assertJavaScriptAgrees( FormulaParser.Expression e )
+    {
+        if ( ! hasJavaScript() )
+            return;
+        
+        Map<String,Double> values = new HashMap<>();
+        addVariables( e, values );
+        assertJavaScriptAgrees( e, values );
+    }
+    
+    
+    private static void addVariables( FormulaParser.Expression e, Map<String,Double> values )
+    {
+        if ( e instanceof FormulaParser.Token )
+        {
+            String name = ((FormulaParser.Token)e).token;
+            values.put( name, 1 + ( name.hashCode() & 0xff ) / 16.0 );
+        }
+        for( int i=0; i<e.getParameterCount(); i++ )
+            addVariables( e.getParameter( i ), values );
+    }
+    
+    
+    private static void assertJavaScriptAgrees( FormulaParser.Expression e, Map<String,Double> values )
+    {
+        double expected;
+        try {
+            expected = new FormulaEvaluator( VariableResolver.of( values ) ).evaluate( e );
+        } catch ( IllegalArgumentException unknownFunction ) {
+            if ( ! unknownFunction.getMessage().startsWith( "Unknown function:" ) )
+                throw unknownFunction;
+            try {
+                JavaScriptEmitter.toJavaScript( e );
+                fail( "Expected JavaScript to fail too for " + e );
+            } catch ( IllegalArgumentException ex ) {
+                assertEquals( unknownFunction.getMessage(), ex.getMessage() );
+            }
+            return;
+        }
+        
+        StringBuilder call = new StringBuilder( JavaScriptEmitter.toJavaScript( e ) ).append( "({" );
+        for( Map.Entry<String,Double> value : values.entrySet() )
+        {
+            if ( call.charAt( call.length() - 1 ) != '{' )
+                call.append( ',' );
+            call.append( '\'' ).append( value.getKey() ).append( "':" ).append( value.getValue() );
+        }
+        call.append( "})" );
+        
+        double actual;
+        try {
+            actual = ((Number)JAVASCRIPT.eval( call.toString() )).doubleValue();
+        } catch ( ScriptException ex ) {
+            throw new AssertionError( "JavaScript of " + e.toNormativeString() + " failed", ex );
+        }
+        assertTrue( "JavaScript of " + e.toNormativeString() + " with " + values + " gave:" + actual + " not:" + expected,
+                    Double.compare( expected, actual ) == 0 || Math.abs( expected - actual ) <= 1e-12 * Math.max( 1, Math.abs( expected ) ) );
+    }
+
+
+    /**
+     * Check that the canonical form of a formula parses back to the same 
+     * tree, less its parentheses, and so the same structural hash.
+     */
+    private static void assertCanonicalRoundTrip( FormulaParser u ) throws Stream.SyntaxException
+    {
+        String canonical = u.getExpression().toCanonicalString();
+        FormulaParser v = new FormulaParser( new Stream( canonical ) );
+        assertSameTree( canonical, u.getExpression(), v.getExpression() );
+        assertEquals( canonical, u.getStructuralHash(), v.getStructuralHash() );
+        assertEquals( canonical, v.getExpression().toCanonicalString() );
+    }
+
+
+    private static void assertSameTree( String canonical, FormulaParser.Expression a, FormulaParser.Expression b )
+    {
+        a = FormulaParser.unwrap( a );
+        b = FormulaParser.unwrap( b );
+        assertEquals( canonical, a.getClass(), b.getClass() );
+        if ( a instanceof FormulaParser.Token )
+        {
+            FormulaParser.Token ta = (FormulaParser.Token)a;
+            FormulaParser.Token tb = (FormulaParser.Token)b;
+            assertEquals( canonical, ta.token + ta.isCustom + ta.isHashToken, tb.token + tb.isCustom + tb.isHashToken );
+        }
+        else if ( a instanceof FormulaParser.IntegerToken )
+            assertEquals( canonical, ((FormulaParser.IntegerToken)a).i, ((FormulaParser.IntegerToken)b).i );
+        else if ( a instanceof FormulaParser.DoubleToken )
+            assertEquals( canonical, ((FormulaParser.DoubleToken)a).d, ((FormulaParser.DoubleToken)b).d, 0 );
+        else if ( a instanceof FormulaParser.TwoParameterOperation )
+            assertEquals( canonical, ((FormulaParser.TwoParameterOperation)a).operator, ((FormulaParser.TwoParameterOperation)b).operator );
+        else if ( a instanceof FormulaParser.Function )
+            assertEquals( canonical, ((FormulaParser.Function)a).function, ((FormulaParser.Function)b).function );
+
+        assertEquals( canonical, a.getParameterCount(), b.getParameterCount() );
+        for( int i=0; i<a.getParameterCount(); i++ )
+            assertSameTree( canonical, a.getParameter( i ), b.getParameter( i ) );
+    }
+
+
     private static void testEvaluation( String formula, double expectedAnswer ) throws Stream.SyntaxException
     {
         Stream s = new Stream( formula );
         FormulaParser u = new FormulaParser( s );
+        assertCanonicalRoundTrip( u );
         double actualAnswer = evaluate( u.expression );
         assertTrue( "testEvaluation failure for " + formula + " expected:" + expectedAnswer + " calculated:" + actualAnswer, expectedAnswer == actualAnswer );
+        assertJavaScriptAgrees( u.expression );
     }
     
     
@@ -481,6 +1962,8 @@ public class FormulaTests {
         if (( expectedNormative == null ) || ( expectedXML == null ) || ( expectedToString == null ) )
             System.out.println(formula );
         
+        assertCanonicalRoundTrip( u );
+        
         if ( expectedNormative != null )
             assertTrue( "Normative form failure for " + formula, expectedNormative.equals( u.expression.toNormativeString() ) );
         else
@@ -498,6 +1981,9 @@ public class FormulaTests {
                 assertTrue( "XML form failure for " + formula, ("<?xml version=\"1.0\" ?>" + expectedXML).equals( u.marshall() ) );
             else
                 System.out.println( u.marshall() );
+            
+            assertTrue( "Streamed XML failure for " + formula, u.marshall().equals( FormulaParser.formulaToXML( formula ) ) );
+            assertJavaScriptAgrees( u.expression );
                 
         } catch ( FormulaParser.FormulaSyntaxException ex ) {
             throw s.throwException( ex.getMessage() );
@@ -28,7 +28,8 @@ import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
-	FormulaTests.class
+	FormulaTests.class,
+	AllocationTests.class
 })
 
 public class TestSuite {